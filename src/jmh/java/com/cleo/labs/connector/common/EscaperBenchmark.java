@@ -0,0 +1,64 @@
+package com.cleo.labs.connector.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cleo.labs.connector.common.Path.DirMarker;
+import com.cleo.labs.connector.common.Path.Escaper;
+
+/**
+ * Microbenchmarks for the node-level codecs: {@link Escaper} and {@link DirMarker}.
+ * Most node names in real listings need no escaping at all, so the
+ * {@code plain} case is the one that matters most for DIR throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscaperBenchmark {
+
+    @Param({"invoice-20181203-000123.edi", "a/b(c)/d", "(2f)partner(28)x)(3a:3a).dir"})
+    public String node;
+
+    @Benchmark
+    public String escape() {
+        return Escaper.escape(node, Path.URI_DELIMITER);
+    }
+
+    @Benchmark
+    public String unescape() {
+        return Escaper.unescape(node);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Escaper.encode(node);
+    }
+
+    @Benchmark
+    public String markDirectory() {
+        return DirMarker.mark(node, true);
+    }
+
+    @Benchmark
+    public String markFile() {
+        return DirMarker.mark(node, false);
+    }
+
+    @Benchmark
+    public String unmark() {
+        return DirMarker.unmark(node);
+    }
+}
@@ -0,0 +1,88 @@
+package com.cleo.labs.connector.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.cleo.connector.api.directory.Directory.Type;
+
+/**
+ * Measures the conversion of a whole DIR listing through
+ * {@link ClientResolver.Resolved#fixup(Entry)}, as done by the DIR command
+ * for every returned entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class FixupBenchmark {
+
+    @Param({"1000", "1000000"})
+    public int entries;
+
+    /**
+     * The resolver edit to apply:
+     * <ul><li>prepend: no configured bucket, so the bucket name is prepended</li>
+     *     <li>chroot: a configured prefix is stripped from each entry</li>
+     *     <li>account: account-level listing with directory marks suppressed</li></ul>
+     */
+    @Param({"prepend", "chroot", "account"})
+    public String edit;
+
+    private Path[] paths;
+    private Entry[] listing;
+    private ClientResolver.Resolved resolved;
+
+    @Setup
+    public void setup() {
+        Path folder = new Path()
+                .delimiter("/")
+                .markDirectories(true)
+                .suffixDirectories(true)
+                .parseURIPath("partner.dir/inbox.dir/2018.dir");
+        ClientResolver resolver = new ClientResolver(null, null, null, null);
+        switch (edit) {
+        case "prepend":
+            resolved = resolver.new Resolved(null, folder, folder).edit("cleo-labs-bucket", 0);
+            break;
+        case "chroot":
+            resolved = resolver.new Resolved(null, folder, folder).edit(null, 2);
+            break;
+        case "account":
+            folder = folder.slice(0, 0);
+            resolved = resolver.new Resolved(null, folder, folder).edit(true);
+            break;
+        default:
+            throw new IllegalArgumentException(edit);
+        }
+        paths = new Path[entries];
+        listing = new Entry[entries];
+        for (int i = 0; i < entries; i++) {
+            boolean directory = i % 10 == 0;
+            paths[i] = folder.child(String.format("invoice-%08d.edi", i)).directory(directory);
+            listing[i] = new Entry(directory ? Type.dir : Type.file);
+        }
+    }
+
+    @Benchmark
+    public void fixup(Blackhole bh) {
+        for (int i = 0; i < listing.length; i++) {
+            Entry entry = listing[i];
+            entry.setPathObject(paths[i]);
+            bh.consume(resolved.fixup(entry));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.cleo.labs.connector.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks for the {@link Path} operations that run on every
+ * command and every DIR entry.  Run with the gc profiler to see the
+ * allocation rate of each operation (see the {@code jmh} profile in the pom).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmark {
+
+    /**
+     * The path shapes under test:
+     * <ul><li>shallow: a bucket and an object</li>
+     *     <li>deep: 12 levels of nesting</li>
+     *     <li>escaped: node names containing {@code (} and encoded delimiters</li>
+     *     <li>marked: {@code .dir} marked directories</li></ul>
+     */
+    @Param({"shallow", "deep", "escaped", "marked"})
+    public String shape;
+
+    private String uri;
+    private boolean markDirectories;
+    private Path path;
+    private Path insert;
+
+    @Setup
+    public void setup() {
+        switch (shape) {
+        case "shallow":
+            uri = "cleo-labs-bucket/inbox.edi";
+            break;
+        case "deep":
+            uri = "cleo-labs-bucket/a/b/c/d/e/f/g/h/i/j/partner/inbox.edi";
+            break;
+        case "escaped":
+            uri = "cleo-labs-bucket/a(2f)b/c(28)1)/(3a:3a)partner/inbox(2f)2018.edi";
+            break;
+        case "marked":
+            markDirectories = true;
+            uri = "cleo-labs-bucket/a.dir/b.dir/c.dir/partner.dir/inbox.dir";
+            break;
+        default:
+            throw new IllegalArgumentException(shape);
+        }
+        path = parse(uri);
+        insert = new Path().child("prefix").child("nested");
+    }
+
+    private Path parse(String parse) {
+        return new Path()
+                .delimiter("/")
+                .markDirectories(markDirectories)
+                .suffixDirectories(true)
+                .parseURIPath(parse);
+    }
+
+    @Benchmark
+    public Path parseURIPath() {
+        return parse(uri);
+    }
+
+    @Benchmark
+    public String toStringForm() {
+        return path.toString();
+    }
+
+    @Benchmark
+    public String toURIPath() {
+        return path.toURIPath();
+    }
+
+    @Benchmark
+    public Path child() {
+        return path.child("sample.txt");
+    }
+
+    @Benchmark
+    public Path insert() {
+        return path.insert(1, insert);
+    }
+
+    @Benchmark
+    public Path slice() {
+        return path.slice(1, null);
+    }
+
+    @Benchmark
+    public Path parent() {
+        return path.parent();
+    }
+}
@@ -0,0 +1,351 @@
+package com.cleo.labs.connector.gcpbucket;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.cleo.connector.api.ConnectorClient;
+import com.cleo.connector.api.command.ConnectorCommandResult;
+import com.cleo.connector.api.command.ConnectorCommandResult.Status;
+import com.cleo.labs.connector.gcpbucket.local.LocalStorage;
+import com.cleo.labs.connector.testing.Commands;
+import com.cleo.labs.connector.testing.StringCollector;
+import com.cleo.labs.connector.testing.StringSource;
+import com.cleo.labs.connector.testing.TestConnectorClientBuilder;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.io.ByteStreams;
+
+/**
+ * End to end benchmark of the PUT, GET, ATTR, RENAME, DELETE and DIR commands
+ * through {@link BucketConnectorClient}, driven by the {@link Commands} helpers
+ * against a {@link LocalStorage} stand-in with injected latency and bandwidth.
+ * <p/>
+ * The object commands are swept over object size and concurrency, DIR over
+ * listing size.  Each (command, size, concurrency, listing) cell is written
+ * as one JSON object per line with ops/s, MB/s, p50/p99/p999 latency and
+ * RPCs per command, so runs can be diffed or loaded into a spreadsheet.
+ * Run it with:
+ * <pre>
+ *     mvn -P jmh test-compile exec:exec@command-benchmark -Dbench.args="--latency 20ms --out target/commands.json"
+ * </pre>
+ * Options (sizes accept K, M and G suffixes):
+ * <pre>
+ *     --sizes 1K,1M,64M,1G,10G      object sizes
+ *     --concurrency 1,8,64,512      concurrent commands
+ *     --listings 10,1000,100000,1M  DIR listing sizes
+ *     --latency 20ms                added to every RPC
+ *     --bandwidth 100M              bytes/second per content RPC (0 for unlimited)
+ *     --ops 256                     commands per cell (at least the concurrency)
+ *     --max-bytes 16G               caps ops*size for the large sizes
+ *     --repeat 5                    DIR repetitions per listing size
+ *     --commands put,get,attr,rename,delete,dir
+ *     --out file                    results (default stdout)
+ * </pre>
+ * Object content is not retained by the stand-in, so sizes are limited by
+ * time rather than heap.
+ */
+public class CommandBenchmark {
+
+    private static final String BUCKET = "benchmark";
+
+    private List<Long> sizes = parseSizes("1K,1M,64M,1G,10G");
+    private List<Long> concurrency = parseSizes("1,8,64,512");
+    private List<Long> listings = parseSizes("10,1000,100000,1M");
+    private long latencyMillis = 20;
+    private long bandwidth = 100L*1024*1024;
+    private int ops = 256;
+    private long maxBytes = 16L*1024*1024*1024;
+    private int repeat = 5;
+    private List<String> commands = Arrays.asList("put", "get", "attr", "rename", "delete", "dir");
+    private PrintStream out = System.out;
+
+    /**
+     * An upload source producing {@code size} bytes of a repeating pattern
+     * without holding them in memory.
+     */
+    static class PatternSource extends StringSource {
+        private final long size;
+        public PatternSource(String name, long size) {
+            super(name, "");
+            this.size = size;
+        }
+        @Override
+        public InputStream getStream() {
+            return new InputStream() {
+                private long remaining = size;
+                @Override
+                public int read() {
+                    return remaining-- > 0 ? 'x' : -1;
+                }
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int n = (int) Math.min(len, remaining);
+                    Arrays.fill(b, off, off+n, (byte) 'x');
+                    remaining -= n;
+                    return n;
+                }
+            };
+        }
+    }
+
+    /**
+     * A download destination that counts and discards what it receives.
+     */
+    static class CountingCollector extends StringCollector {
+        private long count = 0;
+        @Override
+        public OutputStream getStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    count++;
+                }
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    count += len;
+                }
+            };
+        }
+        public long count() {
+            return count;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Op {
+        /**
+         * Runs one command.
+         * @param client the client for the calling thread
+         * @param i the operation index
+         * @return the bytes transferred
+         */
+        long run(ConnectorClient client, int i) throws Exception;
+    }
+
+    private static final PrintStream NOWHERE = new PrintStream(ByteStreams.nullOutputStream());
+
+    private static ConnectorClient client(Storage storage) throws Exception {
+        ConnectorClient client = new TestConnectorClientBuilder(BucketConnectorSchema.class)
+                .logger(NOWHERE)
+                .debug(false)
+                .set("ProjectId", LocalStorage.PROJECT_ID)
+                .set("BucketName", BUCKET)
+                .build();
+        return ((BucketConnectorClient) client).storage(storage);
+    }
+
+    private static void check(ConnectorCommandResult result) throws IOException {
+        if (result.getStatus() != Status.Success) {
+            throw new IOException("command failed: "+result.getStatus());
+        }
+    }
+
+    /**
+     * Runs {@code count} operations on {@code threads} threads, each thread
+     * with its own client, and records each operation's latency.
+     */
+    private static Latencies run(LocalStorage local, int threads, int count, Op op) throws Exception {
+        Latencies latencies = new Latencies();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ThreadLocal<ConnectorClient> clients = new ThreadLocal<>();
+        Storage storage = local.storage();
+        try {
+            List<Future<?>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                futures.add(pool.submit(() -> {
+                    ConnectorClient client = clients.get();
+                    if (client == null) {
+                        client = client(storage);
+                        clients.set(client);
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        long bytes = op.run(client, index);
+                        latencies.record(System.nanoTime()-start, bytes);
+                    } catch (Exception e) {
+                        latencies.error();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return latencies;
+    }
+
+    private void report(String command, long size, long threads, long listing,
+            Latencies latencies, long elapsed, long rpcs) {
+        out.println(String.format(Locale.ROOT,
+                "{\"command\":\"%s\",\"size\":%d,\"concurrency\":%d,\"listing\":%d,"+
+                "\"latency_ms\":%d,\"bandwidth\":%d,%s}",
+                command, size, threads, listing, latencyMillis, bandwidth,
+                latencies.json(elapsed, rpcs)));
+        out.flush();
+    }
+
+    private LocalStorage local() {
+        return new LocalStorage()
+                .retainContent(false)
+                .latency(latencyMillis, TimeUnit.MILLISECONDS)
+                .bandwidth(bandwidth)
+                .bucket(BUCKET);
+    }
+
+    private void measure(LocalStorage local, String command, long size, int threads, int count,
+            long listing, Op op) throws Exception {
+        if (!commands.contains(command)) {
+            return;
+        }
+        local.reset();
+        long start = System.nanoTime();
+        Latencies latencies = run(local, threads, count, op);
+        report(command, size, threads, listing, latencies, System.nanoTime()-start, local.rpcCount());
+    }
+
+    /**
+     * Sweeps PUT, GET, ATTR, RENAME and DELETE over one size and concurrency.
+     */
+    private void objects(long size, int threads) throws Exception {
+        int count = (int) Math.max(1, Math.min(Math.max(ops, threads), maxBytes / Math.max(size, 1)));
+        threads = Math.min(threads, count);
+        LocalStorage local = local();
+        String folder = "objects-"+size+"-"+threads+"/";
+        measure(local, "put", size, threads, count, 0, (client, i) -> {
+            check(Commands.put(new PatternSource("object-"+i, size), folder+"object-"+i).go(client));
+            return size;
+        });
+        measure(local, "get", size, threads, count, 0, (client, i) -> {
+            CountingCollector destination = new CountingCollector();
+            check(Commands.get(folder+"object-"+i, destination.name("object-"+i)).go(client));
+            return destination.count();
+        });
+        measure(local, "attr", size, threads, count, 0, (client, i) -> {
+            Commands.attr(folder+"object-"+i).go(client).readAttributes();
+            return 0;
+        });
+        measure(local, "rename", size, threads, count, 0, (client, i) -> {
+            check(Commands.rename(folder+"object-"+i, folder+"renamed-"+i).go(client));
+            return 0;
+        });
+        measure(local, "delete", size, threads, count, 0, (client, i) -> {
+            String name = commands.contains("rename") ? "renamed-" : "object-";
+            check(Commands.delete(folder+name+i).go(client));
+            return 0;
+        });
+    }
+
+    /**
+     * Populates a folder with {@code listing} empty objects directly (without
+     * latency) and measures DIR on it.
+     */
+    private void dir(long listing) throws Exception {
+        if (!commands.contains("dir")) {
+            return;
+        }
+        LocalStorage local = local().latency(0, TimeUnit.MILLISECONDS);
+        Storage storage = local.storage();
+        String folder = "listing-"+listing+"/";
+        for (long i = 0; i < listing; i++) {
+            storage.create(BlobInfo.newBuilder(BUCKET, folder+"file-"+i).build(), new byte[0]);
+        }
+        local.latency(latencyMillis, TimeUnit.MILLISECONDS);
+        measure(local, "dir", 0, 1, repeat, listing, (client, i) -> {
+            ConnectorCommandResult result = Commands.dir(folder).go(client);
+            check(result);
+            if (result.getDirEntries().get().size() != listing) {
+                throw new IOException("expected "+listing+" entries");
+            }
+            return 0;
+        });
+    }
+
+    public void run() throws Exception {
+        for (long size : sizes) {
+            for (long threads : concurrency) {
+                objects(size, (int) threads);
+            }
+        }
+        for (long listing : listings) {
+            dir(listing);
+        }
+    }
+
+    static long parseSize(String size) {
+        String s = size.trim().toUpperCase(Locale.ROOT);
+        long multiplier = 1;
+        switch (s.isEmpty() ? ' ' : s.charAt(s.length()-1)) {
+        case 'K': multiplier = 1024L; break;
+        case 'M': multiplier = 1024L*1024; break;
+        case 'G': multiplier = 1024L*1024*1024; break;
+        default:  s = s+" ";
+        }
+        return Long.parseLong(s.substring(0, s.length()-1)) * multiplier;
+    }
+
+    private static List<Long> parseSizes(String sizes) {
+        List<Long> result = new ArrayList<>();
+        for (String size : sizes.split(",")) {
+            result.add(parseSize(size));
+        }
+        return result;
+    }
+
+    static long parseMillis(String duration) {
+        String s = duration.trim().toLowerCase(Locale.ROOT);
+        if (s.endsWith("ms")) {
+            return Long.parseLong(s.substring(0, s.length()-2));
+        } else if (s.endsWith("s")) {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(s.substring(0, s.length()-1)));
+        }
+        return Long.parseLong(s);
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandBenchmark benchmark = new CommandBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i+1 >= args.length) {
+                throw new IllegalArgumentException("missing value for "+arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+            case "--sizes":       benchmark.sizes = parseSizes(value); break;
+            case "--concurrency": benchmark.concurrency = parseSizes(value); break;
+            case "--listings":    benchmark.listings = parseSizes(value); break;
+            case "--latency":     benchmark.latencyMillis = parseMillis(value); break;
+            case "--bandwidth":   benchmark.bandwidth = parseSize(value); break;
+            case "--ops":         benchmark.ops = Integer.parseInt(value); break;
+            case "--max-bytes":   benchmark.maxBytes = parseSize(value); break;
+            case "--repeat":      benchmark.repeat = Integer.parseInt(value); break;
+            case "--commands":    benchmark.commands = Arrays.asList(value.toLowerCase(Locale.ROOT).split(",")); break;
+            case "--out":
+                benchmark.out = new PrintStream(new FileOutputStream(value), true, StandardCharsets.UTF_8.name());
+                break;
+            default:
+                throw new IllegalArgumentException("unrecognized option "+arg);
+            }
+        }
+        benchmark.run();
+        benchmark.out.close();
+    }
+}
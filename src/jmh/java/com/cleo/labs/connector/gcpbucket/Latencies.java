@@ -0,0 +1,77 @@
+package com.cleo.labs.connector.gcpbucket;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Collects latency samples (in nanoseconds) and reports count,
+ * throughput and percentiles.  Samples are kept exactly, so percentiles
+ * are exact too; a million samples costs 8MB.
+ */
+public class Latencies {
+    private long[] samples = new long[1024];
+    private int count = 0;
+    private boolean sorted = true;
+    private long bytes = 0;
+    private long errors = 0;
+
+    public synchronized void record(long nanos, long bytes) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count*2);
+        }
+        samples[count++] = nanos;
+        this.bytes += bytes;
+        sorted = false;
+    }
+
+    public synchronized void error() {
+        errors++;
+    }
+
+    public synchronized int count() {
+        return count;
+    }
+
+    public synchronized long errors() {
+        return errors;
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the latency at percentile {@code p}, e.g. 99.9.
+     * @param p the percentile, 0 to 100
+     * @return the latency in nanoseconds, or 0 if there are no samples
+     */
+    public synchronized long percentile(double p) {
+        if (count == 0) {
+            return 0;
+        }
+        if (!sorted) {
+            Arrays.sort(samples, 0, count);
+            sorted = true;
+        }
+        int index = (int) Math.ceil(p / 100.0 * count) - 1;
+        return samples[Math.max(0, Math.min(count-1, index))];
+    }
+
+    /**
+     * Formats the summary as JSON fields (without enclosing braces).
+     * @param elapsedNanos the wall clock time over which the samples were taken
+     * @param rpcs the number of RPCs issued, or -1 if unknown
+     * @return the JSON fields
+     */
+    public synchronized String json(long elapsedNanos, long rpcs) {
+        double seconds = elapsedNanos / 1e9;
+        return String.format(Locale.ROOT,
+                "\"ops\":%d,\"errors\":%d,\"seconds\":%.3f,\"ops_per_sec\":%.1f,\"mb_per_sec\":%.3f,"+
+                "\"p50_ms\":%.3f,\"p99_ms\":%.3f,\"p999_ms\":%.3f,\"max_ms\":%.3f,\"rpcs\":%d,\"rpcs_per_op\":%.2f",
+                count, errors, seconds,
+                seconds > 0 ? count / seconds : 0.0,
+                seconds > 0 ? bytes / seconds / (1024*1024) : 0.0,
+                percentile(50) / 1e6, percentile(99) / 1e6, percentile(99.9) / 1e6, percentile(100) / 1e6,
+                rpcs, rpcs < 0 || count == 0 ? -1.0 : (double) rpcs / count);
+    }
+}
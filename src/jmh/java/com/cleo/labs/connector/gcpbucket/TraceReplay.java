@@ -0,0 +1,322 @@
+package com.cleo.labs.connector.gcpbucket;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.cleo.connector.api.ConnectorClient;
+import com.cleo.connector.api.command.ConnectorCommandResult;
+import com.cleo.connector.api.command.ConnectorCommandResult.Status;
+import com.cleo.labs.connector.common.CommandTrace;
+import com.cleo.labs.connector.gcpbucket.CommandBenchmark.CountingCollector;
+import com.cleo.labs.connector.gcpbucket.CommandBenchmark.PatternSource;
+import com.cleo.labs.connector.gcpbucket.local.LocalStorage;
+import com.cleo.labs.connector.testing.Commands;
+import com.cleo.labs.connector.testing.TestConnectorClientBuilder;
+import com.google.cloud.storage.Storage;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Replays a {@link CommandTrace} against a {@link LocalStorage} stand-in or a
+ * real bucket, at the recorded pace or accelerated, and reports the replayed
+ * latency distribution of each command next to the recorded one, plus the
+ * RPC counts (stand-in only), as JSON lines.
+ * <pre>
+ *     mvn -P jmh test-compile exec:exec@trace-replay -Dbench.args="trace.log --speed 10 --latency 20ms"
+ * </pre>
+ * Options:
+ * <pre>
+ *     --speed 1          replay speed multiplier, 0 for as fast as possible
+ *     --threads 256      maximum commands in flight
+ *     --alias name       replay only the commands of one host alias
+ *     --latency 20ms     stand-in latency added to every RPC
+ *     --bandwidth 100M   stand-in bandwidth per content RPC (0 for unlimited)
+ *     --bucket name      BucketName for the replay host (blank for a project host)
+ *     --project id       replay against this project instead of the stand-in...
+ *     --key file         ...using this service account key
+ *     --out file         results (default stdout)
+ * </pre>
+ * Against the stand-in, paths that the trace reads before writing are seeded
+ * first (with the recorded size for GET), so the replay sees the same
+ * objects the original commands did.
+ */
+public class TraceReplay {
+
+    /**
+     * A parsed trace line.
+     */
+    private static class Event {
+        private final long start;
+        private final long micros;
+        private final String alias;
+        private final String command;
+        private final String status;
+        private final long bytes;
+        private final String path;
+        private final String destination;
+
+        private Event(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length < 9) {
+                throw new IllegalArgumentException("invalid trace line: "+line);
+            }
+            this.start = Long.parseLong(fields[0]);
+            this.micros = Long.parseLong(fields[1]);
+            this.alias = CommandTrace.unescape(fields[2]);
+            this.command = fields[3];
+            this.status = fields[4];
+            this.bytes = Long.parseLong(fields[5]);
+            this.path = CommandTrace.unescape(fields[7]);
+            this.destination = CommandTrace.unescape(fields[8]);
+        }
+
+        private boolean succeeded() {
+            return status.equals(Status.Success.toString());
+        }
+    }
+
+    private double speed = 1.0;
+    private int threads = 256;
+    private String alias = null;
+    private long latencyMillis = 20;
+    private long bandwidth = 0;
+    private String bucket = "replay";
+    private String project = null;
+    private String key = null;
+    private PrintStream out = System.out;
+    private LocalStorage local = null;
+    private Storage storage = null;
+
+    private static final PrintStream NOWHERE = new PrintStream(ByteStreams.nullOutputStream());
+
+    private ConnectorClient client() throws Exception {
+        TestConnectorClientBuilder builder = new TestConnectorClientBuilder(BucketConnectorSchema.class)
+                .logger(NOWHERE)
+                .debug(false)
+                .set("BucketName", bucket);
+        if (local != null) {
+            builder.set("ProjectId", LocalStorage.PROJECT_ID);
+            return ((BucketConnectorClient) builder.build()).storage(storage);
+        } else {
+            builder.set("ProjectId", project);
+            if (key != null) {
+                builder.set("GoogleAccountKey", new String(Files.readAllBytes(Paths.get(key)), StandardCharsets.UTF_8));
+            }
+            return builder.build();
+        }
+    }
+
+    private static void check(ConnectorCommandResult result) throws IOException {
+        if (result.getStatus() != Status.Success) {
+            throw new IOException("command failed: "+result.getStatus());
+        }
+    }
+
+    /**
+     * Replays one event.
+     * @return the bytes transferred
+     */
+    private static long replay(ConnectorClient client, Event event) throws Exception {
+        switch (event.command) {
+        case "PUT":
+            check(Commands.put(new PatternSource(event.path, Math.max(event.bytes, 0)), event.path).go(client));
+            return Math.max(event.bytes, 0);
+        case "GET":
+            CountingCollector destination = new CountingCollector();
+            check(Commands.get(event.path, destination).go(client));
+            return destination.count();
+        case "DIR":
+            check(Commands.dir(event.path).go(client));
+            return 0;
+        case "ATTR":
+            Commands.attr(event.path).go(client).readAttributes();
+            return 0;
+        case "MKDIR":
+            check(Commands.mkdir(event.path).go(client));
+            return 0;
+        case "RMDIR":
+            check(Commands.rmdir(event.path).go(client));
+            return 0;
+        case "RENAME":
+            check(Commands.rename(event.path, event.destination).go(client));
+            return 0;
+        case "DELETE":
+            check(Commands.delete(event.path).go(client));
+            return 0;
+        default:
+            throw new IllegalArgumentException("unsupported command "+event.command);
+        }
+    }
+
+    /**
+     * Creates what the trace reads before it writes it, with the stand-in's
+     * latency turned off.  Seeding failures are ignored: the replay will
+     * simply fail the same way.
+     */
+    private void seed(List<Event> events) throws Exception {
+        local.latency(0, TimeUnit.MILLISECONDS).bandwidth(0);
+        ConnectorClient client = client();
+        Set<String> seen = new HashSet<>();
+        for (Event event : events) {
+            if (seen.add(event.path) && event.succeeded()) {
+                try {
+                    switch (event.command) {
+                    case "GET":
+                    case "ATTR":
+                    case "DELETE":
+                    case "RENAME":
+                        Commands.put(new PatternSource(event.path, Math.max(event.bytes, 0)), event.path).go(client);
+                        break;
+                    case "DIR":
+                    case "RMDIR":
+                        Commands.mkdir(event.path).go(client);
+                        break;
+                    default:
+                    }
+                } catch (Exception ignore) {
+                    // leave it to the replay
+                }
+            }
+            if (event.destination != null) {
+                seen.add(event.destination);
+            }
+        }
+        local.latency(latencyMillis, TimeUnit.MILLISECONDS).bandwidth(bandwidth).reset();
+    }
+
+    private List<Event> read(String file) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                Event event = new Event(line);
+                if (alias == null || alias.equals(event.alias)) {
+                    events.add(event);
+                }
+            }
+        }
+        events.sort((a, b) -> Long.compare(a.start, b.start));
+        return events;
+    }
+
+    public void run(String file) throws Exception {
+        List<Event> events = read(file);
+        if (events.isEmpty()) {
+            return;
+        }
+        if (project == null) {
+            local = new LocalStorage().retainContent(false).bucket(bucket.isEmpty() ? "replay" : bucket);
+            storage = local.storage();
+            seed(events);
+        }
+
+        Map<String, Latencies> replayed = new TreeMap<>();
+        Map<String, Latencies> recorded = new TreeMap<>();
+        Latencies lag = new Latencies();
+        for (Event event : events) {
+            replayed.computeIfAbsent(event.command, c -> new Latencies());
+            recorded.computeIfAbsent(event.command, c -> new Latencies())
+                    .record(TimeUnit.MICROSECONDS.toNanos(event.micros), Math.max(event.bytes, 0));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ThreadLocal<ConnectorClient> clients = new ThreadLocal<>();
+        long base = events.get(0).start;
+        long begin = System.nanoTime();
+        for (Event event : events) {
+            long due = speed > 0 ? begin + (long) (TimeUnit.MILLISECONDS.toNanos(event.start - base) / speed) : begin;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            pool.execute(() -> {
+                Latencies latencies = replayed.get(event.command);
+                long start = System.nanoTime();
+                lag.record(Math.max(0, start - due), 0);
+                try {
+                    ConnectorClient client = clients.get();
+                    if (client == null) {
+                        client = client();
+                        clients.set(client);
+                    }
+                    latencies.record(System.nanoTime()-start, replay(client, event));
+                } catch (Exception e) {
+                    latencies.error();
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        long elapsed = System.nanoTime() - begin;
+        long recordedElapsed = TimeUnit.MILLISECONDS.toNanos(events.get(events.size()-1).start - base);
+
+        for (Map.Entry<String, Latencies> entry : replayed.entrySet()) {
+            out.println(String.format(Locale.ROOT, "{\"command\":\"%s\",\"speed\":%s,\"replayed\":{%s},\"recorded\":{%s}}",
+                    entry.getKey(), speed, entry.getValue().json(elapsed, -1),
+                    recorded.get(entry.getKey()).json(recordedElapsed, -1)));
+        }
+        out.println(String.format(Locale.ROOT, "{\"command\":\"dispatch-lag\",\"speed\":%s,\"replayed\":{%s}}",
+                speed, lag.json(elapsed, -1)));
+        if (local != null) {
+            StringBuilder rpcs = new StringBuilder();
+            local.rpcs().forEach((name, count) -> rpcs.append(rpcs.length() > 0 ? "," : "")
+                    .append('"').append(name).append("\":").append(count));
+            out.println(String.format(Locale.ROOT, "{\"command\":\"rpcs\",\"total\":%d,\"rpcs\":{%s}}",
+                    local.rpcCount(), rpcs));
+        }
+        out.flush();
+    }
+
+    public static void main(String[] args) throws Exception {
+        TraceReplay replay = new TraceReplay();
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                file = arg;
+                continue;
+            } else if (i+1 >= args.length) {
+                throw new IllegalArgumentException("missing value for "+arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+            case "--speed":     replay.speed = Double.parseDouble(value); break;
+            case "--threads":   replay.threads = Integer.parseInt(value); break;
+            case "--alias":     replay.alias = value; break;
+            case "--latency":   replay.latencyMillis = CommandBenchmark.parseMillis(value); break;
+            case "--bandwidth": replay.bandwidth = CommandBenchmark.parseSize(value); break;
+            case "--bucket":    replay.bucket = value; break;
+            case "--project":   replay.project = value; break;
+            case "--key":       replay.key = value; break;
+            case "--out":
+                replay.out = new PrintStream(new FileOutputStream(value), true, StandardCharsets.UTF_8.name());
+                break;
+            default:
+                throw new IllegalArgumentException("unrecognized option "+arg);
+            }
+        }
+        if (Strings.isNullOrEmpty(file)) {
+            throw new IllegalArgumentException("usage: TraceReplay trace-file [options]");
+        }
+        replay.run(file);
+        replay.out.close();
+    }
+}
@@ -0,0 +1,286 @@
+package com.cleo.labs.connector.common;
+
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cleo.connector.api.ConnectorException;
+
+/**
+ * The asynchronous counterpart of a {@link Client}: each call is run on a
+ * bounded executor and returns a {@link CompletableFuture}, so that
+ * independent round trips (probing a destination while a download starts,
+ * or the files of a bulk transfer) overlap instead of queuing on the
+ * calling thread.  A future that fails completes with the exception the
+ * synchronous call threw, e.g. a {@link ConnectorException}.
+ * <p/>
+ * Executors are shared per host alias: use {@link #executor(String, int, boolean)}.
+ * Each runs at most the configured number of calls at once, on a pool of
+ * daemon threads or, on a runtime that has them, on virtual threads.  A
+ * call must not wait for another call on the same executor, or a full
+ * executor could deadlock.
+ */
+public class AsyncClient {
+
+    @FunctionalInterface
+    public interface Call<T> {
+        T call() throws Exception;
+    }
+
+    private static final ConcurrentMap<String,BoundedExecutor> executors = new ConcurrentHashMap<>();
+
+    private final Client client;
+    private final Executor executor;
+
+    /**
+     * Wraps a client.
+     * @param client the (synchronous) client
+     * @param executor the executor to run calls on
+     */
+    public AsyncClient(Client client, Executor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the wrapped client.
+     * @return the client
+     */
+    public Client client() {
+        return client;
+    }
+
+    /**
+     * Returns the executor for a host alias, resized to {@code threads}.
+     * Switching between platform and virtual threads replaces the executor
+     * for calls made from then on.
+     * @param alias the host alias
+     * @param threads the maximum number of calls running at once
+     * @param virtual {@code true} to run calls on virtual threads where available
+     * @return the (shared) executor
+     */
+    public static Executor executor(String alias, int threads, boolean virtual) {
+        boolean useVirtual = virtual && VirtualThreads.available();
+        BoundedExecutor executor = executors.compute(alias, (a, existing) ->
+                existing != null && existing.virtual == useVirtual ? existing : new BoundedExecutor(a, useVirtual));
+        executor.resize(Math.max(1, threads));
+        return executor;
+    }
+
+    /**
+     * Runs a call on the executor.
+     * @param call the call
+     * @return a future for its result
+     */
+    public <T> CompletableFuture<T> supply(Call<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                if (!future.isDone()) {
+                    try {
+                        future.complete(call.call());
+                    } catch (Throwable e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e); // rejected
+        }
+        return future;
+    }
+
+    public CompletableFuture<Boolean> exists(Path path) {
+        return supply(() -> client.exists(path));
+    }
+
+    public CompletableFuture<List<Entry>> list(Path path) {
+        return supply(() -> client.list(path));
+    }
+
+    public CompletableFuture<List<Entry>> list(Path path, boolean recursive) {
+        return supply(() -> client.list(path, recursive));
+    }
+
+    public CompletableFuture<Boolean> upload(Path path, InputStream in) {
+        return supply(() -> client.upload(path, in));
+    }
+
+    public CompletableFuture<InputStream> download(Path path) {
+        return supply(() -> client.download(path));
+    }
+
+    public CompletableFuture<InputStream> download(Path path, long offset) {
+        return supply(() -> client.download(path, offset));
+    }
+
+    public CompletableFuture<InputStream> download(Entry entry) {
+        return supply(() -> client.download(entry));
+    }
+
+    public CompletableFuture<Optional<BasicFileAttributeView>> attr(Path path) {
+        return supply(() -> client.attr(path));
+    }
+
+    public CompletableFuture<Boolean> mkdir(Path path) {
+        return supply(() -> client.mkdir(path));
+    }
+
+    public CompletableFuture<Boolean> rmdir(Path path) {
+        return supply(() -> client.rmdir(path));
+    }
+
+    public CompletableFuture<Boolean> rename(Path source, Path target) {
+        return supply(() -> client.rename(source, target));
+    }
+
+    public CompletableFuture<Boolean> delete(Path path) {
+        return supply(() -> client.delete(path));
+    }
+
+    /**
+     * Waits for a future, rethrowing the exception it failed with:
+     * {@link ConnectorException}s and unchecked exceptions as they are,
+     * others wrapped in a {@link ConnectorException}.
+     * @param future the future
+     * @return its result
+     * @throws ConnectorException
+     */
+    public static <T> T await(CompletableFuture<T> future) throws ConnectorException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("interrupted", e);
+        } catch (ExecutionException | CompletionException e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            if (cause instanceof ConnectorException) {
+                throw (ConnectorException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ConnectorException(String.valueOf(cause.getMessage()), cause);
+        }
+    }
+
+    /**
+     * An executor running at most a given number of tasks at once, either
+     * on a pool of that many daemon threads or on virtual threads limited
+     * by a semaphore.
+     */
+    private static class BoundedExecutor implements Executor {
+        private final boolean virtual;
+        private final ThreadPoolExecutor pool;
+        private final ExecutorService virtualThreads;
+        private final Permits permits = new Permits();
+        private int threads = 0;
+
+        private BoundedExecutor(String alias, boolean virtual) {
+            this.virtual = virtual;
+            if (virtual) {
+                this.pool = null;
+                this.virtualThreads = VirtualThreads.executor();
+            } else {
+                AtomicInteger count = new AtomicInteger();
+                this.pool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                        r -> {
+                            Thread thread = new Thread(r, "async-" + alias + "-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+                this.pool.allowCoreThreadTimeOut(true);
+                this.virtualThreads = null;
+            }
+        }
+
+        private synchronized void resize(int threads) {
+            if (threads == this.threads) {
+                return;
+            }
+            if (virtual) {
+                if (threads > this.threads) {
+                    permits.release(threads - this.threads);
+                } else {
+                    permits.reduce(this.threads - threads); // without waiting for running tasks
+                }
+            } else if (threads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(threads);
+                pool.setCorePoolSize(threads);
+            } else {
+                pool.setCorePoolSize(threads);
+                pool.setMaximumPoolSize(threads);
+            }
+            this.threads = threads;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (!virtual) {
+                pool.execute(task);
+                return;
+            }
+            virtualThreads.execute(() -> {
+                permits.acquireUninterruptibly();
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+    }
+
+    private static class Permits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+        private Permits() {
+            super(0);
+        }
+        private void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+
+    /**
+     * Virtual threads (Java 21) through reflection, as the connector is
+     * built for Java 8.
+     */
+    private static class VirtualThreads {
+        private static final Method FACTORY = lookup();
+
+        private static Method lookup() {
+            try {
+                return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            } catch (NoSuchMethodException | SecurityException e) {
+                return null;
+            }
+        }
+
+        private static boolean available() {
+            return FACTORY != null;
+        }
+
+        private static ExecutorService executor() {
+            try {
+                return (ExecutorService) FACTORY.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("virtual threads are not available", e);
+            }
+        }
+    }
+}
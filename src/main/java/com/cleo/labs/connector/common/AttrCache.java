@@ -1,79 +1,294 @@
 package com.cleo.labs.connector.common;
 
 import java.nio.file.attribute.BasicFileAttributeView;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.base.Strings;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
+/**
+ * Attribute cache, with a separate namespace for each host alias so that
+ * a busy host can not evict the entries of a quiet one, and each host can
+ * be configured with its own spec.
+ * <p/>
+ * A spec is a Guava {@link CacheBuilder} spec, for example
+ * {@code maximumWeight=67108864,expireAfterWrite=30s}, optionally extended with
+ * {@code expireNegativeAfterWrite=5s} to set a different TTL for remembering
+ * that a path does not exist ({@code 0s} means don't remember).
+ * {@code maximumWeight} is in estimated bytes.  An empty spec means
+ * {@link #DEFAULT_SPEC} and {@code disabled} disables caching.
+ * <p/>
+ * Reconfiguring a namespace atomically swaps in a new (empty) cache: nothing
+ * is copied and readers are never blocked.
+ */
 public class AttrCache {
 
     /**
-     * maximumSize=10000,expireAfterWrite=5s
+     * maximumWeight is in estimated bytes (see {@link #weigh(String, Object)}):
+     * 64MB holds on the order of 300,000 entries with typical path lengths.
+     * A {@code maximumSize} spec is still accepted and counts entries instead.
      */
-    public static final String DEFAULT_SPEC = "maximumSize=10000,expireAfterWrite=30s";
+    public static final String DEFAULT_SPEC = "maximumWeight=67108864,expireAfterWrite=30s";
 
-    private static String spec = null;
+    public static final String DISABLED = "disabled";
 
-    private static Cache<String,Optional<BasicFileAttributeView>> cache = update(DEFAULT_SPEC);
+    /**
+     * The spec extension setting the TTL of negative entries
+     */
+    public static final String EXPIRE_NEGATIVE_AFTER_WRITE = "expireNegativeAfterWrite";
+
+    /**
+     * Estimated heap footprint of a cache entry, excluding the path characters:
+     * the path String header and the cache's own entry and table overhead.
+     */
+    private static final int ESTIMATED_ENTRY_BYTES = 112;
+
+    private static final ConcurrentMap<String,AttrCache> namespaces = new ConcurrentHashMap<>();
+    private static final Interner<String> paths = Interners.newWeakInterner();
+
+    /**
+     * Marks a path that does not exist in the negative cache
+     */
+    private static final Boolean ABSENT = Boolean.TRUE;
+
+    /**
+     * Number of write version stripes, a power of 2
+     */
+    private static final int VERSION_STRIPES = 64;
+
+    /**
+     * Thrown (without a stack trace) by a positive cache loader to signal
+     * a path that does not exist, so that concurrent lookups for the same
+     * path still share a single load.
+     */
+    private static final class NotFound extends Exception {
+        private static final long serialVersionUID = 1L;
+        private static final NotFound INSTANCE = new NotFound();
+        private NotFound() {
+            super("not found", null, false, false);
+        }
+    }
+
+    /**
+     * An immutable configuration: the spec and the caches built from it
+     * (both {@code null} if disabled, {@code negative} {@code null} if
+     * negative entries are not cached).
+     */
+    private static final class Config {
+        private final String spec;
+        private final Cache<String,CachedAttributes> positive;
+        private final Cache<String,Boolean> negative;
+        /**
+         * Write versions, striped by key: every {@link AttrCache#put put} or
+         * invalidation bumps the version of its stripe, so that a lookup
+         * that found nothing can tell whether it raced with a write.
+         */
+        private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+        private long version(String key) {
+            return versions.get(key.hashCode() & (VERSION_STRIPES-1));
+        }
+
+        private void written(String key) {
+            versions.incrementAndGet(key.hashCode() & (VERSION_STRIPES-1));
+            if (negative != null) {
+                negative.invalidate(key);
+            }
+        }
+
+        private Config(String spec) {
+            this.spec = spec;
+            if (spec.equalsIgnoreCase(DISABLED)) {
+                positive = null;
+                negative = null;
+            } else {
+                StringBuilder positiveSpec = new StringBuilder();
+                StringBuilder negativeSpec = new StringBuilder();
+                String negativeTTL = null;
+                for (String option : spec.split(",")) {
+                    String trimmed = option.trim();
+                    String name = trimmed.split("=", 2)[0].trim();
+                    if (trimmed.isEmpty()) {
+                        continue;
+                    } else if (name.equals(EXPIRE_NEGATIVE_AFTER_WRITE)) {
+                        negativeTTL = trimmed.substring(trimmed.indexOf('=')+1).trim();
+                        continue;
+                    }
+                    append(positiveSpec, trimmed);
+                    if (!name.equals("expireAfterWrite") && !name.equals("expireAfterAccess")) {
+                        append(negativeSpec, trimmed);
+                    }
+                }
+                positive = build(positiveSpec.toString());
+                if (negativeTTL == null) {
+                    negative = build(positiveSpec.toString());
+                } else if (negativeTTL.matches("0+[dhms]?")) {
+                    negative = null;
+                } else {
+                    negative = build(append(negativeSpec, "expireAfterWrite="+negativeTTL).toString());
+                }
+            }
+        }
 
-    public static synchronized Cache<String,Optional<BasicFileAttributeView>> update(String newspec) {
-        // if the value in the config file is null or missing or blank, this means "default"
-        // if the value in the config file is "disabled", this means null
-        if (Strings.isNullOrEmpty(newspec)) {
-            newspec = DEFAULT_SPEC;
-        } else if (newspec.equalsIgnoreCase("disabled")) {
-            newspec = null;
+        private static StringBuilder append(StringBuilder sb, String option) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            return sb.append(option);
         }
-        // make adjustments
-        if ((spec==null) == (newspec==null) &&
-            (spec==null || spec.equals(newspec))) {
-            // leave it
-        } else if (newspec==null) {
-            spec = null ;
-            cache = null;
-            // logger.debug("Amazon metadata cache disabled");
-        } else {
-            Cache<String,Optional<BasicFileAttributeView>> newcache = CacheBuilder.from(newspec)
-                .build();
-            if (cache!=null) {
-                newcache.putAll(cache.asMap());
+
+        private static <V> Cache<String,V> build(String spec) {
+            CacheBuilder<Object,Object> builder = CacheBuilder.from(spec);
+            if (spec.contains("maximumWeight")) {
+                return builder.weigher((Weigher<String,V>) AttrCache::weigh).build();
+            } else {
+                return builder.build();
             }
-            spec = newspec;
-            cache = newcache;
-            // logger.debug("Amazon metadata cache established: "+spec);
         }
+    }
+
+    private static int weigh(String path, Object value) {
+        return ESTIMATED_ENTRY_BYTES + 2*path.length() +
+                (value instanceof CachedAttributes ? CachedAttributes.ESTIMATED_BYTES : 0);
+    }
+
+    /**
+     * Normalizes a spec: null or empty means {@link #DEFAULT_SPEC}.
+     * @param spec the spec
+     * @return the normalized spec
+     */
+    private static String normalize(String spec) {
+        return Strings.isNullOrEmpty(spec) || spec.trim().isEmpty() ? DEFAULT_SPEC : spec.trim();
+    }
+
+    /**
+     * Returns the cache namespace for a host alias, creating it or
+     * reconfiguring it as needed to match {@code spec}.
+     * @param alias the host alias
+     * @param spec the cache spec (see {@link AttrCache})
+     * @return the namespace
+     */
+    public static AttrCache namespace(String alias, String spec) {
+        AttrCache cache = namespaces.get(alias);
+        if (cache == null) {
+            cache = namespaces.computeIfAbsent(alias, a -> new AttrCache(spec));
+        }
+        cache.update(spec);
         return cache;
     }
 
-    private static String key(String clientkey, Path path) {
-        return clientkey + "[" + path.toString() + "]";
+    private final AtomicReference<Config> config;
+
+    private AttrCache(String spec) {
+        this.config = new AtomicReference<>(new Config(normalize(spec)));
+    }
+
+    /**
+     * Updates the spec of this namespace.  If the spec has changed, a new
+     * empty cache is swapped in atomically.
+     * @param newspec the spec (see {@link AttrCache})
+     * @return {@code this} for fluent use
+     */
+    public AttrCache update(String newspec) {
+        newspec = normalize(newspec);
+        Config current = config.get();
+        while (!current.spec.equals(newspec)) {
+            Config updated = new Config(newspec);
+            if (config.compareAndSet(current, updated)) {
+                break;
+            }
+            current = config.get();
+        }
+        return this;
+    }
+
+    /**
+     * Returns the current spec.
+     * @return the spec
+     */
+    public String spec() {
+        return config.get().spec;
     }
 
-    public static Optional<BasicFileAttributeView> get(String clientkey, Path path,
+    public Optional<BasicFileAttributeView> get(Path path,
             Callable<Optional<BasicFileAttributeView>> getter) throws Exception {
-        if (cache!=null) {
-            return cache.get(key(clientkey, path), getter);
-        } else {
+        Config current = config.get();
+        if (current.positive == null) {
             return getter.call();
         }
+        String key = path.toString();
+        if (current.negative != null && current.negative.getIfPresent(key) != null) {
+            return Optional.empty();
+        }
+        long version = current.version(key);
+        try {
+            CachedAttributes attrs = current.positive.get(paths.intern(key), () -> {
+                Optional<BasicFileAttributeView> attr = getter.call();
+                if (!attr.isPresent()) {
+                    throw NotFound.INSTANCE;
+                }
+                return CachedAttributes.of(attr.get());
+            });
+            return Optional.of(attrs.view(path.name()));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof NotFound) {
+                if (current.negative != null) {
+                    // a write since the lookup started may have raced past the
+                    // miss: it bumps the version before invalidating, so either
+                    // it sees this entry or this check sees the new version
+                    current.negative.put(paths.intern(key), ABSENT);
+                    if (current.version(key) != version) {
+                        current.negative.invalidate(key);
+                    }
+                }
+                return Optional.empty();
+            } else if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
     }
 
-    public static void put(String clientkey, Path path, BasicFileAttributeView attr) {
-        if (cache!=null) {
-            cache.put(key(clientkey, path), Optional.of(attr));
+    public void put(Path path, BasicFileAttributeView attr) {
+        Config current = config.get();
+        if (current.positive != null) {
+            String key = paths.intern(path.toString());
+            current.positive.put(key, CachedAttributes.of(attr));
+            current.written(key);
         }
     }
 
-    public static void invalidate(String clientkey, Path path) {
-        if (cache!=null) {
-            cache.invalidate(key(clientkey, path));
+    public void invalidate(Path path) {
+        Config current = config.get();
+        if (current.positive != null) {
+            String key = path.toString();
+            current.positive.invalidate(key);
+            current.written(key);
         }
     }
 
-    private AttrCache() {
+    public void invalidateAll(Collection<Path> paths) {
+        Config current = config.get();
+        if (current.positive != null && !paths.isEmpty()) {
+            List<String> keys = new ArrayList<>(paths.size());
+            paths.forEach(path -> keys.add(path.toString()));
+            current.positive.invalidateAll(keys);
+            keys.forEach(current::written);
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,167 @@
+package com.cleo.labs.connector.common;
+
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.cleo.connector.api.ConnectorException;
+
+/**
+ * Coalesces concurrent attribute lookups for the same group of paths
+ * (e.g. a bucket) into {@link Client#attr(List)} calls that clients can
+ * batch, instead of one round trip each.
+ * <p/>
+ * Lookups are grouped the way a group commit is: while a batch for the
+ * group is in flight, new lookups queue, and when it completes one of the
+ * waiting callers sends everything queued (up to {@link #MAX_BATCH}) as
+ * the next batch.  A lone lookup goes out at once, so nothing waits unless
+ * it would be waiting for a round trip anyway.  An optional window delays
+ * each batch to collect more lookups.
+ * <p/>
+ * A batch is sent with the client of its first lookup, so the lookups of a
+ * group must be answerable by any of its clients.  If a batch fails, each
+ * of its lookups is retried with its own client.
+ * <p/>
+ * Coalescers are shared per host alias: use {@link #namespace(String, long)}.
+ */
+public class AttrCoalescer {
+
+    public static final int MAX_BATCH = 1000;
+
+    private static final ConcurrentMap<String,AttrCoalescer> namespaces = new ConcurrentHashMap<>();
+
+    private static class Lookup {
+        private final Client client;
+        private final Path path;
+        private boolean done = false;
+        private boolean failed = false;
+        private Optional<BasicFileAttributeView> result = Optional.empty();
+
+        private Lookup(Client client, Path path) {
+            this.client = client;
+            this.path = path;
+        }
+    }
+
+    private static class Group {
+        private boolean running = false;
+        private Map<String,Lookup> queued = new LinkedHashMap<>();
+    }
+
+    private final Map<String,Group> groups = new LinkedHashMap<>();
+    private volatile long windowNanos;
+
+    /**
+     * Returns the coalescer for a host alias, setting its window.
+     * @param alias the host alias
+     * @param windowMillis the time to wait collecting lookups before each batch, {@code 0} not to wait
+     * @return the (shared) coalescer
+     */
+    public static AttrCoalescer namespace(String alias, long windowMillis) {
+        AttrCoalescer coalescer = namespaces.computeIfAbsent(alias, a -> new AttrCoalescer());
+        coalescer.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+        return coalescer;
+    }
+
+    /**
+     * Gets the attributes of a path, in a batch with any concurrent lookups
+     * in the same group.
+     * @param group the group, e.g. the bucket
+     * @param client the client for the path
+     * @param path the path, as the client knows it
+     * @return the attributes
+     * @throws ConnectorException
+     */
+    public Optional<BasicFileAttributeView> attr(String group, Client client, Path path) throws ConnectorException {
+        Lookup lookup;
+        Group g;
+        synchronized (this) {
+            g = groups.computeIfAbsent(group, k -> new Group());
+            lookup = g.queued.computeIfAbsent(path.toString(), k -> new Lookup(client, path));
+        }
+        while (true) {
+            // the group stays registered while the lookup is queued in it
+            synchronized (this) {
+                while (!lookup.done && g.running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new ConnectorException("interrupted", e);
+                    }
+                }
+                if (lookup.done) {
+                    break;
+                }
+                g.running = true;
+            }
+            if (windowNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(windowNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt(); // send the batch anyway
+                }
+            }
+            List<Lookup> batch;
+            synchronized (this) {
+                batch = take(g);
+            }
+            try {
+                run(batch);
+            } finally {
+                synchronized (this) {
+                    g.running = false;
+                    if (g.queued.isEmpty()) {
+                        groups.remove(group);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+        if (lookup.failed) {
+            return client.attr(path);
+        }
+        return lookup.result;
+    }
+
+    private static List<Lookup> take(Group group) {
+        List<Lookup> batch = new ArrayList<>();
+        Iterator<Lookup> i = group.queued.values().iterator();
+        while (i.hasNext() && batch.size() < MAX_BATCH) {
+            batch.add(i.next());
+            i.remove();
+        }
+        return batch;
+    }
+
+    private void run(List<Lookup> batch) {
+        List<Path> paths = new ArrayList<>(batch.size());
+        for (Lookup lookup : batch) {
+            paths.add(lookup.path);
+        }
+        List<Optional<BasicFileAttributeView>> results = null;
+        try {
+            results = batch.get(0).client.attr(paths);
+        } catch (Exception e) {
+            // each lookup retries on its own
+        }
+        synchronized (this) {
+            for (int i = 0; i < batch.size(); i++) {
+                Lookup lookup = batch.get(i);
+                if (results == null) {
+                    lookup.failed = true;
+                } else {
+                    lookup.result = results.get(i);
+                }
+                lookup.done = true;
+            }
+        }
+    }
+}
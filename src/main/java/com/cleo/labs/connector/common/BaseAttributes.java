@@ -0,0 +1,119 @@
+package com.cleo.labs.connector.common;
+
+import java.io.IOException;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Date;
+
+/**
+ * Read-only file attribute view over a size, modification time and type,
+ * shared by {@link EntryAttributes} and the views of {@link CachedAttributes}.
+ */
+public abstract class BaseAttributes implements DosFileAttributes, DosFileAttributeView {
+
+    /**
+     * Describes what the attributes are of, for error messages.
+     * @return the description
+     */
+    protected abstract String description();
+
+    /**
+     * Returns the modification time.
+     * @return the time, or {@code null} if unknown
+     */
+    protected abstract FileTime modified();
+
+    @Override
+    public FileTime lastModifiedTime() {
+        FileTime modified = modified();
+        if (modified != null) {
+            return modified;
+        } else {
+            return FileTime.fromMillis(new Date().getTime());
+        }
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        throw new UnsupportedOperationException("Getting 'lastAccessTime' not supported on "+description());
+    }
+
+    @Override
+    public FileTime creationTime() {
+        throw new UnsupportedOperationException("Getting 'creationTime' not supported on "+description());
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return !isDirectory();
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return false;
+    }
+
+    @Override
+    public boolean isOther() {
+        return false;
+    }
+
+    @Override
+    public Object fileKey() {
+        throw new UnsupportedOperationException("Getting 'fileKey' not supported on "+description());
+    }
+
+    @Override
+    public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException {
+        if (lastModifiedTime != null || lastAccessTime != null || createTime != null) {
+            throw new UnsupportedOperationException("setTimes() not supported on "+description());
+        }
+    }
+
+    @Override
+    public DosFileAttributes readAttributes() throws IOException {
+        return this;
+    }
+
+    @Override
+    public void setReadOnly(boolean value) throws IOException {
+        // TODO update ACL
+    }
+
+    @Override
+    public void setHidden(boolean value) throws IOException {
+        throw new UnsupportedOperationException("setHidden() not supported on "+description());
+    }
+
+    @Override
+    public void setSystem(boolean value) throws IOException {
+        throw new UnsupportedOperationException("setSystem() not supported on "+description());
+    }
+
+    @Override
+    public void setArchive(boolean value) throws IOException {
+        throw new UnsupportedOperationException("setArchive() not supported on "+description());
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        // TODO check ACL
+        return false;
+    }
+
+    @Override
+    public boolean isHidden() {
+        return false;
+    }
+
+    @Override
+    public boolean isArchive() {
+        return false;
+    }
+
+    @Override
+    public boolean isSystem() {
+        return false;
+    }
+}
@@ -0,0 +1,118 @@
+package com.cleo.labs.connector.common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.ZoneOffset;
+
+/**
+ * Compact attribute record held in the {@link AttrCache}: just the size,
+ * modification time and type, without the {@link Entry} and {@link Path}
+ * retained by {@link EntryAttributes}.  Use {@link #view(String)} to
+ * present the record as a file attribute view.
+ */
+public final class CachedAttributes {
+
+    /**
+     * Value of {@link #modified} when the modification time is unknown
+     */
+    private static final long UNKNOWN = Long.MIN_VALUE;
+
+    /**
+     * Estimated heap footprint of a record, including its {@code Optional} wrapper
+     */
+    public static final int ESTIMATED_BYTES = 48;
+
+    private final long size;
+    private final long modified;
+    private final boolean directory;
+    private final boolean named; // whether the captured view reported a name
+
+    public CachedAttributes(long size, long modified, boolean directory, boolean named) {
+        this.size = size;
+        this.modified = modified;
+        this.directory = directory;
+        this.named = named;
+    }
+
+    /**
+     * Captures the cacheable attributes from a view.
+     * @param view the view (typically an {@link EntryAttributes})
+     * @return the compact record
+     * @throws UncheckedIOException if another kind of view can not be read
+     */
+    public static CachedAttributes of(BasicFileAttributeView view) {
+        if (view instanceof EntryAttributes) {
+            Entry entry = ((EntryAttributes) view).entry;
+            long modified = entry.getDate() == null ? UNKNOWN
+                    : entry.getDate().toInstant(ZoneOffset.UTC).toEpochMilli();
+            return new CachedAttributes(entry.size(), modified, entry.isDir(), !view.name().isEmpty());
+        } else {
+            try {
+                BasicFileAttributes attrs = view.readAttributes();
+                return new CachedAttributes(attrs.size(), attrs.lastModifiedTime().toMillis(), attrs.isDirectory(),
+                        !view.name().isEmpty());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns a file attribute view of this record for a named file.  As with
+     * the view the record was captured from, the view is named only if the
+     * captured view was:  an {@link EntryAttributes} whose {@link Entry} path
+     * is not yet set reports an empty name, and so does its cached view.
+     * @param name the file name returned by {@link BasicFileAttributeView#name()}
+     * @return the view
+     */
+    public View view(String name) {
+        return new View(named ? name : "");
+    }
+
+    /**
+     * A read-only file attribute view over the enclosing record.
+     */
+    public class View extends BaseAttributes {
+        private final String name;
+
+        private View(String name) {
+            this.name = name;
+        }
+
+        @Override
+        protected String description() {
+            return "cached attributes";
+        }
+
+        @Override
+        protected FileTime modified() {
+            return modified == UNKNOWN ? null : FileTime.fromMillis(modified);
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+    }
+}
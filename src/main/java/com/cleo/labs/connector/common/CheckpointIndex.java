@@ -0,0 +1,304 @@
+package com.cleo.labs.connector.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A persistent index of the object names and generations seen in a listing,
+ * used to return only what is new or changed since the previous listing.
+ * <p/>
+ * The index is an open addressing hash table in a memory-mapped file: a
+ * 32 byte header followed by 16 byte slots holding a 64 bit hash of the name
+ * and the generation.  Lookups and updates touch only the slots involved,
+ * each {@link #advance} forces its updates to the file before returning,
+ * and the table survives restarts without being loaded or saved.  The
+ * table doubles when half full (releasing the old mapping), and is
+ * rebuilt from the current listing when it holds names that are gone.
+ * <p/>
+ * The checkpoint advances when {@link #advance} returns, which is when the
+ * listing is answered, not when the caller has finished processing the
+ * items returned:  an item that is returned but then fails (or is lost to
+ * a crash) is not returned again unless its generation changes.
+ * <p/>
+ * Instances are shared per file: use {@link #open(File)}.
+ */
+public class CheckpointIndex {
+
+    private static final long MAGIC = 0x434b5054_49445831L; // "CKPTIDX1"
+    private static final int HEADER = 32;
+    private static final int SLOT = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long EMPTY = 0L;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final ConcurrentMap<String,CheckpointIndex> indexes = new ConcurrentHashMap<>();
+
+    private final RandomAccessFile file;
+    private MappedByteBuffer map;
+    private int capacity;
+    private int size;
+
+    /**
+     * Returns the index stored in a file, creating the file if needed.
+     * @param file the index file
+     * @return the (shared) index
+     * @throws IOException
+     */
+    public static CheckpointIndex open(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        CheckpointIndex index = indexes.get(key);
+        if (index == null) {
+            synchronized (indexes) {
+                index = indexes.get(key);
+                if (index == null) {
+                    index = new CheckpointIndex(new File(key));
+                    indexes.put(key, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns a file name (without directory) for the index of a listing,
+     * derived from the components identifying it.
+     * @param components e.g. the host alias, bucket and prefix
+     * @return a file name
+     */
+    public static String name(String...components) {
+        return HASH.hashString(String.join("\u0000", components), StandardCharsets.UTF_8).toString() + ".idx";
+    }
+
+    private CheckpointIndex(File path) throws IOException {
+        File parent = path.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException(String.format("can not create directory '%s'", parent));
+        }
+        this.file = new RandomAccessFile(path, "rw");
+        if (file.length() >= HEADER) {
+            map(file.length());
+            if (map.getLong(0) == MAGIC && HEADER + (long) map.getInt(8) * SLOT <= file.length()) {
+                capacity = map.getInt(8);
+                size = map.getInt(12);
+                return;
+            }
+        }
+        // new or unrecognizable: start over
+        map(HEADER + (long) INITIAL_CAPACITY * SLOT);
+        clear(INITIAL_CAPACITY);
+    }
+
+    private void map(long length) throws IOException {
+        MappedByteBuffer old = map;
+        map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        if (old != null) {
+            unmap(old);
+        }
+    }
+
+    /**
+     * Releases a mapping now instead of whenever the buffer is collected, so
+     * that a growing table doesn't keep every earlier mapping alive.  This
+     * is best effort:  if the JVM offers no way to do it, the collector will.
+     * @param buffer the mapping, which must not be used again
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            try {
+                // Java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object clean = cleaner.invoke(buffer);
+                if (clean != null) {
+                    clean.getClass().getMethod("clean").invoke(clean);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException ignore) {
+            // left to the garbage collector
+        }
+    }
+
+    private void clear(int newCapacity) {
+        capacity = newCapacity;
+        size = 0;
+        for (int i = 0; i < capacity; i++) {
+            map.putLong(HEADER + i * SLOT, EMPTY);
+        }
+        map.putLong(0, MAGIC);
+        map.putInt(8, capacity);
+        map.putInt(12, size);
+    }
+
+    private static long hash(String name) {
+        long hash = HASH.hashString(name, StandardCharsets.UTF_8).asLong();
+        return hash == EMPTY ? 1L : hash;
+    }
+
+    /**
+     * Returns the slot holding {@code hash}, or the empty slot where it belongs.
+     */
+    private int slot(long hash) {
+        int mask = capacity - 1;
+        int i = (int) (hash ^ (hash >>> 32)) & mask;
+        while (true) {
+            long key = map.getLong(HEADER + i * SLOT);
+            if (key == hash || key == EMPTY) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void put(long hash, long generation) throws IOException {
+        if ((size + 1) * 2 > capacity) {
+            grow();
+        }
+        int i = slot(hash);
+        if (map.getLong(HEADER + i * SLOT) == EMPTY) {
+            map.putLong(HEADER + i * SLOT, hash);
+            size++;
+            map.putInt(12, size);
+        }
+        map.putLong(HEADER + i * SLOT + 8, generation);
+    }
+
+    private void grow() throws IOException {
+        long[] keys = new long[size];
+        long[] values = new long[size];
+        int n = 0;
+        for (int i = 0; i < capacity; i++) {
+            long key = map.getLong(HEADER + i * SLOT);
+            if (key != EMPTY) {
+                keys[n] = key;
+                values[n++] = map.getLong(HEADER + i * SLOT + 8);
+            }
+        }
+        int newCapacity = capacity * 2;
+        map(HEADER + (long) newCapacity * SLOT);
+        clear(newCapacity);
+        for (int i = 0; i < n; i++) {
+            put(keys[i], values[i]);
+        }
+    }
+
+    /**
+     * Returns the number of names in the index.
+     * @return the size
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Chooses which of the new or changed items of a listing are returned,
+     * e.g. the first few in some order.
+     */
+    public interface Selector<T> {
+        /**
+         * @param changed the new or changed items, in listing order
+         * @return the items to return and record
+         * @throws IOException
+         */
+        List<T> select(List<T> changed) throws IOException;
+    }
+
+    /**
+     * Filters a complete listing down to the items that are new or whose
+     * generation changed since the previous call, and records the listing
+     * as the new checkpoint.
+     * @param listing the complete current listing
+     * @param name extracts the name of an item
+     * @param generation extracts the generation of an item (0 if it has none)
+     * @return the new or changed items, in listing order
+     * @throws IOException
+     */
+    public <T> List<T> advance(List<T> listing, Function<T,String> name, ToLongFunction<T> generation)
+            throws IOException {
+        return advance(listing, name, generation, changed -> changed);
+    }
+
+    /**
+     * Filters a complete listing down to the items that are new or whose
+     * generation changed since the previous call, and advances the
+     * checkpoint for the items selected from them only: the others are
+     * still new or changed in the next call.  The checkpoint is written to
+     * the file before this returns.
+     * @param listing the complete current listing
+     * @param name extracts the name of an item
+     * @param generation extracts the generation of an item (0 if it has none)
+     * @param select chooses the new or changed items to return
+     * @return the selected items
+     * @throws IOException
+     */
+    public synchronized <T> List<T> advance(List<T> listing, Function<T,String> name, ToLongFunction<T> generation,
+            Selector<T> select) throws IOException {
+        int count = listing.size();
+        long[] hashes = new long[count];
+        long[] generations = new long[count];
+        long[] previous = new long[count];
+        boolean[] known = new boolean[count];
+        int present = 0;
+        List<T> changed = new ArrayList<>();
+        for (int n = 0; n < count; n++) {
+            T item = listing.get(n);
+            hashes[n] = hash(name.apply(item));
+            generations[n] = generation.applyAsLong(item);
+            int i = slot(hashes[n]);
+            if (map.getLong(HEADER + i * SLOT) != EMPTY) {
+                known[n] = true;
+                previous[n] = map.getLong(HEADER + i * SLOT + 8);
+                present++;
+            }
+            if (!known[n] || previous[n] != generations[n]) {
+                changed.add(item);
+            }
+        }
+        List<T> selected = select.select(changed);
+        Set<T> recorded = Collections.newSetFromMap(new IdentityHashMap<>());
+        recorded.addAll(selected);
+        if (present < size) {
+            // some names are gone: rebuild from the listing so the index doesn't grow forever
+            clear(capacity);
+            for (int n = 0; n < count; n++) {
+                if (recorded.contains(listing.get(n))) {
+                    put(hashes[n], generations[n]);
+                } else if (known[n]) {
+                    put(hashes[n], previous[n]);
+                }
+            }
+        } else {
+            for (int n = 0; n < count; n++) {
+                if (recorded.contains(listing.get(n))) {
+                    put(hashes[n], generations[n]);
+                }
+            }
+        }
+        map.force();
+        return selected;
+    }
+}
@@ -1,11 +1,16 @@
 package com.cleo.labs.connector.common;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.attribute.BasicFileAttributeView;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
 import com.cleo.connector.api.ConnectorException;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 
 public class Client {
 
@@ -14,11 +19,101 @@ public class Client {
                 ConnectorException.Category.fileNonExistentOrNoAccess);
     }
 
+    /**
+     * Lists a directory as it is read, so that very large listings need not
+     * be held in memory.  The default returns {@link #list(Path)}: clients
+     * that read listings in pages should override it.
+     * @param path the directory
+     * @return the entries, read lazily as they are iterated
+     * @throws ConnectorException
+     */
+    public Iterable<Entry> iterate(Path path) throws ConnectorException {
+        return list(path);
+    }
+
+    /**
+     * Lists the entries of a directory whose names match a filter, as they
+     * are read.  The default filters {@link #iterate(Path)}: clients that
+     * can list by prefix should override it to list only
+     * {@link NameFilter#prefix()}.
+     * @param path the directory
+     * @param filter the filter, {@code null} for all entries
+     * @return the matching entries, read lazily as they are iterated
+     * @throws ConnectorException
+     */
+    public Iterable<Entry> iterate(Path path, NameFilter filter) throws ConnectorException {
+        if (filter == null) {
+            return iterate(path);
+        }
+        return Iterables.filter(iterate(path), entry -> filter.matches(entry.getPathObject().name()));
+    }
+
+    /**
+     * Lists the entries of a directory whose names match a filter.
+     * @param path the directory
+     * @param filter the filter, {@code null} for all entries
+     * @return the matching entries
+     * @throws ConnectorException
+     */
+    public List<Entry> list(Path path, NameFilter filter) throws ConnectorException {
+        return filter == null ? list(path) : Lists.newArrayList(iterate(path, filter));
+    }
+
+    /**
+     * Lists a directory, optionally including the contents of all its
+     * subdirectories.  The default recursive implementation walks the
+     * tree with {@link #list(Path)}: clients that can list a subtree in
+     * fewer calls should override it.
+     * @param path the directory
+     * @param recursive {@code true} to include subdirectories
+     * @return the entries, subdirectories before their contents
+     * @throws ConnectorException
+     */
+    public List<Entry> list(Path path, boolean recursive) throws ConnectorException {
+        List<Entry> entries = list(path);
+        if (!recursive) {
+            return entries;
+        }
+        List<Entry> result = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            result.add(entry);
+            if (entry.isDir()) {
+                result.addAll(list(entry.getPathObject(), true));
+            }
+        }
+        return result;
+    }
+
     public boolean delete(Path path) throws ConnectorException {
         throw new ConnectorException(String.format("'%s' does not exist or is not accessible", path.toString()),
                 ConnectorException.Category.fileNonExistentOrNoAccess);
     }
 
+    /**
+     * Deletes several objects, continuing past objects that fail.  The
+     * default deletes them one at a time: clients that can batch requests
+     * should override it.
+     * @param paths the objects to delete
+     * @param deleted collects the objects deleted
+     * @return a description of each object that could not be deleted
+     * @throws ConnectorException if the deletes could not be attempted at all
+     */
+    public List<String> delete(List<Path> paths, List<Path> deleted) throws ConnectorException {
+        List<String> errors = new ArrayList<>();
+        for (Path path : paths) {
+            try {
+                if (delete(path)) {
+                    deleted.add(path);
+                } else {
+                    errors.add(String.format("'%s': does not exist", path));
+                }
+            } catch (ConnectorException e) {
+                errors.add(String.format("'%s': %s", path, e.getMessage()));
+            }
+        }
+        return errors;
+    }
+
     public boolean rmdir(Path path) throws ConnectorException {
         throw new ConnectorException(String.format("'%s' does not exist or is not accessible", path.toString()),
                 ConnectorException.Category.fileNonExistentOrNoAccess);
@@ -48,12 +143,106 @@ public class Client {
         throw new ConnectorException(String.format("'%s' is not accessible.", path.toString()));
     }
 
+    /**
+     * Uploads a source that can be reopened at an offset, so that clients
+     * able to resume an interrupted upload can continue where it stopped.
+     * The default opens the source from the start and uploads it.
+     * @param path the object
+     * @param source opens the source at an offset
+     * @param fingerprint identifies the source content, {@code null} if unknown
+     * @return {@code true} if the upload succeeded
+     * @throws ConnectorException
+     */
+    public boolean upload(Path path, RestartableInputStream.Opener source, String fingerprint) throws ConnectorException {
+        InputStream in;
+        try {
+            in = source.open(0);
+        } catch (IOException e) {
+            throw new ConnectorException(String.format("'%s' could not be read for upload", path), e);
+        }
+        return upload(path, in);
+    }
+
     public InputStream download(Path path) throws ConnectorException {
         throw new ConnectorException(String.format("'%s' is not accessible.", path.toString()));
     }
 
+    /**
+     * Downloads an object starting at an offset, e.g. to resume a transfer
+     * that failed partway.  The default downloads from the start and skips
+     * to the offset: clients that can read from an offset should override it.
+     * @param path the object
+     * @param offset the offset of the first byte to return
+     * @return the content from {@code offset}
+     * @throws ConnectorException
+     */
+    public InputStream download(Path path, long offset) throws ConnectorException {
+        return skip(path, download(path), offset);
+    }
+
+    /**
+     * Skips a downloaded stream forward to an offset, closing it if that
+     * fails.
+     * @param path the object, for the error message
+     * @param in the content from the start
+     * @param offset the offset of the first byte to return
+     * @return {@code in}, positioned at {@code offset}
+     * @throws ConnectorException
+     */
+    protected static InputStream skip(Path path, InputStream in, long offset) throws ConnectorException {
+        try {
+            ByteStreams.skipFully(in, offset);
+            return in;
+        } catch (IOException e) {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+                // oh well
+            }
+            throw new ConnectorException(String.format("'%s' could not be read from offset %d", path, offset), e);
+        }
+    }
+
+    /**
+     * Downloads the version of an object described by a listed entry.  The
+     * default downloads whatever is current: clients that can read a
+     * specific generation should override it.
+     * @param entry the entry
+     * @return the content
+     * @throws ConnectorException
+     */
+    public InputStream download(Entry entry) throws ConnectorException {
+        return download(entry.getPathObject());
+    }
+
+    /**
+     * Returns the current generation of an object, e.g. to check that
+     * content read earlier is still current.  The default does not know.
+     * @param path the object
+     * @return the generation, {@code 0} if unknown, {@code -1} if the object does not exist
+     * @throws ConnectorException
+     */
+    public long generation(Path path) throws ConnectorException {
+        return 0;
+    }
+
     public Optional<BasicFileAttributeView> attr(Path path) throws ConnectorException {
         throw new ConnectorException(String.format("'%s' does not exist or is not accessible", path.toString()),
                 ConnectorException.Category.fileNonExistentOrNoAccess);
     }
+
+    /**
+     * Gets the attributes of several paths.  The default gets them one at
+     * a time: clients that can batch requests should override it.
+     * @param paths the paths
+     * @return the attributes of each path, in the same order
+     * @throws ConnectorException
+     */
+    public List<Optional<BasicFileAttributeView>> attr(List<Path> paths) throws ConnectorException {
+        List<Optional<BasicFileAttributeView>> result = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            result.add(attr(path));
+        }
+        return result;
+    }
 }
\ No newline at end of file
@@ -3,17 +3,52 @@ package com.cleo.labs.connector.common;
 import static com.cleo.connector.api.command.ConnectorCommandName.DIR;
 
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import com.cleo.connector.api.ConnectorException;
 import com.cleo.connector.api.command.ConnectorCommandName;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 public class ClientResolver {
 
+    /**
+     * How long a shared resolver reuses a container client, bounding how
+     * long a client built for a container changed elsewhere (e.g. deleted
+     * and created again) is kept.
+     */
+    public static final long REUSE_SECONDS = 300;
+
+    private static final int MAX_CONTAINERS = 1000;
+
+    private static final ConcurrentMap<String,Reused> shared = new ConcurrentHashMap<>();
+
+    /**
+     * The clients reused for a host, built from one configuration.
+     */
+    private static class Reused {
+        private final String fingerprint;
+        private final Cache<String,Client> containers = CacheBuilder.newBuilder()
+                .maximumSize(MAX_CONTAINERS)
+                .expireAfterWrite(REUSE_SECONDS, TimeUnit.SECONDS)
+                .build();
+        private volatile Client account = null;
+
+        private Reused(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
     private String container;
     private Path prefix;
     private AccountSupplier accountSupplier;
     private ContainerSupplier containerSupplier;
+    private Reused reused = null;
 
     public interface AccountSupplier {
         Client get() throws ConnectorException, IOException;
@@ -29,6 +64,77 @@ public class ClientResolver {
         this.containerSupplier = containerSupplier;
     }
 
+    /**
+     * Returns a resolver for a host that reuses the clients resolved for
+     * the host before, one for the account and one for each container,
+     * instead of building new ones for every command.  The clients must
+     * therefore be safe to share between threads.  Only the clients are
+     * shared: clients not built yet are built with the suppliers passed
+     * here, so a resolver never holds on to an earlier command.  The
+     * clients are dropped when the configuration they are built from
+     * changes.
+     * @param name the host alias
+     * @param fingerprint summarizes the configuration the clients are built from
+     * @param container the configured container, if any
+     * @param prefix the configured prefix, if any
+     * @param accountSupplier builds the account-level client
+     * @param containerSupplier builds a container-level client
+     * @return a resolver reusing the shared clients
+     */
+    public static ClientResolver shared(String name, String fingerprint, String container, Path prefix,
+            AccountSupplier accountSupplier, ContainerSupplier containerSupplier) {
+        Reused reused = shared.get(name);
+        if (reused == null || !reused.fingerprint.equals(fingerprint)) {
+            reused = shared.compute(name, (n, existing) -> existing != null && existing.fingerprint.equals(fingerprint)
+                    ? existing
+                    : new Reused(fingerprint));
+        }
+        ClientResolver resolver = new ClientResolver(container, prefix, accountSupplier, containerSupplier);
+        resolver.reused = reused;
+        return resolver;
+    }
+
+    /**
+     * Drops a reused container client after the container named by a full
+     * path (with a single node) was created or removed.
+     * @param fullPath the full path of the container
+     */
+    public void invalidate(Path fullPath) {
+        if (reused != null && fullPath.size() == 1) {
+            reused.containers.invalidate(fullPath.node(0));
+        }
+    }
+
+    private Client account() throws ConnectorException, IOException {
+        if (reused == null) {
+            return accountSupplier.get();
+        }
+        Client client = reused.account;
+        if (client == null) {
+            client = accountSupplier.get();
+            reused.account = client;
+        }
+        return client;
+    }
+
+    private Client container(Path container) throws ConnectorException, IOException {
+        if (reused == null) {
+            return containerSupplier.get(container);
+        }
+        try {
+            return reused.containers.get(container.node(0), () -> containerSupplier.get(container));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof ConnectorException) {
+                throw (ConnectorException) e.getCause();
+            } else if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ConnectorException(String.format("'%s' is not accessible", container), e.getCause());
+        }
+    }
+
     /**
      * Resolves a supplied path adding path elements as configured for the resolver:
      * <pre>
@@ -63,13 +169,13 @@ public class ClientResolver {
             chroots = prefix.size();
         }
         if (fullPath.empty() || (fullPath.size()==1 && command != DIR)) {
-            return new Resolved(accountSupplier.get(), fullPath, fullPath)
+            return new Resolved(account(), fullPath, fullPath)
                     .edit(true);
         } else {
             if (Strings.isNullOrEmpty(container)) {
                 prepend = fullPath.node(0);
             }
-            return new Resolved(containerSupplier.get(fullPath.slice(0, 1)), fullPath.slice(1, null), fullPath)
+            return new Resolved(container(fullPath.slice(0, 1)), fullPath.slice(1, null), fullPath)
                     .edit(prepend, chroots);
         }
     }
@@ -162,7 +268,7 @@ public class ClientResolver {
                 entry.setPathObject(entry.getPathObject().insert(0, new Path().child(prepend)));
             }
             if (suppressDirectoryMark) {
-                entry.setPathObject(new Path(entry.getPathObject()).markDirectories(false));
+                entry.setPathObject(entry.getPathObject().markDirectories(false));
             }
             entry.setPath(entry.getPathObject().toURIPath());
             return entry;
@@ -0,0 +1,321 @@
+package com.cleo.labs.connector.common;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.cleo.connector.api.command.ConnectorCommandName;
+import com.cleo.connector.api.command.ConnectorCommandResult;
+import com.google.common.base.Strings;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * An append-only trace of the commands received by connector clients, one
+ * tab separated line per command:
+ * <pre>
+ *     start-millis  duration-micros  alias  command  status  bytes  items  path  destination
+ * </pre>
+ * {@code bytes} and {@code items} are -1 when they don't apply, and tabs,
+ * newlines and backslashes in paths are backslash escaped.  All hosts
+ * configured with the same trace file share one writer, so a trace captures
+ * the interleaving of commands across hosts.  A trace file that can not be
+ * opened is reported once and then ignored:  tracing never fails a command.
+ * <p/>
+ * Use a {@link Record} in a try-with-resources block around the command:
+ * <pre>
+ *     try (CommandTrace.Record trace = CommandTrace.start(file, alias, GET, path, null, logger::debug)) {
+ *         transfer(in, trace.count(out), true);
+ *         return trace.result(new ConnectorCommandResult(Status.Success));
+ *     }
+ * </pre>
+ */
+public class CommandTrace {
+
+    public static final String HEADER = "# command trace v1: start-millis duration-micros alias command status bytes items path destination";
+
+    /**
+     * Written as the status when the command throws
+     */
+    public static final String EXCEPTION = "Exception";
+
+    /**
+     * Buffered lines are flushed once they are this old
+     */
+    private static final long FLUSH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final ConcurrentMap<String,CommandTrace> traces = new ConcurrentHashMap<>();
+
+    /**
+     * Trace files that could not be opened, and are no longer tried
+     */
+    private static final Set<String> broken = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(CommandTrace::flushAll));
+    }
+
+    private final Writer writer;
+    private long lastFlush = System.nanoTime();
+
+    private CommandTrace(File file) throws IOException {
+        boolean empty = !file.exists() || file.length() == 0;
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        if (empty) {
+            writer.write(HEADER);
+            writer.write('\n');
+        }
+    }
+
+    private static CommandTrace trace(String file) throws IOException {
+        String key = new File(file).getAbsolutePath();
+        CommandTrace trace = traces.get(key);
+        if (trace == null) {
+            synchronized (traces) {
+                trace = traces.get(key);
+                if (trace == null) {
+                    trace = new CommandTrace(new File(key));
+                    traces.put(key, trace);
+                }
+            }
+        }
+        return trace;
+    }
+
+    private synchronized void write(String line) {
+        try {
+            writer.write(line);
+            long now = System.nanoTime();
+            if (now - lastFlush > FLUSH_NANOS) {
+                writer.flush();
+                lastFlush = now;
+            }
+        } catch (IOException ignore) {
+            // a broken trace must not fail the command
+        }
+    }
+
+    private synchronized void flush() {
+        try {
+            writer.flush();
+        } catch (IOException ignore) {
+            // nothing to be done
+        }
+    }
+
+    /**
+     * Flushes all trace files.  Lines are otherwise flushed in batches, at
+     * most a second apart while commands are arriving, and at shutdown.
+     */
+    public static void flushAll() {
+        traces.values().forEach(CommandTrace::flush);
+    }
+
+    /**
+     * Starts recording a command.
+     * @param file the trace file, or {@code null} or empty to disable tracing
+     * @param alias the host alias
+     * @param command the command
+     * @param path the source path as received
+     * @param destination the destination path as received, or {@code null}
+     * @param log receives a message the first time the trace file can not be opened
+     * @return a Record to close when the command completes (a disabled one
+     * if the trace file can not be opened)
+     */
+    public static Record start(String file, String alias, ConnectorCommandName command, String path, String destination,
+            Consumer<String> log) {
+        if (Strings.isNullOrEmpty(file)) {
+            return NONE;
+        }
+        String key = new File(file).getAbsolutePath();
+        if (broken.contains(key)) {
+            return NONE;
+        }
+        try {
+            return new Record(trace(key), alias, command, path, destination);
+        } catch (IOException e) {
+            if (broken.add(key)) {
+                log.accept(String.format("command trace '%s' can not be opened, tracing disabled: %s", key, e));
+            }
+            return NONE;
+        }
+    }
+
+    /**
+     * Parses the escaped form of a path field.
+     * @param field the field
+     * @return the path, or {@code null} for an empty field
+     */
+    public static String unescape(String field) {
+        if (field.isEmpty()) {
+            return null;
+        } else if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder sb = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i+1 < field.length()) {
+                c = field.charAt(++i);
+                c = c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static StringBuilder escape(StringBuilder sb, String field) {
+        if (field != null) {
+            for (int i = 0; i < field.length(); i++) {
+                char c = field.charAt(i);
+                switch (c) {
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\\': sb.append("\\\\"); break;
+                default:   sb.append(c);
+                }
+            }
+        }
+        return sb;
+    }
+
+    /**
+     * A disabled Record, shared by all untraced commands: everything passes
+     * through untouched and nothing is recorded.
+     */
+    private static final Record NONE = new Record(null, null, null, null, null);
+
+    /**
+     * A command in progress.
+     */
+    public static class Record implements AutoCloseable {
+        private final CommandTrace trace;
+        private final String alias;
+        private final ConnectorCommandName command;
+        private final String path;
+        private final String destination;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private String status = EXCEPTION;
+        private long bytes = -1;
+        private long items = -1;
+        private CountingInputStream in = null;
+        private CountingOutputStream out = null;
+
+        private Record(CommandTrace trace, String alias, ConnectorCommandName command, String path, String destination) {
+            this.trace = trace;
+            this.alias = alias;
+            this.command = command;
+            this.path = path;
+            this.destination = destination;
+        }
+
+        /**
+         * Wraps a stream to count the bytes read from it.
+         * @param in the stream
+         * @return the counting stream ({@code in} itself if tracing is disabled)
+         */
+        public InputStream count(InputStream in) {
+            if (trace == null) {
+                return in;
+            }
+            this.in = new CountingInputStream(in);
+            return this.in;
+        }
+
+        /**
+         * Wraps a stream to count the bytes written to it.
+         * @param out the stream
+         * @return the counting stream ({@code out} itself if tracing is disabled)
+         */
+        public OutputStream count(OutputStream out) {
+            if (trace == null) {
+                return out;
+            }
+            this.out = new CountingOutputStream(out);
+            return this.out;
+        }
+
+        /**
+         * Records the number of bytes transferred, for commands that don't
+         * transfer through a single {@link #count(InputStream) counted} stream.
+         * @param bytes the number of bytes
+         * @return {@code this} for fluent use
+         */
+        public Record bytes(long bytes) {
+            if (trace != null) {
+                this.bytes = bytes;
+            }
+            return this;
+        }
+
+        /**
+         * Records the number of items (e.g. directory entries) returned.
+         * @param items the number of items
+         * @return {@code this} for fluent use
+         */
+        public Record items(int items) {
+            if (trace != null) {
+                this.items = items;
+            }
+            return this;
+        }
+
+        /**
+         * Records the status of a command result.
+         * @param result the result
+         * @return {@code result}
+         */
+        public ConnectorCommandResult result(ConnectorCommandResult result) {
+            if (trace != null) {
+                this.status = String.valueOf(result.getStatus());
+            }
+            return result;
+        }
+
+        /**
+         * Records a successful command returning something other than a
+         * {@link ConnectorCommandResult}.
+         * @param result the result
+         * @return {@code result}
+         */
+        public <T> T success(T result) {
+            if (trace != null) {
+                this.status = String.valueOf(ConnectorCommandResult.Status.Success);
+            }
+            return result;
+        }
+
+        @Override
+        public void close() {
+            if (trace == null) {
+                return;
+            }
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+            long bytes = in != null ? in.getCount() : out != null ? out.getCount() : this.bytes;
+            StringBuilder sb = new StringBuilder(128)
+                    .append(startMillis).append('\t')
+                    .append(micros).append('\t');
+            escape(sb, alias).append('\t')
+                    .append(command).append('\t')
+                    .append(status).append('\t')
+                    .append(bytes).append('\t')
+                    .append(items).append('\t');
+            escape(sb, path).append('\t');
+            escape(sb, destination).append('\n');
+            trace.write(sb.toString());
+        }
+    }
+}
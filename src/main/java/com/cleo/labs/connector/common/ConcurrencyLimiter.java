@@ -0,0 +1,192 @@
+package com.cleo.labs.connector.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * An adaptive limit on the requests in flight to a shared resource (e.g.
+ * a bucket), following additive-increase/multiplicative-decrease: each
+ * throttling response (a 429 or 503) cuts the limit by {@link #BACKOFF},
+ * at most once per {@link #COOLDOWN_MILLIS} so that a burst of throttled
+ * responses to the same overload counts once, and each success while the
+ * limit is in use and its latency is healthy (at most {@link #TOLERANCE}
+ * times the recent average, or under 10ms) adds {@code 1/limit}, i.e. about one request
+ * per round trip.  Requests over the limit wait for a slot rather than
+ * failing, so every client sharing the resource backs off together instead
+ * of retrying into the overload on its own.
+ * <p/>
+ * Limiters are shared by name: use {@link #named(String)}.  Each is also
+ * registered as a platform MXBean {@code com.cleo.labs.connector:type=ConcurrencyLimiter,name=...}
+ * exposing its {@link ConcurrencyLimiterMXBean metrics}.
+ */
+public class ConcurrencyLimiter implements ConcurrencyLimiterMXBean {
+
+    public static final int INITIAL_LIMIT = 32;
+    public static final int MIN_LIMIT = 1;
+    public static final int MAX_LIMIT = 512;
+    public static final double BACKOFF = 0.7;
+    public static final double TOLERANCE = 2.0;
+    public static final long COOLDOWN_MILLIS = 1000;
+
+    /**
+     * The weight of each latency sample in the recent average.
+     */
+    private static final double SMOOTHING = 0.05;
+
+    /**
+     * Latency this low is healthy whatever the average.
+     */
+    private static final long HEALTHY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final ConcurrentMap<String,ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * The outcome of a request: exactly one of its methods should be called
+     * when the request completes.
+     */
+    public class Permit {
+        private final long start = System.nanoTime();
+        private boolean released = false;
+
+        private Permit() {
+        }
+
+        /**
+         * Releases the slot for a request that succeeded.
+         */
+        public void success() {
+            release(this, Outcome.SUCCESS);
+        }
+
+        /**
+         * Releases the slot for a request that was throttled.
+         */
+        public void throttled() {
+            release(this, Outcome.THROTTLED);
+        }
+
+        /**
+         * Releases the slot for a request that failed for another reason,
+         * which says nothing about the load.
+         */
+        public void failed() {
+            release(this, Outcome.FAILED);
+        }
+    }
+
+    private enum Outcome { SUCCESS, THROTTLED, FAILED }
+
+    private final String name;
+    private double limit = INITIAL_LIMIT;
+    private int inFlight = 0;
+    private int waiting = 0;
+    private double averageLatencyNanos = 0;
+    private long lastBackoff = 0;
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * Returns the limiter for a name, e.g. a project and bucket.
+     * @param name the name
+     * @return the (shared) limiter
+     */
+    public static ConcurrencyLimiter named(String name) {
+        return limiters.computeIfAbsent(name, ConcurrencyLimiter::new);
+    }
+
+    private ConcurrencyLimiter(String name) {
+        this.name = name;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("com.cleo.labs.connector:type=ConcurrencyLimiter,name=" + ObjectName.quote(name)));
+        } catch (Exception e) {
+            // metrics are optional
+        }
+    }
+
+    /**
+     * Waits for a slot.
+     * @return the permit, to be released when the request completes
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized Permit acquire() throws InterruptedException {
+        waiting++;
+        try {
+            while (inFlight >= (int) limit) {
+                wait();
+            }
+        } finally {
+            waiting--;
+        }
+        inFlight++;
+        return new Permit();
+    }
+
+    private synchronized void release(Permit permit, Outcome outcome) {
+        if (permit.released) {
+            return;
+        }
+        permit.released = true;
+        long latencyNanos = System.nanoTime() - permit.start;
+        int before = inFlight--;
+        switch (outcome) {
+        case THROTTLED:
+            throttled.incrementAndGet();
+            long now = System.nanoTime();
+            if (lastBackoff == 0 || now - lastBackoff >= TimeUnit.MILLISECONDS.toNanos(COOLDOWN_MILLIS)) {
+                lastBackoff = now;
+                limit = Math.max(MIN_LIMIT, limit * BACKOFF);
+            }
+            break;
+        case SUCCESS:
+            boolean healthy = latencyNanos <= Math.max(HEALTHY_NANOS, TOLERANCE * averageLatencyNanos);
+            averageLatencyNanos = averageLatencyNanos == 0
+                    ? latencyNanos
+                    : averageLatencyNanos + SMOOTHING * (latencyNanos - averageLatencyNanos);
+            if (healthy && before >= limit / 2) {
+                limit = Math.min(MAX_LIMIT, limit + 1.0 / limit);
+            }
+            break;
+        default:
+            break;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the name of the limiter.
+     * @return the name
+     */
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    @Override
+    public synchronized long getWaiting() {
+        return waiting;
+    }
+
+    @Override
+    public synchronized double getAverageLatencyMillis() {
+        return averageLatencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,12 @@
+package com.cleo.labs.connector.common;
+
+/**
+ * The metrics of a {@link ConcurrencyLimiter} published through JMX.
+ */
+public interface ConcurrencyLimiterMXBean {
+    int getLimit();
+    int getInFlight();
+    long getThrottled();
+    long getWaiting();
+    double getAverageLatencyMillis();
+}
@@ -0,0 +1,344 @@
+package com.cleo.labs.connector.common;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A size-bounded cache of object content in a local directory, evicting
+ * the least recently used objects first.
+ * <p/>
+ * Content is keyed by a {@link #key(String...) key} that must identify an
+ * immutable version of an object, e.g. its bucket, name and generation,
+ * so a cached copy never needs to be revalidated: a caller checks the
+ * current generation (a metadata request) and either reads the cached copy
+ * through a memory-mapped file or downloads the content while the cache
+ * {@link #put(String, long, InputStream) tees} it to disk.
+ * <p/>
+ * The recency order survives restarts through the file modification times.
+ * Cache failures are never fatal: a read that fails is a miss, and a copy
+ * that fails is abandoned while the download continues.
+ * <p/>
+ * Instances are shared per directory: use {@link #open(File, long)}.
+ */
+public class ContentCache {
+
+    private static final String SUFFIX = ".obj";
+    private static final String TEMP = ".tmp";
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final ConcurrentMap<String,ContentCache> caches = new ConcurrentHashMap<>();
+
+    private final File directory;
+    private volatile long maxBytes;
+    private final LinkedHashMap<String,Long> entries = new LinkedHashMap<>(16, 0.75f, true); // LRU order
+    private long bytes = 0;
+
+    /**
+     * Returns the cache in a directory, creating the directory if needed.
+     * @param directory the cache directory
+     * @param maxBytes the maximum total size of the cached content
+     * @return the (shared) cache, resized to {@code maxBytes}
+     * @throws IOException if the directory can not be created
+     */
+    public static ContentCache open(File directory, long maxBytes) throws IOException {
+        String key = directory.getAbsolutePath();
+        ContentCache cache = caches.get(key);
+        if (cache == null) {
+            synchronized (caches) {
+                cache = caches.get(key);
+                if (cache == null) {
+                    cache = new ContentCache(new File(key));
+                    caches.put(key, cache);
+                }
+            }
+        }
+        cache.resize(maxBytes);
+        return cache;
+    }
+
+    /**
+     * Returns a cache key for the components identifying an object version.
+     * @param components e.g. the bucket, object name and generation
+     * @return a key
+     */
+    public static String key(String...components) {
+        return HASH.hashString(String.join("\u0000", components), StandardCharsets.UTF_8).toString();
+    }
+
+    private ContentCache(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException(String.format("can not create directory '%s'", directory));
+        }
+        this.directory = directory;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(TEMP)) {
+                    file.delete(); // an abandoned copy
+                } else if (name.endsWith(SUFFIX)) {
+                    entries.put(name.substring(0, name.length()-SUFFIX.length()), file.length());
+                    bytes += file.length();
+                }
+            }
+        }
+    }
+
+    private File file(String key) {
+        return new File(directory, key + SUFFIX);
+    }
+
+    private synchronized void resize(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String,Long>> lru = entries.entrySet().iterator();
+        while (bytes > maxBytes && lru.hasNext()) {
+            Map.Entry<String,Long> eldest = lru.next();
+            lru.remove();
+            bytes -= eldest.getValue();
+            File file = file(eldest.getKey());
+            if (!file.delete()) {
+                file.deleteOnExit(); // still mapped by a reader on some platforms
+            }
+        }
+    }
+
+    /**
+     * Returns the total size of the cached content.
+     * @return the size in bytes
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of cached objects.
+     * @return the number of objects
+     */
+    public synchronized int count() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the cached content for a key.
+     * @param key the key
+     * @return a stream over the mapped content, or {@code null} on a miss
+     */
+    public InputStream get(String key) {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+        }
+        File file = file(key);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            file.setLastModified(System.currentTimeMillis());
+            return new MappedInputStream(buffer);
+        } catch (IOException e) {
+            synchronized (this) {
+                Long size = entries.remove(key);
+                if (size != null) {
+                    bytes -= size;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Wraps a download so that its content is cached as it is read.  The
+     * copy is committed only if the stream is read to the end and the
+     * length is {@code size}; content that could never fit is not copied.
+     * @param key the key
+     * @param size the expected length of the content
+     * @param in the download
+     * @return a stream to read the download from
+     */
+    public InputStream put(String key, long size, InputStream in) {
+        if (size < 0 || size > maxBytes || size > Integer.MAX_VALUE) {
+            return in;
+        }
+        try {
+            File temp = File.createTempFile("fill-" + key + "-", TEMP, directory);
+            return new Filling(in, key, size, temp);
+        } catch (IOException e) {
+            return in;
+        }
+    }
+
+    private void commit(String key, long size, File temp) {
+        synchronized (this) {
+            try {
+                Files.move(temp.toPath(), file(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                temp.delete();
+                return;
+            }
+            Long replaced = entries.put(key, size);
+            bytes += size - (replaced == null ? 0 : replaced);
+            evict();
+        }
+    }
+
+    /**
+     * Copies a download to a temporary file as it is read, and commits the
+     * copy when a complete download is closed.
+     */
+    private class Filling extends FilterInputStream {
+        private final String key;
+        private final long size;
+        private final File temp;
+        private OutputStream copy;
+        private long count = 0;
+        private boolean eof = false;
+
+        private Filling(InputStream in, String key, long size, File temp) throws IOException {
+            super(in);
+            this.key = key;
+            this.size = size;
+            this.temp = temp;
+            this.copy = new BufferedOutputStream(Files.newOutputStream(temp.toPath()), 64*1024);
+        }
+
+        private void copy(byte[] b, int off, int n) {
+            if (n < 0) {
+                eof = true;
+            } else if (copy != null && n > 0) {
+                try {
+                    copy.write(b, off, n);
+                    count += n;
+                } catch (IOException e) {
+                    abandon();
+                }
+            }
+        }
+
+        private void abandon() {
+            if (copy != null) {
+                try {
+                    copy.close();
+                } catch (IOException ignore) {
+                    // it's going anyway
+                }
+                copy = null;
+                temp.delete();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = in.read();
+            if (c < 0) {
+                eof = true;
+            } else {
+                copy(new byte[] { (byte) c }, 0, 1);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            copy(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            abandon(); // the copy would have a hole
+            return in.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                if (copy != null) {
+                    boolean complete = eof && count == size;
+                    try {
+                        copy.close();
+                    } catch (IOException e) {
+                        complete = false;
+                    }
+                    copy = null;
+                    if (complete) {
+                        commit(key, size, temp);
+                    } else {
+                        temp.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An InputStream over a (mapped) ByteBuffer.
+     */
+    private static class MappedInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private MappedInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            } else if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
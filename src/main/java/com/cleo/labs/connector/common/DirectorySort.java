@@ -0,0 +1,311 @@
+package com.cleo.labs.connector.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+import com.cleo.connector.api.directory.Directory.Type;
+import com.google.common.base.Strings;
+
+/**
+ * Sorts DIR listings according to {@code RetrieveDirectorySort}, optionally
+ * keeping only the first {@code limit} entries.
+ * <ul>
+ * <li>With a limit, a bounded heap of {@code limit} entries is kept while
+ *     streaming the listing, so memory is proportional to the limit (and
+ *     without a sort order the listing is not even read past the limit).</li>
+ * <li>Without a limit, listings of up to {@code maxInMemory} entries are
+ *     sorted in memory.  Larger listings are sorted in runs that are spilled
+ *     to disk in a compact binary form and merged once into the returned
+ *     list, so only the finished entries (and one entry per run) are held
+ *     in memory, never the whole listing as read.  The runs are deleted
+ *     before {@link #sort} returns.</li>
+ * </ul>
+ * The entries of a listing must all be children of the same parent Path.
+ */
+public class DirectorySort {
+
+    public enum Order {
+        NAME, DATE, SIZE;
+    }
+
+    /**
+     * Default number of entries sorted in memory before spilling to disk.
+     */
+    public static final int DEFAULT_MAX_IN_MEMORY = 100_000;
+
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    private final Comparator<Entry> comparator;
+    private final int limit;
+    private int maxInMemory = DEFAULT_MAX_IN_MEMORY;
+    private File spillDirectory = null;
+
+    /**
+     * Creates a sort from a {@code RetrieveDirectorySort} value such as
+     * "Date/Time Modified Ascending" or "Size Descending".  Blank or
+     * unrecognized values (e.g. "System Default") keep the listing order.
+     * @param sort the sort value
+     * @param limit the maximum number of entries to return, 0 for all
+     */
+    public DirectorySort(String sort, int limit) {
+        this.comparator = comparator(sort);
+        this.limit = Math.max(0, limit);
+    }
+
+    /**
+     * Sets the number of entries sorted in memory before spilling to disk.
+     * @param maxInMemory the number of entries
+     * @return {@code this} for fluent use
+     */
+    public DirectorySort maxInMemory(int maxInMemory) {
+        this.maxInMemory = Math.max(1, maxInMemory);
+        return this;
+    }
+
+    /**
+     * Sets the directory for spill files, {@code null} for the system temporary directory.
+     * @param spillDirectory the directory
+     * @return {@code this} for fluent use
+     */
+    public DirectorySort spillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
+    /**
+     * Returns {@code true} if this sort would return a listing unchanged.
+     * @return {@code true} if there is neither an order nor a limit
+     */
+    public boolean identity() {
+        return comparator == null && limit == 0;
+    }
+
+    private static Order order(String sort) {
+        String s = sort.toLowerCase(Locale.ROOT);
+        if (s.contains("date") || s.contains("time") || s.contains("modified")) {
+            return Order.DATE;
+        } else if (s.contains("size")) {
+            return Order.SIZE;
+        } else if (s.contains("alpha") || s.contains("name")) {
+            return Order.NAME;
+        }
+        return null;
+    }
+
+    private static long date(Entry entry) {
+        return entry.getDate() == null ? NO_DATE : entry.getDate().toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private static Comparator<Entry> comparator(String sort) {
+        if (Strings.isNullOrEmpty(sort)) {
+            return null;
+        }
+        Order order = order(sort);
+        if (order == null) {
+            return null;
+        }
+        Comparator<Entry> byName = Comparator.comparing(entry -> entry.getPathObject().name());
+        Comparator<Entry> comparator;
+        switch (order) {
+        case DATE:
+            comparator = Comparator.comparingLong(DirectorySort::date);
+            break;
+        case SIZE:
+            comparator = Comparator.comparingLong(Entry::size);
+            break;
+        default:
+            comparator = byName;
+        }
+        if (sort.toLowerCase(Locale.ROOT).contains("desc")) {
+            comparator = comparator.reversed();
+        }
+        return order == Order.NAME ? comparator : comparator.thenComparing(byName);
+    }
+
+    /**
+     * Sorts a listing.
+     * @param listing the listing, which may be streamed
+     * @param parent the Path of the listed directory
+     * @param finish applied to each entry as it is returned (e.g. a DIR fixup)
+     * @return the sorted (and limited) entries
+     * @throws IOException if spilling to disk fails
+     */
+    public <T> List<T> sort(Iterable<Entry> listing, Path parent, Function<Entry,T> finish) throws IOException {
+        List<Entry> sorted;
+        if (comparator == null) {
+            sorted = new ArrayList<>();
+            for (Entry entry : listing) {
+                if (limit > 0 && sorted.size() >= limit) {
+                    break;
+                }
+                sorted.add(entry);
+            }
+        } else if (limit > 0) {
+            sorted = top(listing);
+        } else {
+            return external(listing, parent, finish);
+        }
+        List<T> result = new ArrayList<>(sorted.size());
+        for (Entry entry : sorted) {
+            result.add(finish.apply(entry));
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the first {@code limit} entries in a heap ordered with the
+     * greatest (the next to be displaced) on top.
+     */
+    private List<Entry> top(Iterable<Entry> listing) {
+        PriorityQueue<Entry> heap = new PriorityQueue<>(Math.min(limit, 1024) + 1, comparator.reversed());
+        for (Entry entry : listing) {
+            if (heap.size() < limit) {
+                heap.add(entry);
+            } else if (comparator.compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        List<Entry> result = new ArrayList<>(heap);
+        result.sort(comparator);
+        return result;
+    }
+
+    private <T> List<T> external(Iterable<Entry> listing, Path parent, Function<Entry,T> finish) throws IOException {
+        List<Entry> buffer = new ArrayList<>();
+        List<File> runs = new ArrayList<>();
+        int size = 0;
+        try {
+            for (Entry entry : listing) {
+                buffer.add(entry);
+                size++;
+                if (buffer.size() >= maxInMemory) {
+                    runs.add(spill(buffer));
+                    buffer.clear();
+                }
+            }
+            if (runs.isEmpty()) {
+                buffer.sort(comparator);
+                List<T> result = new ArrayList<>(buffer.size());
+                for (Entry entry : buffer) {
+                    result.add(finish.apply(entry));
+                }
+                return result;
+            }
+            if (!buffer.isEmpty()) {
+                runs.add(spill(buffer));
+                buffer.clear();
+            }
+            return merge(runs, size, parent, finish);
+        } finally {
+            runs.forEach(File::delete);
+        }
+    }
+
+    /**
+     * Merges sorted runs into a list, finishing each entry as it is merged.
+     */
+    private <T> List<T> merge(List<File> runs, int size, Path parent, Function<Entry,T> finish) throws IOException {
+        List<T> result = new ArrayList<>(size);
+        List<DataInputStream> ins = new ArrayList<>(runs.size());
+        try {
+            PriorityQueue<Head> heads = new PriorityQueue<>(runs.size(), (a, b) -> comparator.compare(a.entry, b.entry));
+            for (File run : runs) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 16*1024));
+                ins.add(in);
+                Head head = new Head(in, read(in, parent));
+                if (head.entry != null) {
+                    heads.add(head);
+                }
+            }
+            Head head;
+            while ((head = heads.poll()) != null) {
+                result.add(finish.apply(head.entry));
+                head.entry = read(head.in, parent);
+                if (head.entry != null) {
+                    heads.add(head);
+                }
+            }
+        } finally {
+            for (DataInputStream in : ins) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                    // the run is deleted anyway
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The next entry of a run being merged.
+     */
+    private static class Head {
+        private final DataInputStream in;
+        private Entry entry;
+        private Head(DataInputStream in, Entry entry) {
+            this.in = in;
+            this.entry = entry;
+        }
+    }
+
+    private File spill(List<Entry> buffer) throws IOException {
+        buffer.sort(comparator);
+        File run = File.createTempFile("dirsort", ".run", spillDirectory);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 64*1024))) {
+            for (Entry entry : buffer) {
+                out.writeUTF(entry.getPathObject().name());
+                out.writeBoolean(entry.isDir());
+                out.writeLong(entry.size());
+                out.writeLong(date(entry));
+                out.writeLong(entry.getGeneration());
+                out.writeUTF(Strings.nullToEmpty(entry.getDescription()));
+                out.writeUTF(Strings.nullToEmpty(entry.getEncoding()));
+            }
+        } catch (IOException | RuntimeException e) {
+            run.delete();
+            throw e;
+        }
+        return run;
+    }
+
+    private static Entry read(DataInputStream in, Path parent) throws IOException {
+        String name;
+        try {
+            name = in.readUTF();
+        } catch (EOFException e) {
+            return null;
+        }
+        boolean dir = in.readBoolean();
+        Entry entry = new Entry(dir ? Type.dir : Type.file);
+        entry.setPathObject(parent.child(name).directory(dir));
+        entry.setSize(in.readLong());
+        long date = in.readLong();
+        if (date != NO_DATE) {
+            entry.setDate(LocalDateTime.ofEpochSecond(Math.floorDiv(date, 1000L),
+                    (int) Math.floorMod(date, 1000L) * 1_000_000, ZoneOffset.UTC));
+        }
+        entry.setGeneration(in.readLong());
+        String description = in.readUTF();
+        entry.setDescription(description.isEmpty() ? null : description);
+        String encoding = in.readUTF();
+        entry.setEncoding(encoding.isEmpty() ? null : encoding);
+        return entry;
+    }
+}
@@ -9,6 +9,8 @@ public class Entry extends com.cleo.connector.api.directory.Entry {
 
     private Path pathObject;
     private String description;
+    private long generation = 0; // the object version, 0 if unknown
+    private String encoding = null; // the Content-Encoding of the stored content, null if none
 
     public Entry setPathObject(Path pathObject) {
         this.pathObject = pathObject;
@@ -24,4 +26,18 @@ public class Entry extends com.cleo.connector.api.directory.Entry {
     public String getDescription() {
         return description;
     }
+    public Entry setGeneration(long generation) {
+        this.generation = generation;
+        return this;
+    }
+    public long getGeneration() {
+        return generation;
+    }
+    public Entry setEncoding(String encoding) {
+        this.encoding = encoding;
+        return this;
+    }
+    public String getEncoding() {
+        return encoding;
+    }
 }
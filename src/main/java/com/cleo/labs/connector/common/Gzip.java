@@ -0,0 +1,161 @@
+package com.cleo.labs.connector.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.io.CountingInputStream;
+
+/**
+ * Streaming gzip in both directions without a pipe thread:
+ * {@link #compress(InputStream)} turns a stream of content into a stream
+ * of its gzip encoding as it is read, and {@link #decompress(InputStream, String)}
+ * decodes the stored bytes of an object according to its Content-Encoding.
+ */
+public class Gzip {
+
+    public static final String ENCODING = "gzip";
+
+    private static final int BUFFER = 64 * 1024;
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b,  // magic
+            Deflater.DEFLATED,  // method
+            0, 0, 0, 0, 0,      // flags, mtime
+            0, (byte) 0xff };   // extra flags, OS unknown
+
+    private Gzip() {
+    }
+
+    /**
+     * Returns {@code true} if a Content-Encoding is gzip.
+     * @param encoding the Content-Encoding, possibly {@code null}
+     * @return {@code true} for gzip
+     */
+    public static boolean encoded(String encoding) {
+        return ENCODING.equalsIgnoreCase(encoding);
+    }
+
+    /**
+     * Returns a stream of the gzip encoding of {@code in}, compressed as it
+     * is read.  Closing it closes {@code in}.
+     * @param in the content
+     * @return the compressed stream
+     */
+    public static InputStream compress(InputStream in) {
+        CRC32 crc = new CRC32();
+        CountingInputStream counted = new CountingInputStream(in);
+        CheckedInputStream checked = new CheckedInputStream(counted, crc);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        InputStream deflated = new DeflaterInputStream(checked, deflater, BUFFER) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+        InputStream trailer = new InputStream() {
+            private ByteArrayInputStream bytes = null;
+            private ByteArrayInputStream bytes() {
+                if (bytes == null) {
+                    // only once the content has been read are the checksum and length known
+                    long crcValue = crc.getValue();
+                    long length = counted.getCount();
+                    byte[] b = new byte[8];
+                    for (int i = 0; i < 4; i++) {
+                        b[i] = (byte) (crcValue >>> (8*i));
+                        b[i+4] = (byte) (length >>> (8*i));
+                    }
+                    bytes = new ByteArrayInputStream(b);
+                }
+                return bytes;
+            }
+            @Override
+            public int read() {
+                return bytes().read();
+            }
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return bytes().read(b, off, len);
+            }
+        };
+        Enumeration<InputStream> parts = Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream(HEADER), deflated, trailer));
+        return new SequenceInputStream(parts) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflated.close(); // in case the sequence never reached it
+                }
+            }
+        };
+    }
+
+    /**
+     * Decodes a stream stored with gzip Content-Encoding.  The stream must
+     * carry the bytes as stored, not content already decoded on the way:
+     * whether to decode is decided by {@code encoding} alone, never by
+     * looking at the content.  The gzip header is read on the first read,
+     * so opening never blocks.
+     * @param in the stream of stored bytes
+     * @param encoding the Content-Encoding it was stored with
+     * @return the decoded stream ({@code in} itself unless {@code encoding} is gzip)
+     */
+    public static InputStream decompress(InputStream in, String encoding) {
+        if (!encoded(encoding)) {
+            return in;
+        }
+        return new FilterInputStream(new PushbackInputStream(in, 1)) {
+            private boolean opened = false;
+            private void open() throws IOException {
+                if (!opened) {
+                    opened = true;
+                    int b = in.read();
+                    if (b >= 0) {
+                        // an empty object has no gzip header to read
+                        ((PushbackInputStream) in).unread(b);
+                        in = new GZIPInputStream(in, BUFFER);
+                    }
+                }
+            }
+            @Override
+            public int read() throws IOException {
+                open();
+                return in.read();
+            }
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                open();
+                return in.read(b, off, len);
+            }
+            @Override
+            public long skip(long n) throws IOException {
+                open();
+                return in.skip(n);
+            }
+            @Override
+            public int available() throws IOException {
+                return opened ? in.available() : 0;
+            }
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+}
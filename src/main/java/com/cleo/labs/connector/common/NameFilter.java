@@ -0,0 +1,197 @@
+package com.cleo.labs.connector.common;
+
+import java.util.regex.Pattern;
+
+/**
+ * A filter on the names in a directory listing, given either with a
+ * {@code glob:} prefix as a glob ({@code glob:*.edi}, {@code glob:inv??.*},
+ * {@code glob:[ab]*.csv}) or with a {@code regex:} prefix as a regular
+ * expression matched against the whole name.  Names without either prefix
+ * are never patterns, so names containing {@code *}, {@code ?}, {@code [}
+ * or {@code {} are always taken literally.
+ * <p/>
+ * A filter also reports its {@link #prefix() literal prefix}: the leading
+ * characters every matching name must start with.  Listings that can
+ * filter on the server by prefix use it to avoid reading names that can
+ * never match, and test the rest of the pattern as the listing streams.
+ */
+public class NameFilter {
+
+    public static final String GLOB = "glob:";
+    public static final String REGEX = "regex:";
+
+    private static final String GLOB_SPECIAL = "*?[{\\";
+    private static final String REGEX_SPECIAL = "\\.[]{}()*+?^$|";
+    private static final String REGEX_QUANTIFIERS = "*?{";
+
+    private final String pattern;
+    private final Pattern regex;
+    private final String prefix;
+
+    private NameFilter(String pattern, Pattern regex, String prefix) {
+        this.pattern = pattern;
+        this.regex = regex;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Returns {@code true} if a name is a pattern rather than a plain name.
+     * @param name the name
+     * @return {@code true} if the name has a {@code glob:} or {@code regex:} prefix
+     */
+    public static boolean isPattern(String name) {
+        if (name == null) {
+            return false;
+        }
+        return name.startsWith(GLOB) || name.startsWith(REGEX);
+    }
+
+    /**
+     * Parses a glob with a {@code glob:} prefix, or a regular expression
+     * with a {@code regex:} prefix.
+     * @param pattern the pattern
+     * @return the filter
+     * @throws IllegalArgumentException if the pattern is invalid or has neither prefix
+     */
+    public static NameFilter of(String pattern) {
+        if (pattern.startsWith(GLOB)) {
+            return glob(pattern.substring(GLOB.length()));
+        } else if (pattern.startsWith(REGEX)) {
+            return regex(pattern.substring(REGEX.length()));
+        }
+        throw new IllegalArgumentException("not a "+GLOB+" or "+REGEX+" pattern: "+pattern);
+    }
+
+    /**
+     * Parses a glob: {@code *} matches any run of characters, {@code ?}
+     * any one character, {@code [...]} (or {@code [!...]}) a character
+     * class, {@code {a,b}} alternatives, and {@code \} escapes the next
+     * character.
+     * @param glob the glob
+     * @return the filter
+     * @throws IllegalArgumentException if the glob is invalid
+     */
+    public static NameFilter glob(String glob) {
+        StringBuilder regex = new StringBuilder(glob.length() + 8);
+        StringBuilder prefix = new StringBuilder();
+        boolean literal = true;
+        boolean alternatives = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '\\' && i+1 < glob.length()) {
+                c = glob.charAt(++i);
+                regex.append(Pattern.quote(String.valueOf(c)));
+                if (literal) {
+                    prefix.append(c);
+                }
+                continue;
+            }
+            if (GLOB_SPECIAL.indexOf(c) >= 0) {
+                literal = false;
+            }
+            switch (c) {
+            case '*':
+                regex.append(".*");
+                break;
+            case '?':
+                regex.append('.');
+                break;
+            case '[':
+                int close = glob.indexOf(']', i+2);
+                if (close < 0) {
+                    throw new IllegalArgumentException("unterminated [ in "+glob);
+                }
+                String set = glob.substring(i+1, close);
+                regex.append('[');
+                if (set.startsWith("!")) {
+                    regex.append('^');
+                    set = set.substring(1);
+                }
+                regex.append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                i = close;
+                break;
+            case '{':
+                if (alternatives) {
+                    throw new IllegalArgumentException("nested { in "+glob);
+                }
+                alternatives = true;
+                regex.append("(?:");
+                break;
+            case '}':
+                if (!alternatives) {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    if (literal) {
+                        prefix.append(c);
+                    }
+                    break;
+                }
+                alternatives = false;
+                regex.append(')');
+                break;
+            case ',':
+                if (alternatives) {
+                    regex.append('|');
+                    break;
+                }
+                // fall through: a literal comma
+            default:
+                regex.append(Pattern.quote(String.valueOf(c)));
+                if (literal) {
+                    prefix.append(c);
+                }
+            }
+        }
+        if (alternatives) {
+            throw new IllegalArgumentException("unterminated { in "+glob);
+        }
+        return new NameFilter(GLOB+glob, Pattern.compile(regex.toString(), Pattern.DOTALL), prefix.toString());
+    }
+
+    /**
+     * Parses a regular expression, which must match the whole name.
+     * @param regex the regular expression
+     * @return the filter
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static NameFilter regex(String regex) {
+        Pattern compiled = Pattern.compile(regex);
+        StringBuilder prefix = new StringBuilder();
+        if (!regex.contains("|")) {
+            int i = regex.startsWith("^") ? 1 : 0;
+            for (; i < regex.length(); i++) {
+                char c = regex.charAt(i);
+                if (REGEX_SPECIAL.indexOf(c) >= 0) {
+                    if (REGEX_QUANTIFIERS.indexOf(c) >= 0 && prefix.length() > 0) {
+                        // the quantifier applies to the last literal
+                        prefix.setLength(prefix.length()-1);
+                    }
+                    break;
+                }
+                prefix.append(c);
+            }
+        }
+        return new NameFilter(REGEX+regex, compiled, prefix.toString());
+    }
+
+    /**
+     * Returns the literal prefix every matching name starts with.
+     * @return the prefix, possibly empty
+     */
+    public String prefix() {
+        return prefix;
+    }
+
+    /**
+     * Tests a name.
+     * @param name the name, without any parent or trailing delimiter
+     * @return {@code true} if the name matches
+     */
+    public boolean matches(String name) {
+        return name.startsWith(prefix) && regex.matcher(name).matches();
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
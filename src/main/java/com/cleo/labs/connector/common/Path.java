@@ -1,37 +1,141 @@
 package com.cleo.labs.connector.common;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-
 import com.google.common.base.Strings;
 
+/**
+ * An immutable path of node names.
+ * <p/>
+ * The node list is stored as a chain linked from the last node back to the
+ * first, so that {@link #child(String) child} paths, {@link #parent() parents}
+ * and leading {@link #slice(Integer, Integer) slices} share their nodes with
+ * the original path rather than copying them.  Each node also caches its
+ * joined native and URI string forms, so formatting many children of the
+ * same parent (e.g. a DIR listing) only formats the parent once.
+ * <p/>
+ * The fluent "setters" ({@link #directory(boolean)}, {@link #markDirectories(boolean)},
+ * {@link #delimiter(String)}, {@link #suffixDirectories(boolean)} and
+ * {@link #parseURIPath(String...)}) return a new Path (or {@code this} if
+ * nothing changes) and never modify the original, so Paths may be freely
+ * shared and used as cache keys.
+ */
 public class Path {
 
     public static final String URI_DELIMITER = "/";
 
     /**
-     * The list of String node names
+     * One node in the (shared, immutable) node chain.
+     */
+    private static final class Node {
+        private final Node parent;
+        private final String name;
+        private final int depth;
+        private final int hash;
+        /**
+         * Cached form of this node and its ancestors joined with a delimiter
+         */
+        private Joined joined = null;
+        /**
+         * Cached form of this node and its ancestors escaped and joined with {@link #URI_DELIMITER}
+         */
+        private String uri = null;
+
+        private Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+            this.depth = parent == null ? 1 : parent.depth+1;
+            this.hash = (parent == null ? 1 : parent.hash)*31 + name.hashCode();
+        }
+
+        /**
+         * Returns the names of this node and its ancestors joined
+         * by {@code delimiter}.
+         * @param delimiter the delimiter
+         * @return the joined String
+         */
+        private String joined(String delimiter) {
+            Joined cached = joined;
+            if (cached == null || !cached.delimiter.equals(delimiter)) {
+                String value = parent == null ? name : parent.joined(delimiter) + delimiter + name;
+                cached = new Joined(delimiter, value);
+                joined = cached;
+            }
+            return cached.value;
+        }
+
+        /**
+         * Returns the escaped names of this node and its ancestors
+         * joined by {@link #URI_DELIMITER}.
+         * @return the joined URI path
+         */
+        private String uri() {
+            String cached = uri;
+            if (cached == null) {
+                String escaped = Escaper.escape(name, URI_DELIMITER);
+                cached = parent == null ? escaped : parent.uri() + URI_DELIMITER + escaped;
+                uri = cached;
+            }
+            return cached;
+        }
+    }
+
+    /**
+     * Immutable (delimiter, joined value) pair, so the
+     * pair can be cached and published in a single write.
+     */
+    private static final class Joined {
+        private final String delimiter;
+        private final String value;
+        private Joined(String delimiter, String value) {
+            this.delimiter = delimiter;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The last node in the chain, or {@code null} for an empty path
      */
-    private List<String> nodes;
+    private final Node last;
 
     /**
      * Set to {@code true} to mark as a directory path
      */
-    private boolean directory = false;
+    private final boolean directory;
+
+    /**
+     * Set to {@code true} to mark directory names, in case files and directories can share the same name
+     */
+    private final boolean markDirectories;
+
+    /**
+     * The native path delimiter
+     */
+    private final String delimiter;
+
+    /**
+     * Set to {@code true} if native directory paths should end with the delimiter
+     */
+    private final boolean suffixDirectories;
+
+    /**
+     * Cached {@link #toString()} form
+     */
+    private String string = null;
 
     /**
-     * Sets the directory flag
+     * Cached {@link #toURIPath()} form
+     */
+    private String uri = null;
+
+    /**
+     * Returns a Path with the directory flag set as requested
      * @param directory the directory flag
-     * @return {@code this} to enable fluent use
+     * @return a Path with the requested flag ({@code this} if unchanged)
      */
     public Path directory(boolean directory) {
-        this.directory = directory;
-        return this;
+        if (directory == this.directory) {
+            return this;
+        }
+        return new Path(last, markDirectories, directory, delimiter, suffixDirectories);
     }
 
     /**
@@ -43,18 +147,15 @@ public class Path {
     }
 
     /**
-     * Set to {@code true} to mark directory names, in case files and directories can share the same name
-     */
-    private boolean markDirectories = false;
-
-    /**
-     * Sets the markDirectories flag
+     * Returns a Path with the markDirectories flag set as requested
      * @param markDirectories the markDirectories flag
-     * @return {@code this} to enable fluent use
+     * @return a Path with the requested flag ({@code this} if unchanged)
      */
     public Path markDirectories(boolean markDirectories) {
-        this.markDirectories = markDirectories;
-        return this;
+        if (markDirectories == this.markDirectories) {
+            return this;
+        }
+        return new Path(last, markDirectories, directory, delimiter, suffixDirectories);
     }
 
     /**
@@ -65,34 +166,36 @@ public class Path {
         return markDirectories;
     }
 
-    private String delimiter;
     public Path delimiter(String delimiter) {
-        this.delimiter = delimiter;
-        return this;
+        if (delimiter.equals(this.delimiter)) {
+            return this;
+        }
+        return new Path(last, markDirectories, directory, delimiter, suffixDirectories);
     }
     public String delimiter() {
         return delimiter;
     }
 
-    private boolean suffixDirectories;
     public Path suffixDirectories(boolean suffixDirectories) {
-        this.suffixDirectories = suffixDirectories;
-        return this;
+        if (suffixDirectories == this.suffixDirectories) {
+            return this;
+        }
+        return new Path(last, markDirectories, directory, delimiter, suffixDirectories);
     }
     public boolean suffixDirectories() {
         return suffixDirectories;
     }
     /**
      * Internal use only: makes a new Path without attempting
-     * to parse delimiters from the supplied node list.
-     * @param nodes
+     * to parse delimiters from the supplied node chain.
+     * @param last the last node of the chain ({@code null} for an empty path)
      * @param markDirectories inherited markDirectories flag
      * @param directory is this path a directory?
      * @param delimiter the native path delimiter
      * @param suffixDirectories should directories include a delimiter suffix?
      */
-    private Path(List<String> nodes, boolean markDirectories, boolean directory, String delimiter, boolean suffixDirectories) {
-        this.nodes = nodes;
+    private Path(Node last, boolean markDirectories, boolean directory, String delimiter, boolean suffixDirectories) {
+        this.last = last;
         this.markDirectories = markDirectories;
         this.directory = directory;
         this.delimiter = delimiter;
@@ -103,19 +206,16 @@ public class Path {
      * Constructs a new empty path with the default delimiter.
      */
     public Path() {
-        this.nodes = Collections.emptyList();
-        this.markDirectories = false;
-        this.directory = false;
-        this.delimiter = URI_DELIMITER;
-        this.suffixDirectories = false;
+        this(null, false, false, URI_DELIMITER, false);
     }
 
     /**
-     * Copy constructor
+     * Copy constructor.  Since Paths are immutable, the
+     * copy shares the node chain of the original.
      * @param path the original path to copy
      */
     public Path(Path path) {
-        this(new ArrayList<>(path.nodes), path.markDirectories, path.directory, path.delimiter, path.suffixDirectories);
+        this(path.last, path.markDirectories, path.directory, path.delimiter, path.suffixDirectories);
     }
 
     /**
@@ -127,11 +227,12 @@ public class Path {
      * ignored.  An empty path has length zero.
      * @param parse a (possibly {@code null}) list of (possibly {@code null})
      * {@code String}s to parse
+     * @return a new Path with the parsed nodes and the flags of {@code this}
      */
     public Path parseURIPath(String...parse) {
         String delimiter = URI_DELIMITER;
         boolean directoryLooking = true; // an empty path is the root directory
-        this.nodes = new ArrayList<>();
+        Node nodes = null;
         if (parse != null) {
             for (String node : parse) {
                 if (!Strings.isNullOrEmpty(node)) {
@@ -140,18 +241,17 @@ public class Path {
                             element = Escaper.unescape(element);
                             if (markDirectories) {
                                 directoryLooking = DirMarker.marked(element);
-                                nodes.add(DirMarker.unmark(element));
+                                nodes = new Node(nodes, DirMarker.unmark(element));
                             } else {
                                 directoryLooking = element.endsWith(delimiter);
-                                nodes.add(element);
+                                nodes = new Node(nodes, element);
                             }
                         }
                     }
                 }
             }
-            this.directory = directoryLooking; // from the last node seen
         }
-        return this;
+        return new Path(nodes, markDirectories, parse != null ? directoryLooking : directory, this.delimiter, suffixDirectories);
     }
 
     /**
@@ -160,7 +260,7 @@ public class Path {
      * @return
      */
     public int size() {
-        return nodes.size();
+        return last == null ? 0 : last.depth;
     }
 
     /**
@@ -169,7 +269,47 @@ public class Path {
      * @return
      */
     public boolean empty() {
-        return nodes.isEmpty();
+        return last == null;
+    }
+
+    /**
+     * Returns the node at depth {@code depth} (1 is the first node),
+     * or {@code null} for depth 0.
+     * @param depth the depth, between 0 and {@link #size()}
+     * @return the node
+     */
+    private Node ancestor(int depth) {
+        Node node = last;
+        while (node != null && node.depth > depth) {
+            node = node.parent;
+        }
+        return node;
+    }
+
+    /**
+     * Appends the nodes {@code [from,to)} of a chain ending with {@code chain}
+     * to {@code base}.
+     * @param base the chain to extend (may be {@code null})
+     * @param chain the chain whose nodes are copied
+     * @param from the first index (inclusive) to copy
+     * @param to the last index (exclusive) to copy
+     * @return the extended chain
+     */
+    private static Node append(Node base, Node chain, int from, int to) {
+        if (from >= to) {
+            return base;
+        }
+        String[] names = new String[to-from];
+        for (Node node = chain; node != null && node.depth > from; node = node.parent) {
+            if (node.depth <= to) {
+                names[node.depth-1-from] = node.name;
+            }
+        }
+        Node result = base;
+        for (String name : names) {
+            result = new Node(result, name);
+        }
+        return result;
     }
 
     /**
@@ -179,10 +319,10 @@ public class Path {
      * @return a new Path shortened by 1, or {@code this} if the path is already empty
      */
     public Path parent() {
-        if (nodes.isEmpty()) {
+        if (last == null) {
             return this;
         } else {
-            return new Path(nodes.subList(0, nodes.size()-1), markDirectories, true, delimiter, suffixDirectories);
+            return new Path(last.parent, markDirectories, true, delimiter, suffixDirectories);
         }
     }
 
@@ -199,9 +339,7 @@ public class Path {
      * @return a longer path
      */
     public Path child(String node) {
-        List<String> child = new ArrayList<>(nodes);
-        child.add(node);
-        return new Path(child, markDirectories, false, delimiter, suffixDirectories);
+        return new Path(new Node(last, node), markDirectories, false, delimiter, suffixDirectories);
     }
 
     /**
@@ -211,9 +349,7 @@ public class Path {
      * @return the new Path
      */
     public Path child(Path path) {
-        List<String> child = new ArrayList<>(nodes);
-        child.addAll(path.nodes);
-        return new Path(child, markDirectories, false, delimiter, suffixDirectories);
+        return new Path(append(last, path.last, 0, path.size()), markDirectories, false, delimiter, suffixDirectories);
     }
 
     /**
@@ -234,24 +370,27 @@ public class Path {
      * The from and to indices may be {@code null}, indicating that a reasonable
      * default (from 0 or to {@code size()}) should be used.  A negative
      * index means to back up from the end.  Invalid indices are adjusted to
-     * the valid range.
+     * the valid range.  A slice starting from 0 shares its nodes with
+     * the current Path.
      * @param fromNullable the from index (inclusive), or {@code null} to mean 0
      * @param toNullable the to index (exclusive), or {@code null} to mean {@code size()}
      * @return a (possibly empty) slice of the Path
      */
     public Path slice(Integer fromNullable, Integer toNullable) {
+        int size = size();
         int from = fromNullable==null ? 0 : fromNullable;
-        int to = toNullable==null ? nodes.size() : toNullable;
+        int to = toNullable==null ? size : toNullable;
         if (from < 0) {
-            from = Math.max(0, nodes.size()+from);
+            from = Math.max(0, size+from);
         }
-        from = Math.min(from, nodes.size());
+        from = Math.min(from, size);
         if (to < 0) {
-            to = Math.max(0, nodes.size()+to);
+            to = Math.max(0, size+to);
         }
-        to = Math.min(to, nodes.size());
+        to = Math.min(to, size);
         to = Math.max(from, to);
-        return new Path(nodes.subList(from, to), markDirectories, to < nodes.size() || directory, delimiter, suffixDirectories);
+        Node sliced = from == 0 ? ancestor(to) : append(null, last, from, to);
+        return new Path(sliced, markDirectories, to < size || directory, delimiter, suffixDirectories);
     }
 
     /**
@@ -259,20 +398,22 @@ public class Path {
      * into the node list at a specified index.  A non-negative index counts
      * from the left (0 means insert at the beginning, nodes.size() means append
      * at the end), while a negative index means count from the right (-1 means
-     * append at the end, -(size()+1) means insert at the beginning).
+     * append at the end, -(size()+1) means insert at the beginning).  The
+     * nodes before the insertion point are shared with the current Path.
      * @param at where to insert the new nodes
      * @param insert the Path that is the source of the new nodes
      * @return a new Path
      */
     public Path insert(int at, Path insert) {
+        int size = size();
         if (at >= 0) {
-            at = Math.min(at, nodes.size()); // 0 means beginning, size() means append after last
+            at = Math.min(at, size); // 0 means beginning, size() means append after last
         } else {
-            at = Math.max(0, nodes.size()+1+at); // -1 means append after last
+            at = Math.max(0, size+1+at); // -1 means append after last
         }
-        List<String> inserted = new ArrayList<>(nodes);
-        inserted.addAll(at, insert.nodes);
-        return new Path(inserted, markDirectories, at < nodes.size() ? directory : insert.directory, delimiter, suffixDirectories);
+        Node inserted = append(ancestor(at), insert.last, 0, insert.size());
+        inserted = append(inserted, last, at, size);
+        return new Path(inserted, markDirectories, at < size ? directory : insert.directory, delimiter, suffixDirectories);
     }
 
     /**
@@ -283,13 +424,14 @@ public class Path {
      * @return the node
      */
     public String node(int n) {
+        int size = size();
         if (n < 0) {
-            n = nodes.size()+n;
+            n = size+n;
         }
-        if (n < 0 || n >= nodes.size()) {
+        if (n < 0 || n >= size) {
             return "";
         } else {
-            return nodes.get(n);
+            return ancestor(n+1).name;
         }
     }
 
@@ -299,51 +441,80 @@ public class Path {
      * @return the "name" of the Path
      */
     public String name() {
-        return node(-1);
+        return last == null ? "" : last.name;
     }
 
     /**
      * Returns all of the node names joined back together
-     * with {@link #DEFAULT_DELIMITER} as a separator.  The returned
+     * with {@link #URI_DELIMITER} as a separator.  The returned
      * String does not begin with the delimiter, but ends with the
      * delimiter if-and-only-if this is a non-empty {@link #directory(boolean) directory}
      * Path. "" is returned for an empty Path, directory or not.
      */
     public String toURIPath() {
-        if (empty()) {
-            return "";
-        } else {
-            StringBuilder sb = new StringBuilder();
-            for (int i=0; i < nodes.size(); i++) {
-                String node = Escaper.escape(nodes.get(i), URI_DELIMITER);
-                boolean last = i == nodes.size()-1;
-                if (markDirectories && last) {
-                    node = DirMarker.mark(node, directory || !last);
-                }
-                sb.append(node);
-                if (!last) {
-                    sb.append(URI_DELIMITER);
-                }
+        String result = uri;
+        if (result == null) {
+            if (last == null) {
+                result = "";
+            } else if (markDirectories) {
+                String node = DirMarker.mark(Escaper.escape(last.name, URI_DELIMITER), directory);
+                result = last.parent == null ? node : last.parent.uri() + URI_DELIMITER + node;
+            } else {
+                result = last.uri();
             }
-            return sb.toString();
+            uri = result;
         }
+        return result;
     }
 
     @Override
     public String toString() {
-        if (empty()) {
-            return "";
-        } else {
-            StringBuilder sb = new StringBuilder();
-            for (String node : nodes) {
-                sb.append(node)
-                  .append(delimiter);
+        String result = string;
+        if (result == null) {
+            if (last == null) {
+                result = "";
+            } else if (directory && suffixDirectories) {
+                result = last.joined(delimiter) + delimiter;
+            } else {
+                result = last.joined(delimiter);
             }
-            if (!directory || !suffixDirectories) {
-                sb.setLength(sb.length()-1);
+            string = result;
+        }
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = last == null ? 0 : last.hash;
+        hash = hash*31 + delimiter.hashCode();
+        return hash*16 + (directory ? 8 : 0) + (markDirectories ? 4 : 0) + (suffixDirectories ? 2 : 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        } else if (!(obj instanceof Path)) {
+            return false;
+        }
+        Path other = (Path) obj;
+        if (directory != other.directory ||
+            markDirectories != other.markDirectories ||
+            suffixDirectories != other.suffixDirectories ||
+            !delimiter.equals(other.delimiter) ||
+            size() != other.size()) {
+            return false;
+        }
+        Node a = last;
+        Node b = other.last;
+        while (a != b) {
+            if (a.hash != b.hash || !a.name.equals(b.name)) {
+                return false;
             }
-            return sb.toString();
+            a = a.parent;
+            b = b.parent;
         }
+        return true;
     }
 
     public static class DirMarker {
@@ -370,38 +541,160 @@ public class Path {
         }
     }
 
+    /**
+     * Escapes and unescapes node names for use in URI paths.  A character
+     * that would otherwise be ambiguous (the delimiter, or a literal {@code (})
+     * is replaced with its code points in hex, separated by {@code :} and
+     * surrounded by {@code ()}, e.g. {@code /} becomes {@code (2f)}.
+     * <p/>
+     * Most node names need no escaping at all, so {@link #escape(String, String)}
+     * and {@link #unescape(String)} return their input unchanged (without
+     * copying) in that case.
+     */
     public static class Escaper {
-        private static final String LPAREN = "(";
-        private static final String QUOTE_LPAREN = "\\"+LPAREN;
-        private static final String LPAREN_ENCODED = encode(LPAREN);
-        private static final String RPAREN = ")";
-        private static final String QUOTE_RPAREN = "\\"+RPAREN;
-        private static final String COLON = ":";
+        private static final char LPAREN = '(';
+        private static final char RPAREN = ')';
+        private static final char COLON = ':';
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+        private static final String LPAREN_ENCODED = encode(String.valueOf(LPAREN));
+        private static final String URI_DELIMITER_ENCODED = encode(URI_DELIMITER);
 
         public static String decode(String string) {
-            return Stream.of(string.substring(LPAREN.length(), string.length()-RPAREN.length()).split(COLON))
-                    .filter(s -> !Strings.isNullOrEmpty(s))
-                    .map(s -> new String(Character.toChars(Integer.valueOf(s, 16))))
-                    .collect(Collectors.joining());
+            StringBuilder sb = new StringBuilder(string.length());
+            decode(string, 0, string.length()-1, sb);
+            return sb.toString();
+        }
+
+        /**
+         * Decodes the encoded code points between {@code (} at {@code lparen}
+         * and {@code )} at {@code rparen}, appending them to {@code sb}.
+         * Empty code points (leading, trailing or repeated {@code :}) are ignored.
+         * @param string the string containing the encoded sequence
+         * @param lparen the index of the opening {@code (}
+         * @param rparen the index of the closing {@code )}
+         * @param sb the builder to append to
+         */
+        private static void decode(String string, int lparen, int rparen, StringBuilder sb) {
+            int codePoint = 0;
+            boolean digits = false;
+            for (int i = lparen+1; i < rparen; i++) {
+                char c = string.charAt(i);
+                if (c == COLON) {
+                    if (digits) {
+                        sb.appendCodePoint(codePoint);
+                    }
+                    codePoint = 0;
+                    digits = false;
+                } else {
+                    int digit = Character.digit(c, 16);
+                    if (digit < 0) {
+                        throw new NumberFormatException("invalid hex digit '"+c+"' in "+string);
+                    }
+                    // anything past MAX_CODE_POINT is invalid: stop accumulating so appendCodePoint will reject it
+                    codePoint = Math.min(codePoint*16 + digit, Character.MAX_CODE_POINT+1);
+                    digits = true;
+                }
+            }
+            if (digits) {
+                sb.appendCodePoint(codePoint);
+            }
         }
 
         public static String encode(String s) {
-            return LPAREN+s.codePoints().boxed().map(Integer::toHexString).collect(Collectors.joining(COLON))+RPAREN;
+            StringBuilder sb = new StringBuilder(s.length()*3+2);
+            encode(s, sb);
+            return sb.toString();
+        }
+
+        private static void encode(String s, StringBuilder sb) {
+            sb.append(LPAREN);
+            for (int i = 0; i < s.length(); ) {
+                int codePoint = s.codePointAt(i);
+                if (i > 0) {
+                    sb.append(COLON);
+                }
+                int shift = Math.max(0, (31 - Integer.numberOfLeadingZeros(codePoint)) / 4 * 4);
+                for (; shift >= 0; shift -= 4) {
+                    sb.append(HEX[(codePoint >>> shift) & 0xf]);
+                }
+                i += Character.charCount(codePoint);
+            }
+            sb.append(RPAREN);
         }
 
         public static String escape(String string, String delimiter) {
-            return string.replace(LPAREN, LPAREN_ENCODED).replaceAll(delimiter, encode(delimiter));
+            boolean delimited = !delimiter.isEmpty() && string.contains(delimiter);
+            if (!delimited && string.indexOf(LPAREN) < 0) {
+                return string; // nothing to escape
+            }
+            String encoded = delimiter.equals(URI_DELIMITER) ? URI_DELIMITER_ENCODED : encode(delimiter);
+            if (overlaps(delimiter)) {
+                // the delimiter could match text inside an encoded "(", so replace in two passes as defined
+                return string.replace(String.valueOf(LPAREN), LPAREN_ENCODED).replace(delimiter, encoded);
+            }
+            StringBuilder sb = new StringBuilder(string.length()+16);
+            int copied = 0;
+            for (int i = 0; i < string.length(); ) {
+                if (string.charAt(i) == LPAREN) {
+                    sb.append(string, copied, i).append(LPAREN_ENCODED);
+                    copied = ++i;
+                } else if (delimited && string.startsWith(delimiter, i)) {
+                    sb.append(string, copied, i).append(encoded);
+                    copied = i += delimiter.length();
+                } else {
+                    i++;
+                }
+            }
+            return sb.append(string, copied, string.length()).toString();
+        }
+
+        /**
+         * Returns {@code true} if the delimiter contains any of the characters
+         * used to encode {@code (}.
+         * @param delimiter the delimiter
+         * @return {@code true} if single pass escaping could differ from two passes
+         */
+        private static boolean overlaps(String delimiter) {
+            for (int i = 0; i < LPAREN_ENCODED.length(); i++) {
+                if (delimiter.indexOf(LPAREN_ENCODED.charAt(i)) >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean escaped(char c) {
+            return c == COLON || Character.digit(c, 16) >= 0 && c < 0x80;
         }
 
-        private static final Pattern ESCAPE = Pattern.compile(QUOTE_LPAREN+"[:0-9a-fA-F]*"+QUOTE_RPAREN);
         public static String unescape(String string) {
-            Matcher m = ESCAPE.matcher(string);
-            StringBuffer result = new StringBuffer();
-            while (m.find()) {
-                m.appendReplacement(result, Matcher.quoteReplacement(decode(m.group())));
+            int lparen = string.indexOf(LPAREN);
+            if (lparen < 0) {
+                return string; // nothing to unescape
+            }
+            StringBuilder sb = null;
+            int copied = 0;
+            while (lparen >= 0) {
+                int rparen = lparen+1;
+                while (rparen < string.length() && escaped(string.charAt(rparen))) {
+                    rparen++;
+                }
+                if (rparen < string.length() && string.charAt(rparen) == RPAREN) {
+                    if (sb == null) {
+                        sb = new StringBuilder(string.length());
+                    }
+                    sb.append(string, copied, lparen);
+                    decode(string, lparen, rparen, sb);
+                    copied = rparen+1;
+                    lparen = string.indexOf(LPAREN, copied);
+                } else {
+                    lparen = string.indexOf(LPAREN, lparen+1);
+                }
+            }
+            if (sb == null) {
+                return string;
             }
-            m.appendTail(result);
-            return result.toString();
+            return sb.append(string, copied, string.length()).toString();
         }
     }
 }
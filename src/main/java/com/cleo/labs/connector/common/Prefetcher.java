@@ -0,0 +1,239 @@
+package com.cleo.labs.connector.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Downloads small objects in the background as soon as a DIR lists them,
+ * so that the GETs that usually follow a poll are served from memory.
+ * <p/>
+ * Prefetched content is held in a buffer bounded in total bytes, keyed by
+ * path and tagged with the generation the DIR listed (which is the
+ * generation downloaded).  A GET {@link #take(Path, long) takes} the content
+ * out of the buffer, waiting for a download still in flight, but only if
+ * the generation it found current is the one buffered: a path overwritten
+ * since the DIR is downloaded again.  Unclaimed
+ * content expires after {@link #DEFAULT_TTL_SECONDS}, the same kind of
+ * window in which DIR results also answer existence checks from the
+ * attribute cache, and writes to a path {@link #invalidate(Path) invalidate}
+ * it immediately.
+ * <p/>
+ * Like {@link AttrCache} there is a separate namespace for each host alias.
+ */
+public class Prefetcher {
+
+    public static final long DEFAULT_TTL_SECONDS = 60;
+
+    /**
+     * Downloads in flight per namespace.
+     */
+    private static final int THREADS = 8;
+
+    private static final ConcurrentMap<String,Prefetcher> namespaces = new ConcurrentHashMap<>();
+
+    /**
+     * A prefetched (or prefetching) object.
+     */
+    private static class Slot {
+        private final long generation;
+        private final long size;
+        private final long expires;
+        private final CompletableFuture<byte[]> content = new CompletableFuture<>();
+        private Slot(long generation, long size, long expires) {
+            this.generation = generation;
+            this.size = size;
+            this.expires = expires;
+        }
+    }
+
+    private final ConcurrentMap<String,Slot> slots = new ConcurrentHashMap<>();
+    private final AtomicLong reserved = new AtomicLong();
+    private final ThreadPoolExecutor executor;
+    private volatile long maxObjectBytes = 0;
+    private volatile long maxBufferBytes = 0;
+    private volatile long ttlNanos = TimeUnit.SECONDS.toNanos(DEFAULT_TTL_SECONDS);
+    private final AtomicLong nextExpire = new AtomicLong(System.nanoTime());
+
+    /**
+     * Returns the prefetcher for a host alias, reconfigured with the
+     * supplied limits.
+     * @param alias the host alias
+     * @param maxObjectBytes the largest object to prefetch, 0 to disable prefetching
+     * @param maxBufferBytes the maximum bytes held (or in flight) at once
+     * @return the (shared) prefetcher
+     */
+    public static Prefetcher namespace(String alias, long maxObjectBytes, long maxBufferBytes) {
+        Prefetcher prefetcher = namespaces.computeIfAbsent(alias, a -> new Prefetcher(a));
+        prefetcher.maxObjectBytes = Math.max(0, maxObjectBytes);
+        prefetcher.maxBufferBytes = Math.max(0, maxBufferBytes);
+        return prefetcher;
+    }
+
+    private Prefetcher(String alias) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, "prefetch-" + alias + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets how long unclaimed content is kept.
+     * @param ttl the time to live
+     * @param unit the unit of {@code ttl}
+     * @return {@code this} for fluent use
+     */
+    public Prefetcher ttl(long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+        return this;
+    }
+
+    /**
+     * Returns {@code true} if prefetching is enabled.
+     * @return {@code true} unless the maximum object size is 0
+     */
+    public boolean enabled() {
+        return maxObjectBytes > 0 && maxBufferBytes > 0;
+    }
+
+    /**
+     * Returns the bytes currently held or reserved for downloads in flight.
+     * @return the number of bytes
+     */
+    public long bytes() {
+        return reserved.get();
+    }
+
+    /**
+     * Starts downloading a listed object in the background, unless it is too
+     * large, the buffer is full, or the same generation is already buffered.
+     * @param path the full path of the object (the key for {@link #take(Path, long)})
+     * @param generation the generation listed
+     * @param size the size listed
+     * @param download opens the content of that generation
+     * @return {@code true} if a download was started
+     */
+    public boolean prefetch(Path path, long generation, long size, Callable<InputStream> download) {
+        if (!enabled() || size < 0 || size > maxObjectBytes) {
+            return false;
+        }
+        expire();
+        String key = path.toString();
+        Slot existing = slots.get(key);
+        if (existing != null && existing.generation == generation && generation != 0) {
+            return false;
+        }
+        if (reserved.addAndGet(size) > maxBufferBytes) {
+            reserved.addAndGet(-size);
+            return false;
+        }
+        Slot slot = new Slot(generation, size, System.nanoTime() + ttlNanos);
+        Slot replaced = slots.put(key, slot);
+        if (replaced != null) {
+            release(replaced);
+        }
+        executor.execute(() -> {
+            try (InputStream in = download.call()) {
+                slot.content.complete(ByteStreams.toByteArray(in));
+            } catch (Throwable e) {
+                slot.content.completeExceptionally(e);
+                if (slots.remove(key, slot)) {
+                    release(slot);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns {@code true} if content is buffered (or downloading) for a
+     * path, so that a GET only checks the current generation when there is
+     * something to take.
+     * @param path the full path of the object
+     * @return {@code true} if unexpired content is buffered
+     */
+    public boolean buffered(Path path) {
+        Slot slot = slots.get(path.toString());
+        return slot != null && slot.expires - System.nanoTime() >= 0;
+    }
+
+    /**
+     * Removes and returns the prefetched content for a path, waiting for
+     * the download to finish if it is still in flight.  Content of any
+     * other generation than the current one is discarded.
+     * @param path the full path of the object
+     * @param generation the current generation of the object, {@code 0} if unknown
+     * @return the content, or {@code null} if none is buffered, it is not of
+     *         {@code generation}, or the download failed
+     */
+    public InputStream take(Path path, long generation) {
+        expire();
+        Slot slot = slots.remove(path.toString());
+        if (slot == null) {
+            return null;
+        }
+        release(slot);
+        if (slot.expires - System.nanoTime() < 0 || generation == 0 || slot.generation != generation) {
+            return null;
+        }
+        try {
+            return new ByteArrayInputStream(slot.content.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Discards any content buffered for a path, e.g. after it is written.
+     * @param path the full path of the object
+     */
+    public void invalidate(Path path) {
+        Slot slot = slots.remove(path.toString());
+        if (slot != null) {
+            release(slot);
+        }
+    }
+
+    private void release(Slot slot) {
+        reserved.addAndGet(-slot.size);
+    }
+
+    /**
+     * Releases expired content, sweeping at most once a second.  Both
+     * {@link #prefetch} and {@link #take} sweep, so unclaimed content is
+     * released while GETs continue even if no DIR prefetches any more.
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        long next = nextExpire.get();
+        if (now - next < 0 || !nextExpire.compareAndSet(next, now + TimeUnit.SECONDS.toNanos(1))) {
+            return;
+        }
+        for (Iterator<Map.Entry<String,Slot>> i = slots.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String,Slot> entry = i.next();
+            if (entry.getValue().expires - now < 0 && slots.remove(entry.getKey(), entry.getValue())) {
+                release(entry.getValue());
+            }
+        }
+    }
+}
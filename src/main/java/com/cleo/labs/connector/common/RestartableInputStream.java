@@ -0,0 +1,176 @@
+package com.cleo.labs.connector.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * A download that survives transient failures: the stream tracks the
+ * number of bytes delivered and, when a read fails with a retryable error,
+ * reopens the source at that offset and continues, so a failure late in a
+ * large download costs a round trip instead of the whole transfer.
+ * <p/>
+ * The {@link Opener} must reopen the same immutable content (for example
+ * an object pinned to its generation), or the restarted stream could
+ * splice two versions together.
+ */
+public class RestartableInputStream extends InputStream {
+
+    /**
+     * Opens the content at an offset.
+     */
+    public interface Opener {
+        InputStream open(long offset) throws IOException;
+    }
+
+    private static final long MAX_BACKOFF_MILLIS = 10_000;
+
+    private final Opener opener;
+    private long position;
+    private InputStream in = null;
+    private int maxRetries = 5;
+    private long backoffMillis = 200;
+    private Predicate<Exception> retryable = e -> e instanceof IOException;
+    private int restarts = 0;
+
+    /**
+     * Creates a stream starting at an offset.  Nothing is opened until the
+     * first read.
+     * @param opener opens the content at an offset
+     * @param offset the offset of the first byte to read
+     */
+    public RestartableInputStream(Opener opener, long offset) {
+        this.opener = opener;
+        this.position = Math.max(0, offset);
+    }
+
+    /**
+     * Sets the number of consecutive failed attempts retried before giving up.
+     * @param maxRetries the number of retries
+     * @return {@code this} for fluent use
+     */
+    public RestartableInputStream maxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+        return this;
+    }
+
+    /**
+     * Sets the delay before the first retry, doubling with each
+     * consecutive failure.
+     * @param backoff the delay
+     * @param unit the unit of {@code backoff}
+     * @return {@code this} for fluent use
+     */
+    public RestartableInputStream backoff(long backoff, TimeUnit unit) {
+        this.backoffMillis = Math.max(0, unit.toMillis(backoff));
+        return this;
+    }
+
+    /**
+     * Sets which failures are retried (by default any {@link IOException}).
+     * @param retryable tests a failure
+     * @return {@code this} for fluent use
+     */
+    public RestartableInputStream retryable(Predicate<Exception> retryable) {
+        this.retryable = retryable;
+        return this;
+    }
+
+    /**
+     * Returns the offset of the next byte to be read.
+     * @return the offset
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Returns the number of times the source was reopened after a failure.
+     * @return the number of restarts
+     */
+    public int restarts() {
+        return restarts;
+    }
+
+    private interface Attempt {
+        long run(InputStream in) throws IOException;
+    }
+
+    private long attempt(Attempt attempt) throws IOException {
+        int failures = 0;
+        while (true) {
+            try {
+                if (in == null) {
+                    in = opener.open(position);
+                }
+                return attempt.run(in);
+            } catch (IOException | RuntimeException e) {
+                if (++failures > maxRetries || !retryable.test(e)) {
+                    throw e;
+                }
+                abandon();
+                restarts++;
+                try {
+                    TimeUnit.MILLISECONDS.sleep(Math.min(MAX_BACKOFF_MILLIS, backoffMillis << Math.min(failures-1, 16)));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    InterruptedIOException ioe = new InterruptedIOException("interrupted restarting download");
+                    ioe.addSuppressed(e);
+                    throw ioe;
+                }
+            }
+        }
+    }
+
+    private void abandon() {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException | RuntimeException ignore) {
+                // it failed already
+            }
+            in = null;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int c = (int) attempt(s -> s.read());
+        if (c >= 0) {
+            position++;
+        }
+        return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = (int) attempt(s -> s.read(b, off, len));
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = attempt(s -> s.skip(n));
+        position += Math.max(0, skipped);
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            try {
+                in.close();
+            } finally {
+                in = null;
+            }
+        }
+    }
+}
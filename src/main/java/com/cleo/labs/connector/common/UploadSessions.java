@@ -0,0 +1,218 @@
+package com.cleo.labs.connector.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Persists the state of resumable uploads in a local directory, so that an
+ * upload interrupted by a restart of the JVM can be resumed by the next
+ * PUT of the same source to the same destination instead of starting over.
+ * <p/>
+ * Each upload is a file named by a {@link #key(String...) key} for its
+ * destination, holding the {@link #fingerprint(File) fingerprint} of the
+ * source, the number of source bytes written, and the id of the upload
+ * session (for GCS, its session URI).  Nothing else is kept: no credentials
+ * and no buffered content.  A session that finds a different fingerprint
+ * is discarded, as the source has changed.  Sessions expire on the server
+ * after a week, so state files older than {@link #LIFETIME_DAYS} are removed.
+ * <p/>
+ * Failures are never fatal: state that can not be read or written just
+ * means the upload starts over.  Instances are shared per directory: use
+ * {@link #open(File)}.
+ */
+public class UploadSessions {
+
+    public static final long LIFETIME_DAYS = 7;
+
+    private static final String SUFFIX = ".upload";
+    private static final String TEMP = ".tmp";
+    private static final long SWEEP_INTERVAL = TimeUnit.HOURS.toMillis(1);
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final ConcurrentMap<String,UploadSessions> directories = new ConcurrentHashMap<>();
+
+    /**
+     * The persisted state of an upload.
+     */
+    public static class Session implements Serializable {
+        private static final long serialVersionUID = 2L;
+        private final String fingerprint;
+        private final long offset;
+        private final String uploadId;
+
+        public Session(String fingerprint, long offset, String uploadId) {
+            this.fingerprint = fingerprint;
+            this.offset = offset;
+            this.uploadId = uploadId;
+        }
+
+        /**
+         * Returns the number of source bytes written to the session.
+         * @return the offset to resume the source from
+         */
+        public long offset() {
+            return offset;
+        }
+
+        /**
+         * Returns the id of the upload session on the server.
+         * @return the upload id
+         */
+        public String uploadId() {
+            return uploadId;
+        }
+    }
+
+    private final File directory;
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    /**
+     * Returns the sessions in a directory, creating the directory if needed.
+     * @param directory the state directory
+     * @return the (shared) sessions
+     * @throws IOException if the directory can not be created
+     */
+    public static UploadSessions open(File directory) throws IOException {
+        String key = directory.getAbsolutePath();
+        UploadSessions sessions = directories.get(key);
+        if (sessions == null) {
+            synchronized (directories) {
+                sessions = directories.get(key);
+                if (sessions == null) {
+                    sessions = new UploadSessions(new File(key));
+                    directories.put(key, sessions);
+                }
+            }
+        }
+        sessions.sweep();
+        return sessions;
+    }
+
+    /**
+     * Returns a key for the components identifying an upload destination.
+     * @param components e.g. the bucket and object name
+     * @return a key
+     */
+    public static String key(String...components) {
+        return HASH.hashString(String.join("\u0000", components), StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Returns a fingerprint of a local source file: its path, length and
+     * modification time.
+     * @param file the source
+     * @return the fingerprint, or {@code null} if it is not a regular file
+     */
+    public static String fingerprint(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        return file.getAbsolutePath() + "\u0000" + file.length() + "\u0000" + file.lastModified();
+    }
+
+    private UploadSessions(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException(String.format("can not create directory '%s'", directory));
+        }
+        this.directory = directory;
+    }
+
+    private File file(String key) {
+        return new File(directory, key + SUFFIX);
+    }
+
+    /**
+     * Returns the session saved for a key, if it was saved for the same
+     * source.  A session for a different source is removed.
+     * @param key the key
+     * @param fingerprint the fingerprint of the source
+     * @return the session, or {@code null}
+     */
+    public Session load(String key, String fingerprint) {
+        File file = file(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            Session session = (Session) in.readObject();
+            if (session.fingerprint.equals(fingerprint) && !expired(file, System.currentTimeMillis())) {
+                return session;
+            }
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // unreadable: start over
+        }
+        file.delete();
+        return null;
+    }
+
+    /**
+     * Saves the state of a session, replacing any earlier state for the key.
+     * @param key the key
+     * @param session the session
+     * @return {@code true} if the state was saved
+     */
+    public boolean save(String key, Session session) {
+        File temp = null;
+        try {
+            temp = File.createTempFile("save-" + key + "-", TEMP, directory);
+            try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+                out.writeObject(session);
+            }
+            Files.move(temp.toPath(), file(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.delete();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Removes the state for a key, e.g. when the upload completes.
+     * @param key the key
+     */
+    public void remove(String key) {
+        file(key).delete();
+    }
+
+    private static boolean expired(File file, long now) {
+        return now - file.lastModified() > TimeUnit.DAYS.toMillis(LIFETIME_DAYS);
+    }
+
+    /**
+     * Removes expired state and abandoned temporary files, at most once an hour.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        long next = nextSweep.get();
+        if (now < next || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if ((name.endsWith(SUFFIX) && expired(file, now))
+                        || (name.endsWith(TEMP) && now - file.lastModified() > SWEEP_INTERVAL)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.cleo.labs.connector.common;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Shapes the rate of writes to a bucket to what Cloud Storage sustains
+ * without throttling: about {@link #OBJECT_WRITES_PER_SECOND one write a
+ * second} to the same object name, and for the bucket as a whole an
+ * initial {@link #INITIAL_WRITES_PER_SECOND} writes a second, doubling
+ * at most every {@link #RAMP_DOUBLING_MINUTES} minutes of sustained
+ * activity.  The ramp starts over after the bucket has been idle for a
+ * doubling period.
+ * <p/>
+ * Writes over the rate are delayed, smoothly, rather than rejected, so
+ * nothing is retried and no upload is sent only to be refused.
+ * <p/>
+ * Shapers are shared per bucket: use {@link #named(String)}.
+ */
+public class WriteShaper {
+
+    public static final double OBJECT_WRITES_PER_SECOND = 1;
+    public static final double INITIAL_WRITES_PER_SECOND = 1000;
+    public static final long RAMP_DOUBLING_MINUTES = 20;
+
+    /**
+     * The ramp stops doubling here, far beyond any single JVM.
+     */
+    private static final double MAX_WRITES_PER_SECOND = INITIAL_WRITES_PER_SECOND * 1024;
+    private static final long RAMP_NANOS = TimeUnit.MINUTES.toNanos(RAMP_DOUBLING_MINUTES);
+
+    private static final ConcurrentMap<String,WriteShaper> shapers = new ConcurrentHashMap<>();
+
+    private final RateLimiter bucket = RateLimiter.create(INITIAL_WRITES_PER_SECOND);
+    private final LoadingCache<String,RateLimiter> objects = CacheBuilder.newBuilder()
+            .expireAfterAccess(5, TimeUnit.SECONDS) // an idle name is allowed a write at once anyway
+            .build(new CacheLoader<String,RateLimiter>() {
+                @Override
+                public RateLimiter load(String name) {
+                    return RateLimiter.create(OBJECT_WRITES_PER_SECOND);
+                }
+            });
+    private long rampStart = System.nanoTime();
+    private long lastWrite = rampStart;
+
+    /**
+     * Returns the shaper for a bucket.
+     * @param bucket the bucket name
+     * @return the (shared) shaper
+     */
+    public static WriteShaper named(String bucket) {
+        return shapers.computeIfAbsent(bucket, b -> new WriteShaper());
+    }
+
+    /**
+     * Returns the bucket write rate allowed after a period of sustained
+     * activity.
+     * @param elapsedNanos the time since the ramp started
+     * @return the writes per second
+     */
+    public static double rate(long elapsedNanos) {
+        long doublings = Math.max(0, elapsedNanos / RAMP_NANOS);
+        return doublings >= 10 ? MAX_WRITES_PER_SECOND : INITIAL_WRITES_PER_SECOND * (1L << doublings);
+    }
+
+    /**
+     * Waits until a write to an object is within the rates.
+     * @param object the object name
+     * @return the time spent waiting, in seconds
+     */
+    public double acquire(String object) {
+        double waited = objects.getUnchecked(object).acquire();
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (now - lastWrite > RAMP_NANOS) {
+                rampStart = now; // idle too long to count as sustained
+            }
+            lastWrite = now;
+            double rate = rate(now - rampStart);
+            if (rate != bucket.getRate()) {
+                bucket.setRate(rate);
+            }
+        }
+        return waited + bucket.acquire();
+    }
+
+    /**
+     * Returns the bucket write rate currently allowed.
+     * @return the writes per second
+     */
+    public synchronized double rate() {
+        return bucket.getRate();
+    }
+}
@@ -0,0 +1,163 @@
+package com.cleo.labs.connector.gcpbucket;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.google.cloud.storage.Bucket;
+
+/**
+ * The buckets of a project, remembered for a TTL so that root listings and
+ * bucket existence checks are answered from memory instead of listing or
+ * getting buckets on every account-level command.
+ * <p/>
+ * The catalog is filled by a root listing as it streams: buckets are
+ * returned page by page as they are read, and only a listing read to the
+ * end is remembered.  Creating or deleting a bucket through the connector
+ * updates the catalog, and a listing that was in progress at the time is
+ * not remembered.  Buckets created or deleted elsewhere show up when the
+ * TTL expires.
+ * <p/>
+ * Catalogs are shared by name, e.g. per host alias and configuration: use
+ * {@link #named(String, long)}.
+ */
+public class BucketCatalog {
+
+    private static final ConcurrentMap<String,BucketCatalog> catalogs = new ConcurrentHashMap<>();
+
+    private static class Snapshot {
+        private final long loaded;
+        private final SortedMap<String,Bucket> buckets;
+
+        private Snapshot(long loaded, SortedMap<String,Bucket> buckets) {
+            this.loaded = loaded;
+            this.buckets = Collections.unmodifiableSortedMap(buckets);
+        }
+    }
+
+    private volatile Snapshot snapshot = null;
+    private volatile long ttlNanos;
+    private long generation = 0;
+
+    /**
+     * Returns the catalog for a name, setting its TTL.
+     * @param name the name, e.g. the host alias and configuration
+     * @param ttlSeconds how long a listing is remembered, {@code 0} not to remember
+     * @return the (shared) catalog
+     */
+    public static BucketCatalog named(String name, long ttlSeconds) {
+        BucketCatalog catalog = catalogs.computeIfAbsent(name, n -> new BucketCatalog());
+        catalog.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, ttlSeconds));
+        return catalog;
+    }
+
+    private Snapshot fresh() {
+        Snapshot current = snapshot;
+        if (current != null && System.nanoTime() - current.loaded < ttlNanos) {
+            return current;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a bucket from the catalog.
+     * @param name the bucket name
+     * @return the bucket if it exists, empty if not, {@code null} if no current listing is remembered
+     */
+    public Optional<Bucket> get(String name) {
+        Snapshot current = fresh();
+        if (current == null) {
+            return null;
+        }
+        return Optional.ofNullable(current.buckets.get(name));
+    }
+
+    /**
+     * Returns the buckets, from the catalog if it is current or else from
+     * a listing, remembered once it has been read to the end.
+     * @param lister lists the buckets, e.g. lazily page by page
+     * @return the buckets, in order of name from the catalog
+     */
+    public Iterable<Bucket> buckets(Supplier<Iterable<Bucket>> lister) {
+        Snapshot current = fresh();
+        if (current != null) {
+            return current.buckets.values();
+        }
+        return () -> new Iterator<Bucket>() {
+            private final long started = generation();
+            private final long loaded = System.nanoTime();
+            private final SortedMap<String,Bucket> buckets = new TreeMap<>();
+            private final Iterator<Bucket> listing = lister.get().iterator();
+
+            @Override
+            public boolean hasNext() {
+                if (listing.hasNext()) {
+                    return true;
+                }
+                remember(started, new Snapshot(loaded, buckets));
+                return false;
+            }
+
+            @Override
+            public Bucket next() {
+                Bucket bucket = listing.next();
+                buckets.put(bucket.getName(), bucket);
+                return bucket;
+            }
+        };
+    }
+
+    /**
+     * Adds a bucket created through the connector.
+     * @param bucket the bucket
+     */
+    public synchronized void added(Bucket bucket) {
+        update(bucket.getName(), bucket);
+    }
+
+    /**
+     * Removes a bucket deleted through the connector.
+     * @param name the bucket name
+     */
+    public synchronized void removed(String name) {
+        update(name, null);
+    }
+
+    /**
+     * Forgets the buckets, so the next root listing reads them again.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        snapshot = null;
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+
+    private synchronized void remember(long started, Snapshot listed) {
+        if (started == generation && ttlNanos > 0) {
+            snapshot = listed;
+        }
+    }
+
+    private void update(String name, Bucket bucket) {
+        generation++;
+        Snapshot current = snapshot;
+        if (current != null) {
+            SortedMap<String,Bucket> buckets = new TreeMap<>(current.buckets);
+            if (bucket == null) {
+                buckets.remove(name);
+            } else {
+                buckets.put(name, bucket);
+            }
+            snapshot = new Snapshot(current.loaded, buckets);
+        }
+    }
+}
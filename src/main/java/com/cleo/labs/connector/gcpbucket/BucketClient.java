@@ -2,30 +2,90 @@ package com.cleo.labs.connector.gcpbucket;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 
+import com.cleo.connector.api.ConnectorException;
 import com.cleo.connector.api.directory.Directory.Type;
 import com.cleo.connector.api.helper.Attributes;
+import com.cleo.labs.connector.common.AsyncClient;
 import com.cleo.labs.connector.common.Client;
+import com.cleo.labs.connector.common.ContentCache;
 import com.cleo.labs.connector.common.Entry;
 import com.cleo.labs.connector.common.EntryAttributes;
+import com.cleo.labs.connector.common.Gzip;
+import com.cleo.labs.connector.common.NameFilter;
 import com.cleo.labs.connector.common.Path;
+import com.cleo.labs.connector.common.RestartableInputStream;
+import com.cleo.labs.connector.common.UploadSessions;
+import com.cleo.labs.connector.common.WriteShaper;
 import com.google.api.gax.paging.Page;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.cloud.BaseService;
+import com.google.cloud.BatchResult;
+import com.google.cloud.ReadChannel;
+import com.google.cloud.RetryHelper;
+import com.google.cloud.WriteChannel;
 import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Bucket;
 import com.google.cloud.storage.CopyWriter;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.Storage.BlobField;
 import com.google.cloud.storage.Storage.BlobListOption;
 import com.google.cloud.storage.Storage.BucketField;
+import com.google.cloud.storage.StorageBatch;
+import com.google.cloud.storage.StorageException;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.storage.spi.v1.StorageRpc;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 
 public class BucketClient extends Client {
     private Storage storage;
     private Bucket bucket;
+    private ContentCache cache = null;
+    private boolean compress = false;
+    private UploadSessions sessions = null;
+    private WriteShaper shaper = null;
+    private Executor executor = Runnable::run;
+
+    /**
+     * The most deletes sent in one batch request (the service allows 100),
+     * and the most batches in flight at once.
+     */
+    public static final int BATCH_SIZE = 100;
+    private static final int BATCHES_IN_FLIGHT = 4;
+
+    /**
+     * The chunk size for resumable uploads, whose progress is saved after
+     * each chunk is written.
+     */
+    private static final int UPLOAD_CHUNK = 8 * 1024 * 1024;
+
+    /**
+     * The metadata key recording the uncompressed size of objects uploaded
+     * with gzip Content-Encoding.
+     */
+    public static final String UNCOMPRESSED_SIZE = "uncompressed-size";
 
     public BucketClient(Storage storage, String bucket) {
         this.storage = storage;
@@ -33,6 +93,65 @@ public class BucketClient extends Client {
                 Storage.BucketGetOption.fields(BucketField.NAME, BucketField.TIME_CREATED));
     }
 
+    /**
+     * Caches downloaded content in a {@link ContentCache}, keyed by bucket,
+     * name and generation.
+     * @param cache the cache, {@code null} to disable caching
+     * @return {@code this} for fluent use
+     */
+    public BucketClient contentCache(ContentCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Saves the progress of {@link #upload(Path, RestartableInputStream.Opener, String)
+     * resumable uploads} so they can be resumed after a restart.
+     * @param sessions the upload state, {@code null} to disable resuming
+     * @return {@code this} for fluent use
+     */
+    public BucketClient uploadSessions(UploadSessions sessions) {
+        this.sessions = sessions;
+        return this;
+    }
+
+    /**
+     * Uploads with gzip Content-Encoding, compressing as the content streams.
+     * @param compress {@code true} to compress uploads
+     * @return {@code this} for fluent use
+     */
+    public BucketClient compress(boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    /**
+     * Paces writes to what Cloud Storage sustains for an object name and
+     * for the bucket, delaying rather than rejecting writes over the rate.
+     * @param shaper the shaper for this bucket, {@code null} to write at will
+     * @return {@code this} for fluent use
+     */
+    public BucketClient writeShaper(WriteShaper shaper) {
+        this.shaper = shaper;
+        return this;
+    }
+
+    /**
+     * Runs the batches of bulk operations on an executor, several at once.
+     * @param executor the executor, by default the calling thread
+     * @return {@code this} for fluent use
+     */
+    public BucketClient executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    private void shape(String name) {
+        if (shaper != null) {
+            shaper.acquire(name);
+        }
+    }
+
     public boolean exists(Path path) {
         if (path.empty()) {
             return bucket.exists();
@@ -41,7 +160,19 @@ public class BucketClient extends Client {
         }
     }
 
+    /**
+     * Gets only the generation of an object, a metadata request.
+     */
+    public long generation(Path path) {
+        Blob blob = bucket.get(path.toString(), Storage.BlobGetOption.fields(BlobField.GENERATION));
+        if (blob == null) {
+            return -1;
+        }
+        return blob.getGeneration() == null ? 0 : blob.getGeneration();
+    }
+
     public boolean mkdir(Path path) {
+        shape(path.directory(true).toString());
         bucket.create(path.directory(true).toString(), new byte[0], Bucket.BlobTargetOption.doesNotExist());
         return true;
     }
@@ -51,13 +182,16 @@ public class BucketClient extends Client {
         if (blob == null) {
             return false; // didn't exist
         }
+        shape(blob.getName());
         blob.delete();
         return true;
     }
 
+    private static final BlobField[] ATTR_FIELDS = {
+            BlobField.NAME, BlobField.SIZE, BlobField.UPDATED, BlobField.METADATA };
+
     private Blob get(Path source) {
-        Blob blob = bucket.get(source.toString(),
-                Storage.BlobGetOption.fields(BlobField.NAME, BlobField.SIZE, BlobField.UPDATED));
+        Blob blob = bucket.get(source.toString(), Storage.BlobGetOption.fields(ATTR_FIELDS));
         return blob;
     }
 
@@ -66,20 +200,83 @@ public class BucketClient extends Client {
         if (blob == null) {
             return false; // source didn't exist
         }
+        shape(target.toString());
         CopyWriter copyWriter = blob.copyTo(bucket.getName(), target.toString());
         Blob copied = copyWriter.getResult();
         if (copied == null) {
             return false;
         }
+        shape(blob.getName());
         return blob.delete();
     }
 
+    /**
+     * Deletes an object in a single request.
+     * @return {@code false} if it didn't exist
+     */
     public boolean delete(Path path) {
-        Blob blob = bucket.get(path.toString());
-        if (blob == null) {
-            return false; // didn't exist
+        shape(path.toString());
+        return storage.delete(BlobId.of(bucket.getName(), path.toString()));
+    }
+
+    /**
+     * Deletes objects in batches of up to {@link #BATCH_SIZE}, several
+     * batches in flight at once on the {@link #executor(Executor) executor}.
+     */
+    @Override
+    public List<String> delete(List<Path> paths, List<Path> deleted) throws ConnectorException {
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Path> done = Collections.synchronizedList(new ArrayList<>());
+        inBatches(paths, batch -> delete(batch, done, errors));
+        deleted.addAll(done);
+        return errors;
+    }
+
+    /**
+     * Runs a task for each batch of up to {@link #BATCH_SIZE} paths, up to
+     * {@link #BATCHES_IN_FLIGHT} at once on the executor, and waits for them.
+     */
+    private void inBatches(List<Path> paths, Consumer<List<Path>> task) throws ConnectorException {
+        Semaphore inFlight = new Semaphore(BATCHES_IN_FLIGHT);
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (List<Path> batch : Lists.partition(paths, BATCH_SIZE)) {
+            inFlight.acquireUninterruptibly();
+            batches.add(CompletableFuture.runAsync(() -> {
+                try {
+                    task.accept(batch);
+                } finally {
+                    inFlight.release();
+                }
+            }, executor));
+        }
+        AsyncClient.await(CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[batches.size()])));
+    }
+
+    private void delete(List<Path> paths, List<Path> done, List<String> errors) {
+        StorageBatch batch = storage.batch();
+        for (Path path : paths) {
+            shape(path.toString());
+            batch.delete(BlobId.of(bucket.getName(), path.toString()))
+                    .notify(new BatchResult.Callback<Boolean,StorageException>() {
+                        @Override
+                        public void success(Boolean result) {
+                            if (Boolean.TRUE.equals(result)) {
+                                done.add(path);
+                            } else {
+                                errors.add(String.format("'%s': does not exist", path));
+                            }
+                        }
+                        @Override
+                        public void error(StorageException e) {
+                            errors.add(String.format("'%s': %s", path, e.getMessage()));
+                        }
+                    });
+        }
+        try {
+            batch.submit();
+        } catch (StorageException e) {
+            paths.forEach(path -> errors.add(String.format("'%s': %s", path, e.getMessage())));
         }
-        return blob.delete();
     }
 
     private static Entry blobToEntry(Blob blob, Path path) {
@@ -87,40 +284,120 @@ public class BucketClient extends Client {
         entry.setDescription("GCP Storage Object");
         entry.setPathObject(path);
         if (blob.getSize() != null) {
-            entry.setSize(blob.getSize());
+            entry.setSize(size(blob));
         }
         if (blob.getUpdateTime() != null) {
             entry.setDate(Attributes.toLocalDateTime(blob.getUpdateTime()));
         }
+        if (blob.getGeneration() != null) {
+            entry.setGeneration(blob.getGeneration());
+        }
+        entry.setEncoding(blob.getContentEncoding());
         return entry;
     }
 
+    /**
+     * Returns the size of the content of a blob, which is the recorded
+     * uncompressed size for a blob uploaded with compression.
+     */
+    private static long size(Blob blob) {
+        String uncompressed = blob.getMetadata() == null ? null : blob.getMetadata().get(UNCOMPRESSED_SIZE);
+        if (uncompressed != null) {
+            try {
+                return Long.parseLong(uncompressed);
+            } catch (NumberFormatException ignore) {
+                // fall through to the stored size
+            }
+        }
+        return blob.getSize();
+    }
+
     public List<Entry> list(Path path) {
+        return Lists.newArrayList(iterate(path));
+    }
+
+    /**
+     * Lists a directory a page at a time as the entries are iterated.
+     */
+    public Iterable<Entry> iterate(Path path) {
+        return iterate(path, null);
+    }
+
+    /**
+     * Lists the matching entries of a directory a page at a time.  Only
+     * the filter's literal prefix is listed, and the rest of the pattern is
+     * tested on the blob names so that non-matching blobs never become
+     * Entries.
+     */
+    public Iterable<Entry> iterate(Path path, NameFilter filter) {
         String target = path.directory(true).toString();
         Page<Blob> blobs = bucket.list(
-                BlobListOption.fields(BlobField.NAME, BlobField.SIZE, BlobField.UPDATED),
-                BlobListOption.prefix(target),
+                BlobListOption.fields(BlobField.NAME, BlobField.SIZE, BlobField.UPDATED, BlobField.GENERATION,
+                        BlobField.CONTENT_ENCODING, BlobField.METADATA),
+                BlobListOption.prefix(filter == null ? target : target + filter.prefix()),
                 BlobListOption.currentDirectory(),
                 BlobListOption.pageSize(100));
+        return FluentIterable.from(blobs.iterateAll())
+                .filter(blob -> !blob.getName().equals(target))
+                .filter(blob -> filter == null || filter.matches(name(blob, target)))
+                .transform(blob -> {
+                    Path fullPath = path.child(name(blob, target)).directory(blob.isDirectory()); // in this context blob.isDirectory is accurate
+                    return blobToEntry(blob, fullPath);
+                });
+    }
+
+    /**
+     * Returns the name of a blob listed in a directory, without the
+     * directory prefix or the trailing SLASH of a subdirectory.
+     */
+    private static String name(Blob blob, String target) {
+        String name = blob.getName().substring(target.length());
+        if (blob.isDirectory()) {
+            name = name.substring(0, name.length()-1); // remove trailing SLASH
+        }
+        return name;
+    }
+
+    /**
+     * Lists a directory, or with {@code recursive} its whole subtree in a
+     * single (paged) listing of the prefix rather than one per subdirectory.
+     */
+    public List<Entry> list(Path path, boolean recursive) {
+        if (!recursive) {
+            return list(path);
+        }
+        String target = path.directory(true).toString();
+        Page<Blob> blobs = bucket.list(
+                BlobListOption.fields(BlobField.NAME, BlobField.SIZE, BlobField.UPDATED, BlobField.GENERATION,
+                        BlobField.CONTENT_ENCODING, BlobField.METADATA),
+                BlobListOption.prefix(target),
+                BlobListOption.pageSize(1000));
         List<Entry> result = new ArrayList<>();
         for (Blob blob : blobs.iterateAll()) {
             if (!blob.getName().equals(target)) {
-                String name = blob.getName().substring(target.length());
-                if (blob.isDirectory()) {
-                    name = name.substring(0, name.length()-1); // remove trailing SLASH
+                Path fullPath = path;
+                for (String node : blob.getName().substring(target.length()).split(ProjectClient.SLASH)) {
+                    if (!node.isEmpty()) {
+                        fullPath = fullPath.child(node);
+                    }
                 }
-                Path fullPath = path.child(name).directory(blob.isDirectory()); // in this context blob.isDirectory is accurate
-                Entry entry = blobToEntry(blob, fullPath);
-                result.add(entry);
+                result.add(blobToEntry(blob, fullPath.directory(blob.getName().endsWith(ProjectClient.SLASH))));
             }
         }
         return result;
     }
 
-    public boolean upload(Path path, InputStream in) {
+    public boolean upload(Path path, InputStream in) throws ConnectorException {
         try {
-            bucket.create(path.toString(), in, Bucket.BlobWriteOption.doesNotExist());
+            shape(path.toString());
+            if (compress) {
+                uploadCompressed(path, in);
+            } else {
+                bucket.create(path.toString(), in, Bucket.BlobWriteOption.doesNotExist());
+            }
             return true;
+        } catch (IOException e) {
+            throw new ConnectorException(String.format("'%s' could not be uploaded", path), e);
         } finally {
             try {
                 in.close();
@@ -130,16 +407,277 @@ public class BucketClient extends Client {
         }
     }
 
+    /**
+     * Uploads with gzip Content-Encoding, recording the uncompressed size
+     * in the {@link #UNCOMPRESSED_SIZE} metadata.  Content that compresses
+     * into a single upload chunk is created, metadata included, in one
+     * request.  Larger content is streamed through a resumable session,
+     * whose metadata is fixed when it opens, before the size is known:
+     * the size is patched in afterwards, so until then (or for good, if
+     * the patch fails) the object reports its compressed size.
+     */
+    private void uploadCompressed(Path path, InputStream in) throws IOException {
+        CountingInputStream counted = new CountingInputStream(in);
+        InputStream compressed = Gzip.compress(counted);
+        BlobInfo info = BlobInfo.newBuilder(bucket.getName(), path.toString())
+                .setContentEncoding(Gzip.ENCODING)
+                .build();
+        byte[] chunk = new byte[UPLOAD_CHUNK];
+        int n = ByteStreams.read(compressed, chunk, 0, chunk.length);
+        if (n < chunk.length) {
+            storage.create(info.toBuilder().setMetadata(uncompressedSize(counted)).build(),
+                    Arrays.copyOf(chunk, n), Storage.BlobTargetOption.doesNotExist());
+            return;
+        }
+        try (WriteChannel writer = storage.writer(info, Storage.BlobWriteOption.doesNotExist())) {
+            writer.setChunkSize(UPLOAD_CHUNK);
+            do {
+                writer.write(ByteBuffer.wrap(chunk, 0, n));
+            } while ((n = ByteStreams.read(compressed, chunk, 0, chunk.length)) > 0);
+        }
+        // a new object is at metageneration 1: don't clobber metadata someone set since
+        storage.update(BlobInfo.newBuilder(info.getBlobId())
+                        .setMetageneration(1L)
+                        .setMetadata(uncompressedSize(counted))
+                        .build(),
+                Storage.BlobTargetOption.metagenerationMatch());
+    }
+
+    private static Map<String,String> uncompressedSize(CountingInputStream counted) {
+        return ImmutableMap.of(UNCOMPRESSED_SIZE, String.valueOf(counted.getCount()));
+    }
+
+    /**
+     * Uploads a source through a resumable upload session whose progress is
+     * saved after every chunk.  If progress was saved for the same
+     * destination and source, the session is resumed and the source reopened
+     * at the offset reached.  Only the session URI and the offset are saved,
+     * never credentials or buffered content, and progress is only saved once
+     * the service has acknowledged a chunk, so a resumed session never skips
+     * bytes and repeats at most the chunk that was in flight.  A session the
+     * service no longer knows starts over.
+     * Compressed uploads are never resumed.
+     */
+    @Override
+    public boolean upload(Path path, RestartableInputStream.Opener source, String fingerprint) throws ConnectorException {
+        if (sessions == null || fingerprint == null || compress) {
+            return super.upload(path, source, fingerprint);
+        }
+        shape(path.toString());
+        String key = UploadSessions.key(bucket.getName(), path.toString());
+        UploadSessions.Session session = sessions.load(key, fingerprint);
+        if (session != null) {
+            try {
+                return transfer(path, key, fingerprint, session.uploadId(), session.offset(), source);
+            } catch (StorageException e) {
+                if (e.getCode() != 404 && e.getCode() != 410) {
+                    throw e;
+                }
+                // the session expired or was abandoned: start over
+            }
+            sessions.remove(key);
+        }
+        StorageObject object = new StorageObject().setBucket(bucket.getName()).setName(path.toString());
+        String uploadId = retried(() -> rpc().open(object,
+                ImmutableMap.of(StorageRpc.Option.IF_GENERATION_MATCH, 0L))); // doesNotExist
+        return transfer(path, key, fingerprint, uploadId, 0, source);
+    }
+
+    /**
+     * Writes a source to a resumable upload session one chunk at a time,
+     * the last one marked as such, saving the offset after each chunk.
+     */
+    private boolean transfer(Path path, String key, String fingerprint, String uploadId, long offset,
+            RestartableInputStream.Opener source) throws ConnectorException {
+        try (InputStream in = source.open(offset)) {
+            byte[] buffer = new byte[UPLOAD_CHUNK];
+            long written = offset;
+            int n;
+            do {
+                n = ByteStreams.read(in, buffer, 0, buffer.length);
+                boolean last = n < buffer.length;
+                long position = written;
+                int length = n;
+                retried(() -> {
+                    rpc().write(uploadId, buffer, 0, position, length, last);
+                    return null;
+                });
+                written += n;
+                if (!last) {
+                    sessions.save(key, new UploadSessions.Session(fingerprint, written, uploadId));
+                }
+            } while (n == buffer.length);
+            sessions.remove(key);
+            return true;
+        } catch (IOException e) {
+            // the next attempt resumes from the last chunk saved
+            throw new ConnectorException(String.format("'%s' could not be uploaded", path), e);
+        }
+    }
+
+    private StorageRpc rpc() {
+        return (StorageRpc) storage.getOptions().getRpc();
+    }
+
+    /**
+     * Runs an RPC with the retry settings of the {@link Storage} client, as
+     * the client does for its own requests.
+     */
+    private <T> T retried(Callable<T> rpc) {
+        StorageOptions options = storage.getOptions();
+        try {
+            return RetryHelper.runWithRetries(rpc, options.getRetrySettings(), BaseService.EXCEPTION_HANDLER,
+                    options.getClock());
+        } catch (RetryHelper.RetryHelperException e) {
+            throw StorageException.translateAndThrow(e);
+        }
+    }
+
+    /**
+     * Downloads an object.  With a {@link #contentCache(ContentCache) cache},
+     * the current generation is looked up first (a metadata request) and
+     * served from the cache if present, otherwise that generation is
+     * downloaded and cached as it is read.
+     */
     public InputStream download(Path path) {
-        return Channels.newInputStream(bucket.get(path.toString()).reader());
+        if (cache == null) {
+            Blob blob = bucket.get(path.toString());
+            return Gzip.decompress(reader(blob.getBlobId(), 0), blob.getContentEncoding());
+        }
+        Blob blob = bucket.get(path.toString(), Storage.BlobGetOption.fields(BlobField.NAME, BlobField.GENERATION,
+                BlobField.SIZE, BlobField.CONTENT_ENCODING, BlobField.METADATA));
+        String key = ContentCache.key(bucket.getName(), blob.getName(), String.valueOf(blob.getGeneration()));
+        InputStream cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        return cache.put(key, size(blob), Gzip.decompress(reader(blob.getBlobId(), 0), blob.getContentEncoding()));
+    }
+
+    /**
+     * Downloads an object from an offset, pinned to its current generation.
+     * Offsets in gzip-encoded objects count uncompressed bytes, so those are
+     * decompressed from the start of the same generation and skipped forward.
+     */
+    public InputStream download(Path path, long offset) throws ConnectorException {
+        if (offset <= 0) {
+            return download(path);
+        }
+        Blob blob = bucket.get(path.toString(),
+                Storage.BlobGetOption.fields(BlobField.NAME, BlobField.GENERATION, BlobField.CONTENT_ENCODING));
+        if (Gzip.encoded(blob.getContentEncoding())) {
+            return skip(path, Gzip.decompress(reader(blob.getBlobId(), 0), blob.getContentEncoding()), offset);
+        }
+        return reader(blob.getBlobId(), offset);
+    }
+
+    /**
+     * Downloads the generation of an object listed in an entry (or the
+     * current generation if the entry doesn't have one), through the
+     * {@link #contentCache(ContentCache) cache} if there is one.
+     */
+    public InputStream download(Entry entry) {
+        Path path = entry.getPathObject();
+        long generation = entry.getGeneration();
+        if (generation == 0) {
+            return download(path);
+        }
+        String key = ContentCache.key(bucket.getName(), path.toString(), String.valueOf(generation));
+        if (cache != null) {
+            InputStream cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        InputStream in = Gzip.decompress(reader(BlobId.of(bucket.getName(), path.toString(), generation), 0),
+                entry.getEncoding());
+        return cache == null ? in : cache.put(key, entry.size(), in);
+    }
+
+    /**
+     * Opens a restartable stream over one generation of an object: reads
+     * that fail with a retryable error reopen the object at the offset
+     * reached, and can not see a newer generation.
+     * <p/>
+     * The stream carries the bytes as stored, even for gzip-encoded objects.
+     * The read channel sends {@code Accept-Encoding: gzip} with ranged reads,
+     * so the service never transcodes, and it hands over gzip responses
+     * undecoded.  {@link Gzip#decompress} therefore decodes exactly when the
+     * object's Content-Encoding says so.
+     */
+    private InputStream reader(BlobId blob, long offset) {
+        return new RestartableInputStream(position -> {
+            ReadChannel channel = blob.getGeneration() == null
+                    ? storage.reader(blob)
+                    : storage.reader(blob, Storage.BlobSourceOption.generationMatch());
+            if (position > 0) {
+                channel.seek(position);
+            }
+            return Channels.newInputStream(channel);
+        }, offset).retryable(BucketClient::retryable);
+    }
+
+    private static boolean retryable(Exception e) {
+        if (e instanceof StorageException) {
+            return ((StorageException) e).isRetryable();
+        }
+        return e instanceof IOException;
     }
 
     public Optional<BasicFileAttributeView> attr(Path path) {
-        Blob blob = get(path);
+        return attr(get(path), path);
+    }
+
+    private static Optional<BasicFileAttributeView> attr(Blob blob, Path path) {
         if (blob != null) {
             Entry entry = blobToEntry(blob, path);
             return Optional.of(new EntryAttributes(entry));
         }
         return Optional.empty();
     }
+
+    /**
+     * Gets the attributes of several objects with batched metadata
+     * requests of up to {@link #BATCH_SIZE}.  Objects whose request failed
+     * within a batch are retried on their own.
+     */
+    @Override
+    public List<Optional<BasicFileAttributeView>> attr(List<Path> paths) throws ConnectorException {
+        // each distinct path is looked up once, and its result fanned out to every position
+        List<Path> distinct = new ArrayList<>(new LinkedHashSet<>(paths));
+        Blob[] blobs = new Blob[distinct.size()];
+        boolean[] failed = new boolean[distinct.size()];
+        Map<Path,Integer> index = new HashMap<>();
+        for (int i = 0; i < distinct.size(); i++) {
+            index.put(distinct.get(i), i);
+        }
+        inBatches(distinct, batch -> {
+            StorageBatch request = storage.batch();
+            for (Path path : batch) {
+                int i = index.get(path);
+                request.get(BlobId.of(bucket.getName(), path.toString()), Storage.BlobGetOption.fields(ATTR_FIELDS))
+                        .notify(new BatchResult.Callback<Blob,StorageException>() {
+                            @Override
+                            public void success(Blob result) {
+                                blobs[i] = result;
+                            }
+                            @Override
+                            public void error(StorageException e) {
+                                failed[i] = true;
+                            }
+                        });
+            }
+            try {
+                request.submit();
+            } catch (StorageException e) {
+                batch.forEach(path -> failed[index.get(path)] = true);
+            }
+        });
+        List<Optional<BasicFileAttributeView>> result = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            int i = index.get(path);
+            result.add(failed[i] ? attr(path) : attr(blobs[i], path));
+        }
+        return result;
+    }
 }
\ No newline at end of file
@@ -8,18 +8,38 @@ import static com.cleo.connector.api.command.ConnectorCommandName.MKDIR;
 import static com.cleo.connector.api.command.ConnectorCommandName.PUT;
 import static com.cleo.connector.api.command.ConnectorCommandName.RENAME;
 import static com.cleo.connector.api.command.ConnectorCommandName.RMDIR;
+import static com.cleo.connector.api.command.ConnectorCommandOption.Append;
 import static com.cleo.connector.api.command.ConnectorCommandOption.Delete;
 import static com.cleo.connector.api.command.ConnectorCommandOption.Directory;
 import static com.cleo.connector.api.command.ConnectorCommandOption.Unique;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import org.apache.commons.io.FilenameUtils;
 
@@ -33,25 +53,53 @@ import com.cleo.connector.api.command.DirCommand;
 import com.cleo.connector.api.command.GetCommand;
 import com.cleo.connector.api.command.OtherCommand;
 import com.cleo.connector.api.command.PutCommand;
+import com.cleo.connector.api.directory.Directory.Type;
 import com.cleo.connector.api.property.ConnectorPropertyException;
+import com.cleo.labs.connector.common.AsyncClient;
 import com.cleo.labs.connector.common.AttrCache;
+import com.cleo.labs.connector.common.AttrCoalescer;
+import com.cleo.labs.connector.common.CheckpointIndex;
 import com.cleo.labs.connector.common.Client;
 import com.cleo.labs.connector.common.ClientResolver;
+import com.cleo.labs.connector.common.CommandTrace;
+import com.cleo.labs.connector.common.ContentCache;
+import com.cleo.labs.connector.common.DirectorySort;
 import com.cleo.labs.connector.common.Entry;
 import com.cleo.labs.connector.common.EntryAttributes;
+import com.cleo.labs.connector.common.NameFilter;
 import com.cleo.labs.connector.common.Path;
+import com.cleo.labs.connector.common.Prefetcher;
+import com.cleo.labs.connector.common.UploadSessions;
+import com.cleo.labs.connector.common.WriteShaper;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageOptions;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 
 public class BucketConnectorClient extends ConnectorClient {
+    private static final String PROBES = "/probes";
+
     BucketConnectorConfig config;
+    private Storage storage = null;
 
     public BucketConnectorClient(BucketConnectorSchema schema) {
         this.config = new BucketConnectorConfig(this, schema);
     }
 
+    /**
+     * Supplies a {@link Storage} client to use instead of logging in
+     * with the configured project and credentials, e.g. a local
+     * stand-in for testing.
+     * @param storage the Storage client
+     * @return {@code this} for fluent use
+     */
+    BucketConnectorClient storage(Storage storage) {
+        this.storage = storage;
+        return this;
+    }
+
     private Path parsePath(String parse) throws ConnectorPropertyException {
         return new Path()
                 .delimiter(ProjectClient.SLASH)
@@ -60,54 +108,513 @@ public class BucketConnectorClient extends ConnectorClient {
                 .parseURIPath(parse);
     }
 
-    @Command(name = PUT, options = { Unique, Delete })
+    @Command(name = PUT, options = { Directory, Unique, Delete })
     public ConnectorCommandResult put(PutCommand put) throws ConnectorException, IOException {
         logger.debug(String.format("PUT local '%s' to remote '%s'", put.getSource().getPath(), put.getDestination().getPath()));
+        return traced(PUT, put.getDestination().getPath(), null, trace -> put(put, trace));
+    }
+
+    private ConnectorCommandResult put(PutCommand put, CommandTrace.Record trace)
+            throws ConnectorException, IOException {
+        if (ConnectorCommandUtil.isOptionOn(put.getOptions(), Directory)) {
+            File source = localDirectory(put.getSource().getPath());
+            if (source != null) {
+                return putDirectory(put, source, trace);
+            }
+            logger.debug(String.format("PUT '%s' is not a local directory: storing a single file",
+                    put.getSource().getPath()));
+        }
 
         ClientResolver.Resolved resolved = resolve(parsePath(put.getDestination().getPath()).directory(false), PUT);
         Client client = resolved.client();
         Path destination = resolved.path();
 
-        if (ConnectorCommandUtil.isOptionOn(put.getOptions(), Unique) && client.exists(destination)) {
-            String base = FilenameUtils.getBaseName(destination.name());
-            String ext = FilenameUtils.getExtension(destination.name())
-                                      .replaceFirst("^(?=[^\\.])",".");
-                                      // if non-empty and doesn't start with ., prefix with .
-            do {
-                destination = destination.parent().child(base + "." + Long.toString(new Random().nextInt(Integer.MAX_VALUE)) + ext);
-            } while (client.exists(destination));
-            logger.debug(String.format("PUT calculated unique destination '%s'", destination));
-        }
-
+        // probe the destination while the source is opened
+        CompletableFuture<Boolean> exists = ConnectorCommandUtil.isOptionOn(put.getOptions(), Unique)
+                ? probes(client).exists(destination)
+                : CompletableFuture.completedFuture(false);
 
         // TODO this can't be canceled like calling transfer, but how to avoid spawning a pipe thread?
-        client.upload(destination, put.getSource().getStream());
-        AttrCache.invalidate(getHost().getAlias(), resolved.fullPath());
+        // only a real local file can be reopened to resume: anything else is read from the host's stream
+        File source = regularFile(put.getSource().getPath());
+        String fingerprint = source == null || Strings.isNullOrEmpty(config.getUploadStateDirectory())
+                ? null : UploadSessions.fingerprint(source);
+        InputStream in = fingerprint == null ? trace.count(put.getSource().getStream()) : null;
+        try {
+            if (AsyncClient.await(exists)) {
+                destination = uniquePath(client, destination);
+            }
+        } catch (ConnectorException | RuntimeException e) {
+            if (in != null) {
+                in.close();
+            }
+            throw e;
+        }
+
+        if (fingerprint != null) {
+            client.upload(destination, offset -> trace.count(open(source, offset)), fingerprint);
+        } else {
+            client.upload(destination, in);
+        }
+        attrCache().invalidate(resolved.fullPath());
+        prefetcher().invalidate(resolved.fullPath());
         return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
     }
 
-    @Command(name = GET, options = { Directory, Delete, Unique })
+    /**
+     * Opens a local file at an offset.
+     * @param file the file
+     * @param offset the offset of the first byte to read
+     * @return the stream
+     * @throws IOException
+     */
+    private static InputStream open(File file, long offset) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        if (offset > 0) {
+            in.getChannel().position(offset);
+        }
+        return in;
+    }
+
+    /**
+     * GET, resuming with the Append option: when the destination is a local
+     * file that already holds part of the object, e.g. from a GET that
+     * failed partway, only the bytes past its current length are retrieved
+     * and appended to it.  Retryable read failures during the transfer are
+     * resumed at the offset reached, from the same generation.
+     */
+    @Command(name = GET, options = { Directory, Delete, Unique, Append })
     public ConnectorCommandResult get(GetCommand get) throws ConnectorException, IOException {
         logger.debug(String.format("GET remote '%s' to local '%s'", get.getSource().getPath(), get.getDestination().getPath()));
+        return traced(GET, get.getSource().getPath(), null, trace -> get(get, trace));
+    }
+
+    private ConnectorCommandResult get(GetCommand get, CommandTrace.Record trace)
+            throws ConnectorException, IOException {
+        if (ConnectorCommandUtil.isOptionOn(get.getOptions(), Directory)) {
+            File destination = localDirectory(get.getDestination().getPath());
+            if (destination != null) {
+                return getDirectory(get, destination, trace);
+            }
+            logger.debug(String.format("GET '%s' is not a local directory: retrieving a single file",
+                    get.getDestination().getPath()));
+        }
 
         ClientResolver.Resolved resolved = resolve(parsePath(get.getSource().getPath()).directory(false), GET);
         Path source = resolved.path();
         Client client = resolved.client();
 
-        if (!client.exists(source)) {
+        long offset = ConnectorCommandUtil.isOptionOn(get.getOptions(), Append)
+                ? localLength(get.getDestination().getPath())
+                : 0L;
+        if (offset > 0) {
+            logger.debug(String.format("GET '%s' resuming at offset %d", source, offset));
+        }
+
+        // serve a prefetched copy only if it is still the current generation
+        Prefetcher prefetcher = prefetcher();
+        InputStream prefetched = offset == 0 && prefetcher.buffered(resolved.fullPath())
+                ? prefetcher.take(resolved.fullPath(), client.generation(source))
+                : null;
+        if (prefetched != null) {
+            logger.debug(String.format("GET '%s' served from prefetch", source));
+            transfer(prefetched, trace.count(get.getDestination().getStream()), true);
+            return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
+        }
+
+        // start the download while the source is probed on this thread
+        CompletableFuture<InputStream> download = probes(client).download(source, offset);
+        boolean exists;
+        try {
+            exists = client.exists(source);
+        } catch (ConnectorException | RuntimeException e) {
+            download.thenAccept(BucketConnectorClient::closeQuietly);
+            throw e;
+        }
+        if (!exists) {
+            download.thenAccept(BucketConnectorClient::closeQuietly);
             throw new ConnectorException(String.format("'%s' does not exist or is not accessible", source),
                     ConnectorException.Category.fileNonExistentOrNoAccess);
         }
 
-        transfer(client.download(source), get.getDestination().getStream(), true); // TODO options?
+        transfer(AsyncClient.await(download), trace.count(get.getDestination().getStream()), true); // TODO options?
         return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
     }
 
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ignore) {
+            // not wanted anyway
+        }
+    }
+
+    /**
+     * PUT with the Directory option: uploads the local source directory tree
+     * concurrently into the destination directory, resolving the destination
+     * only once so every upload shares the same {@link Client}.  Directory
+     * markers are created for every directory when {@code MarkDirectories}
+     * is on, and otherwise only for empty directories (which would not
+     * exist at all without one).  Symbolic links to files are stored as
+     * the files they link to, but links to directories are not followed.
+     * <p/>
+     * The result lists the objects stored, with an Error status and a
+     * summary message if any file failed.
+     */
+    private ConnectorCommandResult putDirectory(PutCommand put, File source, CommandTrace.Record trace)
+            throws ConnectorException, IOException {
+        ClientResolver.Resolved resolved = resolve(parsePath(put.getDestination().getPath()).directory(true), PUT);
+        Path destination = resolved.path();
+        Client client = resolved.client();
+        boolean unique = ConnectorCommandUtil.isOptionOn(put.getOptions(), Unique);
+        boolean delete = ConnectorCommandUtil.isOptionOn(put.getOptions(), Delete);
+
+        Map<File, Path> files = new LinkedHashMap<>();
+        List<Path> markers = new ArrayList<>();
+        scan(source, destination, config.getMarkDirectories(), files, markers);
+        logger.debug(String.format("PUT directory '%s' to '%s': %d files, %d directory markers",
+                source, destination, files.size(), markers.size()));
+
+        AttrCache cache = attrCache();
+        Prefetcher prefetcher = prefetcher();
+        List<String> errors = concurrently(markers, marker -> {
+            if (!marker.empty() && !client.exists(marker)) {
+                client.mkdir(marker);
+                cache.invalidate(resolved.fullPath().child(marker.chroot(destination.size())).directory(true));
+            }
+        });
+
+        AtomicLong bytes = new AtomicLong();
+        List<com.cleo.connector.api.directory.Entry> stored = Collections.synchronizedList(new ArrayList<>());
+        errors.addAll(concurrently(new ArrayList<>(files.keySet()), file -> {
+            Path remote = files.get(file);
+            if (unique && client.exists(remote)) {
+                remote = uniquePath(client, remote);
+            }
+            long length = file.length();
+            client.upload(remote, new FileInputStream(file));
+            bytes.addAndGet(length);
+            cache.invalidate(resolved.fullPath().child(remote.chroot(destination.size())));
+            prefetcher.invalidate(resolved.fullPath().child(remote.chroot(destination.size())));
+            logger.debug(String.format("PUT directory stored '%s' to '%s'", file, remote));
+            if (delete && !file.delete()) {
+                throw new IOException(String.format("stored as '%s' but could not delete '%s'", remote, file));
+            }
+            Entry entry = new Entry(Type.file);
+            entry.setPathObject(remote);
+            entry.setSize(length);
+            stored.add(resolved.fixup(entry));
+        }));
+        trace.bytes(bytes.get()).items(stored.size());
+        return bulkResult("stored", files.size(), stored, errors);
+    }
+
+    /**
+     * Collects the files under a local directory with their remote paths,
+     * and the remote directories that need markers.  The walk does not
+     * follow links to directories, so a link loop can not recurse forever.
+     */
+    private static void scan(File directory, Path remote, boolean markAll, Map<File, Path> files, List<Path> markers)
+            throws ConnectorException, IOException {
+        if (!directory.isDirectory()) {
+            throw new ConnectorException(String.format("'%s' is not a directory or is not accessible", directory),
+                    ConnectorException.Category.fileNonExistentOrNoAccess);
+        }
+        java.nio.file.Path root = directory.toPath().toRealPath();
+        Files.walkFileTree(root, new SimpleFileVisitor<java.nio.file.Path>() {
+            // the number of things stored under each directory being walked
+            private final Deque<int[]> stored = new ArrayDeque<>();
+
+            private Path remote(java.nio.file.Path local) {
+                Path path = remote;
+                for (java.nio.file.Path name : root.relativize(local)) {
+                    if (!name.toString().isEmpty()) {
+                        path = path.child(name.toString());
+                    }
+                }
+                return path;
+            }
+
+            @Override
+            public FileVisitResult preVisitDirectory(java.nio.file.Path dir, BasicFileAttributes attrs) {
+                if (!stored.isEmpty()) {
+                    stored.peek()[0]++;
+                }
+                stored.push(new int[1]);
+                if (markAll) {
+                    markers.add(remote(dir).directory(true));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attrs) {
+                if (!attrs.isSymbolicLink() || !Files.isDirectory(file)) {
+                    stored.peek()[0]++;
+                    files.put(file.toFile(), remote(file).directory(false));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(java.nio.file.Path file, IOException exc) throws IOException {
+                throw exc;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(java.nio.file.Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                if (stored.pop()[0] == 0 && !markAll) {
+                    markers.add(remote(dir).directory(true));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Returns a variation of {@code destination} that does not exist yet,
+     * inserting a random number before the extension.
+     */
+    private Path uniquePath(Client client, Path destination) throws ConnectorException {
+        String base = FilenameUtils.getBaseName(destination.name());
+        String ext = FilenameUtils.getExtension(destination.name())
+                                  .replaceFirst("^(?=[^\\.])",".");
+                                  // if non-empty and doesn't start with ., prefix with .
+        do {
+            destination = destination.parent().child(base + "." + Long.toString(new Random().nextInt(Integer.MAX_VALUE)) + ext);
+        } while (client.exists(destination));
+        logger.debug(String.format("PUT calculated unique destination '%s'", destination));
+        return destination;
+    }
+
+    /**
+     * GET with the Directory option: lists the source directory (recursively
+     * if so configured) and downloads its files concurrently into the local
+     * destination directory, resolving the source only once and skipping the
+     * per-file existence probe (the listing already proves existence).
+     * A source ending in a pattern ({@code inbox/glob:*.edi}) retrieves only the
+     * matching files of its parent.
+     * <p/>
+     * The result lists the files retrieved, with an Error status and a
+     * summary message if any file failed (including a file retrieved but
+     * not deleted with the Delete option).
+     */
+    private ConnectorCommandResult getDirectory(GetCommand get, File destination, CommandTrace.Record trace)
+            throws ConnectorException, IOException {
+        Path requested = parsePath(get.getSource().getPath()).directory(true);
+        NameFilter filter = filter(requested);
+        if (filter != null) {
+            requested = requested.parent().directory(true);
+        }
+        ClientResolver.Resolved resolved = resolve(requested, GET);
+        Path source = resolved.path();
+        Client client = resolved.client();
+        boolean unique = ConnectorCommandUtil.isOptionOn(get.getOptions(), Unique);
+        boolean delete = ConnectorCommandUtil.isOptionOn(get.getOptions(), Delete);
+
+        List<Entry> files = new ArrayList<>();
+        Iterable<Entry> listing = config.getRecursiveDirectoryGet()
+                ? client.list(source, true)
+                : client.iterate(source, filter);
+        for (Entry entry : listing) {
+            if (!entry.isDir() && (filter == null || filter.matches(entry.getPathObject().name()))) {
+                files.add(entry);
+            }
+        }
+        if (files.isEmpty() && !client.exists(source)) {
+            throw new ConnectorException(String.format("'%s' does not exist or is not accessible", source),
+                    ConnectorException.Category.fileNonExistentOrNoAccess);
+        }
+        logger.debug(String.format("GET directory '%s' to '%s': %d files", source, destination, files.size()));
+
+        AttrCache cache = attrCache();
+        Prefetcher prefetcher = prefetcher();
+        AtomicLong bytes = new AtomicLong();
+        List<com.cleo.connector.api.directory.Entry> retrieved = Collections.synchronizedList(new ArrayList<>());
+        List<String> errors = concurrently(files, entry -> {
+            Path remote = entry.getPathObject();
+            Path relative = remote.chroot(source.size());
+            File local = localFile(destination, relative, unique);
+            try (InputStream in = client.download(remote); OutputStream out = new FileOutputStream(local)) {
+                bytes.addAndGet(ByteStreams.copy(in, out));
+            }
+            logger.debug(String.format("GET directory retrieved '%s' to '%s'", remote, local));
+            if (delete) {
+                boolean deleted = client.delete(remote);
+                cache.invalidate(resolved.fullPath().child(relative));
+                prefetcher.invalidate(resolved.fullPath().child(relative));
+                if (!deleted) {
+                    throw new IOException(String.format("retrieved to '%s' but could not delete '%s'", local, remote));
+                }
+            }
+            retrieved.add(resolved.fixup(entry));
+        });
+        trace.bytes(bytes.get()).items(retrieved.size());
+        return bulkResult("retrieved", files.size(), retrieved, errors);
+    }
+
+    /**
+     * Returns the local directory named by the path of a command source or
+     * destination, or {@code null} if the path names something else (for
+     * example a stream that is not backed by a local file).
+     * @param path the path
+     * @return the directory, or {@code null}
+     */
+    private static File localDirectory(String path) {
+        if (Strings.isNullOrEmpty(path)) {
+            return null;
+        }
+        File file = new File(path);
+        return file.isDirectory() ? file : null;
+    }
+
+    /**
+     * Returns the regular local file named by the path of a command source,
+     * or {@code null} if the path names something else.
+     * @param path the path
+     * @return the file, or {@code null}
+     */
+    private static File regularFile(String path) {
+        if (Strings.isNullOrEmpty(path)) {
+            return null;
+        }
+        File file = new File(path);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Returns the length of the local file named by the path of a command
+     * destination, or {@code 0} if the path names something else.
+     * @param path the path
+     * @return the length of the file, or {@code 0}
+     */
+    private static long localLength(String path) {
+        File file = regularFile(path);
+        return file == null ? 0L : file.length();
+    }
+
+    /**
+     * Maps a remote path relative to the GET source directory onto a local
+     * file under {@code destination}, creating parent directories as needed.
+     * Names that would escape {@code destination} are refused.
+     */
+    private static File localFile(File destination, Path relative, boolean unique) throws IOException {
+        File local = destination;
+        for (int i = 0; i < relative.size(); i++) {
+            String node = relative.node(i);
+            if (node.equals(".") || node.equals("..") || node.contains(File.separator)) {
+                throw new IOException(String.format("refusing to retrieve '%s' outside of '%s'", relative, destination));
+            }
+            local = new File(local, node);
+        }
+        File parent = local.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException(String.format("can not create directory '%s'", parent));
+        }
+        if (unique && local.exists()) {
+            String base = FilenameUtils.getBaseName(local.getName());
+            String ext = FilenameUtils.getExtension(local.getName())
+                                      .replaceFirst("^(?=[^\\.])",".");
+            do {
+                local = new File(parent, base + "." + Long.toString(new Random().nextInt(Integer.MAX_VALUE)) + ext);
+            } while (local.exists());
+        }
+        return local;
+    }
+
+    @FunctionalInterface
+    private interface Task<T> {
+        void run(T item) throws Exception;
+    }
+
+    /**
+     * Runs a task for each item on the host's {@link AsyncClient} executor,
+     * at most {@code TransferConcurrency} at once, waiting for all of them.
+     * A failing item does not stop the others.  Tasks use the synchronous
+     * client: waiting on the same executor from a task could deadlock.
+     * @param items the items
+     * @param task the task
+     * @return a description of each failed item
+     * @throws ConnectorException if interrupted
+     */
+    private <T> List<String> concurrently(List<T> items, Task<T> task) throws ConnectorException {
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        if (items.isEmpty()) {
+            return errors;
+        }
+        Executor executor = executor();
+        List<CompletableFuture<Void>> futures = new ArrayList<>(items.size());
+        try {
+            for (T item : items) {
+                futures.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        task.run(item);
+                    } catch (Exception e) {
+                        String name = item instanceof Entry ? ((Entry) item).getPathObject().toString() : item.toString();
+                        logger.debug(String.format("failed for '%s': %s", name, e));
+                        errors.add(String.format("'%s': %s", name, e.getMessage()));
+                    }
+                }, executor));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).get();
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(false)); // items not started yet are skipped
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("interrupted", e);
+        } catch (ExecutionException e) {
+            throw new ConnectorException(e.getCause().getMessage(), e.getCause());
+        }
+        return errors;
+    }
+
+    private static ConnectorCommandResult bulkResult(String verb, int total,
+            List<com.cleo.connector.api.directory.Entry> done, List<String> errors) {
+        if (errors.isEmpty()) {
+            return new ConnectorCommandResult(ConnectorCommandResult.Status.Success, Optional.empty(), done);
+        }
+        String message = String.format("%d of %d files could not be %s: %s", errors.size(), total, verb,
+                String.join(", ", errors.subList(0, Math.min(errors.size(), 10))) + (errors.size() > 10 ? ", ..." : ""));
+        return new ConnectorCommandResult(ConnectorCommandResult.Status.Error, Optional.of(message), done);
+    }
+
+    /**
+     * Returns a filter for a DIR, GET or DELETE path whose last node is a
+     * glob prefixed with {@code glob:} or a regular expression prefixed with
+     * {@code regex:}, e.g. {@code inbox/glob:*.edi}.  Any other last node is
+     * a plain name, even if it contains wildcard characters (e.g.
+     * {@code report[1].csv}); a glob can escape them with {@code \}.
+     * @param path the requested path
+     * @return the filter, or {@code null} if the last node is a plain name
+     * @throws ConnectorException if the pattern is invalid
+     */
+    private static NameFilter filter(Path path) throws ConnectorException {
+        if (!NameFilter.isPattern(path.name())) {
+            return null;
+        }
+        try {
+            return NameFilter.of(path.name());
+        } catch (IllegalArgumentException e) {
+            throw new ConnectorException(String.format("invalid pattern '%s': %s", path.name(), e.getMessage()), e);
+        }
+    }
+
     @Command(name = DIR)
     public ConnectorCommandResult dir(DirCommand dir) throws ConnectorException, IOException {
         logger.debug(String.format("DIR '%s'", dir.getSource().getPath()));
+        return traced(DIR, dir.getSource().getPath(), null, trace -> dir(dir, trace));
+    }
 
-        ClientResolver.Resolved resolved = resolve(parsePath(dir.getSource().getPath()).directory(true), DIR);
+    private ConnectorCommandResult dir(DirCommand dir, CommandTrace.Record trace)
+            throws ConnectorException, IOException {
+        Path requested = parsePath(dir.getSource().getPath()).directory(true);
+        NameFilter filter = filter(requested);
+        if (filter != null) {
+            requested = requested.parent().directory(true);
+        }
+        ClientResolver.Resolved resolved = resolve(requested, DIR);
         Path path = resolved.path();
         Client client = resolved.client();
 
@@ -116,24 +623,97 @@ public class BucketConnectorClient extends ConnectorClient {
                     ConnectorException.Category.fileNonExistentOrNoAccess);
         }
 
-        List<Entry> entries = client.list(path);
-        List<com.cleo.connector.api.directory.Entry> result = new ArrayList<>(entries.size());
-        if (!entries.isEmpty()) {
-            for (Entry entry : entries) {
-                logger.debug(String.format("caching attributes for '%s' from DIR", entry.getPathObject().toString()));
-                AttrCache.put(getHost().getAlias(),
-                        resolved.fullPath().child(entry.getPathObject().name()).directory(entry.isDir()),
-                        new EntryAttributes(entry));
-                result.add(resolved.fixup(entry));
-            }
+        // each entry returned is cached (and maybe prefetched) exactly once, as it is finished
+        Iterable<Entry> entries = client.iterate(path, filter);
+        AttrCache cache = attrCache();
+        Prefetcher prefetcher = prefetcher();
+        boolean prefetch = prefetcher.enabled();
+        Function<Entry,com.cleo.connector.api.directory.Entry> finish = entry -> {
+            logger.debug(String.format("caching attributes for '%s' from DIR", entry.getPathObject().toString()));
+            cache.put(resolved.fullPath().child(entry.getPathObject().name()).directory(entry.isDir()),
+                    new EntryAttributes(entry));
+            return resolved.fixup(prefetch ? prefetch(prefetcher, resolved, entry) : entry);
+        };
+        DirectorySort sort = new DirectorySort(config.getRetrieveDirectorySort(), config.getDirectoryLimit());
+        List<com.cleo.connector.api.directory.Entry> result;
+        if (!Strings.isNullOrEmpty(config.getCheckpointDirectory())) {
+            result = checkpoint(resolved, filter, Lists.newArrayList(entries), sort, finish);
+        } else {
+            result = sort.sort(entries, path, finish);
         }
+        trace.items(result.size());
         return new ConnectorCommandResult(ConnectorCommandResult.Status.Success, Optional.empty(), result);
     }
 
+    /**
+     * Starts prefetching a file returned by DIR (before its path is fixed up).
+     * @param prefetcher the prefetcher
+     * @param resolved the resolved folder
+     * @param entry the entry
+     * @return {@code entry}
+     */
+    private static Entry prefetch(Prefetcher prefetcher, ClientResolver.Resolved resolved, Entry entry) {
+        if (!entry.isDir()) {
+            Entry listed = new Entry(Type.file)
+                    .setPathObject(entry.getPathObject())
+                    .setGeneration(entry.getGeneration())
+                    .setEncoding(entry.getEncoding());
+            listed.setSize(entry.size());
+            prefetcher.prefetch(resolved.fullPath().child(entry.getPathObject().name()), entry.getGeneration(),
+                    entry.size(), () -> resolved.client().download(listed));
+        }
+        return entry;
+    }
+
+    /**
+     * In incremental mode ({@code CheckpointDirectory} set), reduces a DIR
+     * listing to the entries that are new or changed (by generation) since
+     * the previous DIR of the same folder, sorts (and limits) them, and
+     * checkpoints the entries returned: entries cut off by the
+     * {@code DirectoryLimit} are still new or changed in the next DIR.
+     * The checkpoint is committed when the DIR returns, before the caller
+     * retrieves anything:  a returned entry that the caller then fails to
+     * process is not returned again unless it changes.
+     * @param resolved the resolved folder
+     * @param filter the name filter of the DIR, or {@code null}
+     * @param entries the complete listing
+     * @param sort the sort (and limit) of the DIR
+     * @param finish applied to each entry returned
+     * @return the new or changed entries returned
+     */
+    private List<com.cleo.connector.api.directory.Entry> checkpoint(ClientResolver.Resolved resolved,
+            NameFilter filter, List<Entry> entries, DirectorySort sort,
+            Function<Entry,com.cleo.connector.api.directory.Entry> finish) throws ConnectorException, IOException {
+        String name = filter == null
+                ? CheckpointIndex.name(getHost().getAlias(), config.getBucketName(), resolved.fullPath().toString())
+                : CheckpointIndex.name(getHost().getAlias(), config.getBucketName(), resolved.fullPath().toString(),
+                        filter.toString());
+        File file = new File(config.getCheckpointDirectory(), name);
+        List<com.cleo.connector.api.directory.Entry> result = new ArrayList<>();
+        CheckpointIndex.open(file).advance(entries,
+                entry -> entry.getPathObject().name() + (entry.isDir() ? ProjectClient.SLASH : ""),
+                Entry::getGeneration,
+                changed -> {
+                    List<Entry> returned = new ArrayList<>();
+                    result.addAll(sort.sort(changed, resolved.path(), entry -> {
+                        returned.add(entry);
+                        return finish.apply(entry);
+                    }));
+                    return returned;
+                });
+        logger.debug(String.format("DIR '%s' checkpoint: %d of %d entries new or changed and returned",
+                resolved.fullPath(), result.size(), entries.size()));
+        return result;
+    }
+
     @Command(name = MKDIR)
     public ConnectorCommandResult mkdir(OtherCommand mkdir) throws ConnectorException, IOException {
         logger.debug(String.format("MKDIR '%s'", mkdir.getSource()));
+        return traced(MKDIR, mkdir.getSource(), null, trace -> mkdir(mkdir, trace));
+    }
 
+    private ConnectorCommandResult mkdir(OtherCommand mkdir, CommandTrace.Record trace)
+            throws ConnectorException, IOException {
         ClientResolver.Resolved resolved = resolve(parsePath(mkdir.getSource()).directory(true), MKDIR);
         Path source = resolved.path();
         Client client = resolved.client();
@@ -147,14 +727,19 @@ public class BucketConnectorClient extends ConnectorClient {
                         String.format("'%s' not created exists.", source));
             }
         }
-        AttrCache.invalidate(getHost().getAlias(), resolved.fullPath());
+        attrCache().invalidate(resolved.fullPath());
+        resolver().invalidate(resolved.fullPath());
         return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
     }
 
     @Command(name = RMDIR)
     public ConnectorCommandResult rmdir(OtherCommand rmdir) throws ConnectorException, IOException {
         logger.debug(String.format("RMDIR '%s'", rmdir.getSource()));
+        return traced(RMDIR, rmdir.getSource(), null, trace -> rmdir(rmdir, trace));
+    }
 
+    private ConnectorCommandResult rmdir(OtherCommand rmdir, CommandTrace.Record trace)
+            throws ConnectorException, IOException {
         ClientResolver.Resolved resolved = resolve(parsePath(rmdir.getSource()).directory(true), RMDIR);
         Path source = resolved.path();
         Client client = resolved.client();
@@ -167,7 +752,8 @@ public class BucketConnectorClient extends ConnectorClient {
                 return new ConnectorCommandResult(ConnectorCommandResult.Status.Error,
                         String.format("'%s' was not deleted", source));
             }
-            AttrCache.invalidate(getHost().getAlias(), resolved.fullPath());
+            attrCache().invalidate(resolved.fullPath());
+            resolver().invalidate(resolved.fullPath());
         }
 
         return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
@@ -176,7 +762,11 @@ public class BucketConnectorClient extends ConnectorClient {
     @Command(name = RENAME)
     public ConnectorCommandResult rename(OtherCommand rename) throws ConnectorException, IOException {
         logger.debug(String.format("RENAME '%s' '%s'", rename.getSource(), rename.getDestination()));
+        return traced(RENAME, rename.getSource(), rename.getDestination(), trace -> rename(rename, trace));
+    }
 
+    private ConnectorCommandResult rename(OtherCommand rename, CommandTrace.Record trace)
+            throws ConnectorException, IOException {
         ClientResolver.Resolved resolved = resolve(parsePath(rename.getSource()), RENAME);
         Path source = resolved.path();
         Client client = resolved.client();
@@ -195,33 +785,83 @@ public class BucketConnectorClient extends ConnectorClient {
             return new ConnectorCommandResult(ConnectorCommandResult.Status.Error,
                     String.format("'%s' could not be renamed to '%s'", source, destination.path()));
         }
-        AttrCache.invalidate(getHost().getAlias(), resolved.fullPath());
-        AttrCache.invalidate(getHost().getAlias(), destination.fullPath());
+        attrCache().invalidate(resolved.fullPath());
+        attrCache().invalidate(destination.fullPath());
+        prefetcher().invalidate(resolved.fullPath());
+        prefetcher().invalidate(destination.fullPath());
         return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
     }
 
     @Command(name = DELETE)
     public ConnectorCommandResult delete(OtherCommand delete) throws ConnectorException, IOException {
         logger.debug(String.format("DELETE '%s'", delete.getSource()));
+        return traced(DELETE, delete.getSource(), null, trace -> delete(delete, trace));
+    }
 
-        ClientResolver.Resolved resolved = resolve(parsePath(delete.getSource()), DELETE);
+    private ConnectorCommandResult delete(OtherCommand delete, CommandTrace.Record trace)
+            throws ConnectorException, IOException {
+        Path requested = parsePath(delete.getSource());
+        NameFilter filter = filter(requested);
+        if (filter != null) {
+            return deleteMatching(requested.parent().directory(true), filter, trace);
+        }
+        ClientResolver.Resolved resolved = resolve(requested, DELETE);
         Path source = resolved.path();
         Client client = resolved.client();
 
-        if (!client.exists(source)) {
+        // a single request: the delete itself reports a missing object
+        if (!client.delete(source)) {
             throw new ConnectorException(String.format("'%s' does not exist or is not accessible", source),
                     ConnectorException.Category.fileNonExistentOrNoAccess);
-        } else {
-            if (!client.delete(source)) {
-                return new ConnectorCommandResult(ConnectorCommandResult.Status.Error,
-                        String.format("'%s' was not deleted", source));
-            }
-            AttrCache.invalidate(getHost().getAlias(), resolved.fullPath());
         }
+        attrCache().invalidate(resolved.fullPath());
+        prefetcher().invalidate(resolved.fullPath());
 
         return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
     }
 
+    /**
+     * DELETE of a pattern ({@code outbox/glob:*.edi}): lists the matching files
+     * of the parent directory and deletes them with
+     * {@link Client#delete(List, List)}, which batches the requests.
+     * <p/>
+     * The result lists the files deleted, with an Error status and a
+     * summary message if any file failed.
+     */
+    private ConnectorCommandResult deleteMatching(Path parent, NameFilter filter, CommandTrace.Record trace)
+            throws ConnectorException, IOException {
+        ClientResolver.Resolved resolved = resolve(parent, DIR);
+        Path directory = resolved.path();
+        Client client = resolved.client();
+
+        Map<Path, Entry> matches = new LinkedHashMap<>();
+        for (Entry entry : client.iterate(directory, filter)) {
+            if (!entry.isDir() && filter.matches(entry.getPathObject().name())) {
+                matches.put(entry.getPathObject(), entry);
+            }
+        }
+        if (matches.isEmpty() && !client.exists(directory)) {
+            throw new ConnectorException(String.format("'%s' does not exist or is not accessible", directory),
+                    ConnectorException.Category.fileNonExistentOrNoAccess);
+        }
+        logger.debug(String.format("DELETE '%s' in '%s': %d files", filter, directory, matches.size()));
+
+        List<Path> deleted = new ArrayList<>();
+        List<String> errors = client.delete(new ArrayList<>(matches.keySet()), deleted);
+        List<Path> fullPaths = new ArrayList<>(deleted.size());
+        List<com.cleo.connector.api.directory.Entry> done = new ArrayList<>(deleted.size());
+        Prefetcher prefetcher = prefetcher();
+        for (Path path : deleted) {
+            Path fullPath = resolved.fullPath().child(path.chroot(directory.size()));
+            fullPaths.add(fullPath);
+            prefetcher.invalidate(fullPath);
+            done.add(resolved.fixup(matches.get(path)));
+        }
+        attrCache().invalidateAll(fullPaths);
+        trace.items(done.size());
+        return bulkResult("deleted", matches.size(), done, errors);
+    }
+
     /**
      * Get the file attribute view associated with a file path
      * 
@@ -233,11 +873,16 @@ public class BucketConnectorClient extends ConnectorClient {
     @Command(name = ATTR)
     public BasicFileAttributeView getAttributes(String path) throws ConnectorException, IOException {
         logger.debug(String.format("ATTR '%s'", path));
+        return traced(ATTR, path, null, trace -> getAttributes(path, trace));
+    }
 
+    private BasicFileAttributeView getAttributes(String path, CommandTrace.Record trace)
+            throws ConnectorException, IOException {
         ClientResolver.Resolved resolved = resolve(parsePath(path), ATTR);
         Path source = resolved.path();
         Client client = resolved.client();
-        Path cacheID = new Path(resolved.fullPath());
+        AttrCoalescer coalescer = attrCoalescer();
+        String group = resolved.fullPath().size() > 1 ? resolved.fullPath().node(0) : "";
 
         Optional<BasicFileAttributeView> attr = Optional.empty();
         try {
@@ -245,12 +890,12 @@ public class BucketConnectorClient extends ConnectorClient {
             // if not, we first try attrs on a file named "source", then try again for a directory "source/"
             boolean directory = source.markDirectories() ? source.directory() : false;
             do {
-                source.directory(directory);
-                cacheID.directory(directory);
-                attr = AttrCache.get(getHost().getAlias(), cacheID, new Callable<Optional<BasicFileAttributeView>>() {
+                Path probe = source.directory(directory);
+                Path cacheID = resolved.fullPath().directory(directory);
+                attr = attrCache().get(cacheID, new Callable<Optional<BasicFileAttributeView>>() {
                     @Override
                     public Optional<BasicFileAttributeView> call() throws ConnectorException {
-                        Optional<BasicFileAttributeView> result = client.attr(source);
+                        Optional<BasicFileAttributeView> result = coalescer.attr(group, client, probe);
                         logger.debug(String.format("caching attributes for '%s' exists=%b", cacheID.toString(), result.isPresent()));
                         return result;
                     }
@@ -269,6 +914,66 @@ public class BucketConnectorClient extends ConnectorClient {
         }
     }
 
+    /**
+     * The body of a command, run by {@link #traced}
+     */
+    @FunctionalInterface
+    private interface Traced<T> {
+        T run(CommandTrace.Record trace) throws ConnectorException, IOException;
+    }
+
+    /**
+     * Runs the body of a command, recording it in the {@code CommandTrace}
+     * (if one is configured): the status of a {@link ConnectorCommandResult},
+     * Success for any other result, or the exception thrown.
+     * @param command the command
+     * @param path the source path as received
+     * @param destination the destination path as received, or {@code null}
+     * @param body the body of the command
+     * @return the result of {@code body}
+     */
+    private <T> T traced(ConnectorCommandName command, String path, String destination, Traced<T> body)
+            throws ConnectorException, IOException {
+        try (CommandTrace.Record trace = CommandTrace.start(config.getCommandTrace(), getHost().getAlias(),
+                command, path, destination, logger::debug)) {
+            T result = body.run(trace);
+            if (result instanceof ConnectorCommandResult) {
+                trace.result((ConnectorCommandResult) result);
+            } else {
+                trace.success(result);
+            }
+            return result;
+        }
+    }
+
+    private AttrCache attrCache() throws ConnectorPropertyException {
+        return AttrCache.namespace(getHost().getAlias(), config.getAttributeCache());
+    }
+
+    private AttrCoalescer attrCoalescer() throws ConnectorPropertyException {
+        return AttrCoalescer.namespace(getHost().getAlias(), config.getAttributeBatchWindow());
+    }
+
+    private Executor executor() throws ConnectorPropertyException {
+        return AsyncClient.executor(getHost().getAlias(), config.getTransferConcurrency(), config.getVirtualThreads());
+    }
+
+    /**
+     * Returns an asynchronous client for the single round trip a GET or PUT
+     * overlaps with its own work, e.g. the Unique probe of a PUT.  It runs on
+     * an executor of its own, so it never queues behind the transfers of a
+     * Directory GET or PUT, and as each command puts at most one call on it
+     * at a time, a call never waits for another.
+     */
+    private AsyncClient probes(Client client) throws ConnectorPropertyException {
+        return new AsyncClient(client, AsyncClient.executor(getHost().getAlias() + PROBES,
+                config.getTransferConcurrency(), config.getVirtualThreads()));
+    }
+
+    private Prefetcher prefetcher() throws ConnectorPropertyException {
+        return Prefetcher.namespace(getHost().getAlias(), config.getPrefetchMaxSize(), config.getPrefetchBufferBytes());
+    }
+
     private GoogleCredentials credentials() throws ConnectorPropertyException, IOException {
         String json = config.getServiceAccountKey();
         if (!Strings.isNullOrEmpty(json)) {
@@ -277,32 +982,61 @@ public class BucketConnectorClient extends ConnectorClient {
         return null;
     }
     private Storage login() throws ConnectorException, IOException {
+        if (this.storage != null) {
+            return this.storage;
+        }
         String projectId = config.getProjectId();
         GoogleCredentials credentials = credentials();
-        Storage storage;
-        if (projectId == null || credentials == null) {
-            storage = StorageOptions
-                    .getDefaultInstance()
-                    .getService();
-        } else {
-            storage = StorageOptions
-                    .newBuilder()
-                    .setProjectId(projectId)
-                    .setCredentials(credentials)
-                    .build()
-                    .getService();
+        StorageOptions.Builder options = StorageOptions.newBuilder();
+        if (projectId != null && credentials != null) {
+            options.setProjectId(projectId)
+                   .setCredentials(credentials);
         }
-        return storage;
+        if (config.getAdaptiveConcurrency()) {
+            options.setServiceRpcFactory(new LimitedStorageRpc.Factory());
+        }
+        return options.build().getService();
     }
     private ClientResolver.Resolved resolve(Path path, ConnectorCommandName command) throws ConnectorException, IOException {
-        return new ClientResolver(config.getBucketName(), null, this::accountSupplier, this::containerSupplier).resolve(path, command);
+        return resolver().resolve(path, command);
+    }
+
+    private ClientResolver resolver() throws ConnectorException {
+        return ClientResolver.shared(getHost().getAlias(), fingerprint(), config.getBucketName(), null,
+                this::accountSupplier, this::containerSupplier);
+    }
+
+    private String fingerprint() throws ConnectorPropertyException {
+        return config.getFingerprint() + (storage == null ? "" : "@" + System.identityHashCode(storage));
     }
 
     private ProjectClient accountSupplier() throws ConnectorException, IOException {
-        return new ProjectClient(login());
+        return new ProjectClient(login())
+                .catalog(BucketCatalog.named(getHost().getAlias() + "@" + fingerprint(), config.getBucketCatalogTTL()));
     }
     private BucketClient containerSupplier(Path bucket) throws ConnectorException, IOException {
-        return new BucketClient(login(), bucket.node(0));
+        return new BucketClient(login(), bucket.node(0))
+                .contentCache(contentCache())
+                .uploadSessions(uploadSessions())
+                .writeShaper(config.getShapeWrites() ? WriteShaper.named(bucket.node(0)) : null)
+                .executor(executor())
+                .compress(config.getCompressUploads());
+    }
+
+    private ContentCache contentCache() throws ConnectorPropertyException, IOException {
+        String directory = config.getContentCacheDirectory();
+        if (Strings.isNullOrEmpty(directory)) {
+            return null;
+        }
+        return ContentCache.open(new File(directory), config.getContentCacheBytes());
+    }
+
+    private UploadSessions uploadSessions() throws ConnectorPropertyException, IOException {
+        String directory = config.getUploadStateDirectory();
+        if (Strings.isNullOrEmpty(directory)) {
+            return null;
+        }
+        return UploadSessions.open(new File(directory));
     }
 
 }
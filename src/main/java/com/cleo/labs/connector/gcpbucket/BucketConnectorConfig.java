@@ -1,7 +1,11 @@
 package com.cleo.labs.connector.gcpbucket;
 
+import java.nio.charset.StandardCharsets;
+
 import com.cleo.connector.api.property.ConnectorPropertyException;
 import com.cleo.labs.connector.common.ConfigFileImport;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 public class BucketConnectorConfig {
     private BucketConnectorClient client;
@@ -27,4 +31,94 @@ public class BucketConnectorConfig {
     public boolean getMarkDirectories() throws ConnectorPropertyException {
         return schema.markDirectories.getValue(client);
     }
-}
\ No newline at end of file
+
+    public String getAttributeCache() throws ConnectorPropertyException {
+        return schema.attributeCache.getValue(client);
+    }
+
+    public int getBucketCatalogTTL() throws ConnectorPropertyException {
+        return Math.max(0, schema.bucketCatalogTTL.getValue(client));
+    }
+
+    public int getAttributeBatchWindow() throws ConnectorPropertyException {
+        return Math.max(0, schema.attributeBatchWindow.getValue(client));
+    }
+
+    public int getTransferConcurrency() throws ConnectorPropertyException {
+        return Math.max(1, schema.transferConcurrency.getValue(client));
+    }
+
+    public boolean getAdaptiveConcurrency() throws ConnectorPropertyException {
+        return schema.adaptiveConcurrency.getValue(client);
+    }
+
+    public boolean getShapeWrites() throws ConnectorPropertyException {
+        return schema.shapeWrites.getValue(client);
+    }
+
+    public boolean getVirtualThreads() throws ConnectorPropertyException {
+        return schema.virtualThreads.getValue(client);
+    }
+
+    public boolean getRecursiveDirectoryGet() throws ConnectorPropertyException {
+        return schema.recursiveDirectoryGet.getValue(client);
+    }
+
+    public String getCheckpointDirectory() throws ConnectorPropertyException {
+        return schema.checkpointDirectory.getValue(client);
+    }
+
+    public String getCommandTrace() throws ConnectorPropertyException {
+        return schema.commandTrace.getValue(client);
+    }
+
+    public String getRetrieveDirectorySort() throws ConnectorPropertyException {
+        return schema.retrieveDirectorySort.getValue(client);
+    }
+
+    public int getDirectoryLimit() throws ConnectorPropertyException {
+        return Math.max(0, schema.directoryLimit.getValue(client));
+    }
+
+    public String getContentCacheDirectory() throws ConnectorPropertyException {
+        return schema.contentCacheDirectory.getValue(client);
+    }
+
+    public long getContentCacheBytes() throws ConnectorPropertyException {
+        return Math.max(0, schema.contentCacheSizeMB.getValue(client)) * 1024L * 1024L;
+    }
+
+    public long getPrefetchMaxSize() throws ConnectorPropertyException {
+        return Math.max(0, schema.prefetchMaxSize.getValue(client));
+    }
+
+    public long getPrefetchBufferBytes() throws ConnectorPropertyException {
+        return Math.max(0, schema.prefetchBufferMB.getValue(client)) * 1024L * 1024L;
+    }
+
+    public boolean getCompressUploads() throws ConnectorPropertyException {
+        return schema.compressUploads.getValue(client);
+    }
+
+    public String getUploadStateDirectory() throws ConnectorPropertyException {
+        return schema.uploadStateDirectory.getValue(client);
+    }
+
+    /**
+     * Summarizes the properties the bucket and project clients are built
+     * from, so that clients built for one configuration are not reused
+     * after it changes.
+     * @return a hash of the properties
+     * @throws ConnectorPropertyException
+     */
+    public String getFingerprint() throws ConnectorPropertyException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (Object value : new Object[] { getProjectId(), getServiceAccountKey(), getBucketName(),
+                getAdaptiveConcurrency(), getTransferConcurrency(), getVirtualThreads(), getShapeWrites(),
+                getCompressUploads(), getContentCacheDirectory(), getContentCacheBytes(),
+                getUploadStateDirectory(), getBucketCatalogTTL() }) {
+            hasher.putString(String.valueOf(value), StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+        return hasher.hash().toString();
+    }
+}
@@ -49,6 +49,129 @@ public class BucketConnectorSchema extends ConnectorConfig {
             .setGroup(Connect)
             .build();
 
+    @Property
+    final IConnectorProperty<String> attributeCache = new PropertyBuilder<>("AttributeCache", "")
+            .setDescription("Attribute cache spec for this host, e.g. "+
+                    "\"maximumWeight=67108864,expireAfterWrite=30s,expireNegativeAfterWrite=5s\" "+
+                    "(maximumWeight in bytes), or \"disabled\".  Leave blank for the default.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> bucketCatalogTTL = new PropertyBuilder<>("BucketCatalogTTL", 60)
+            .setDescription("The seconds the buckets of the project are remembered, answering root listings and "+
+                    "bucket lookups from memory.  Buckets created or deleted through this host are updated at "+
+                    "once.  0 to list and get buckets each time.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> attributeBatchWindow = new PropertyBuilder<>("AttributeBatchWindow", 0)
+            .setDescription("Concurrent ATTR lookups in a bucket are sent together in batches.  The milliseconds "+
+                    "to wait collecting lookups before each batch, or 0 to send at once.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> transferConcurrency = new PropertyBuilder<>("TransferConcurrency", 8)
+            .setDescription("The number of requests to the bucket run at once, e.g. the files transferred by a GET "+
+                    "or PUT with the Directory option.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> adaptiveConcurrency = new PropertyBuilder<>("AdaptiveConcurrency", Boolean.FALSE)
+            .setDescription("Limit the requests in flight to each bucket, shared by every host in the JVM using "+
+                    "the same project, lowering the limit when the bucket responds 429 or 503 and raising it "+
+                    "while responses are healthy.  The limits are published as ConcurrencyLimiter MXBeans.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> shapeWrites = new PropertyBuilder<>("ShapeWrites", Boolean.FALSE)
+            .setDescription("Pace writes to about one a second for each object name, and for each bucket start "+
+                    "at 1000 writes a second and double every 20 minutes, as Cloud Storage recommends.  "+
+                    "Writes over the rate wait instead of being throttled.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> virtualThreads = new PropertyBuilder<>("VirtualThreads", Boolean.FALSE)
+            .setDescription("On Java 21 or later, run concurrent requests to the bucket on virtual threads "+
+                    "instead of a thread pool, still at most TransferConcurrency at once.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> recursiveDirectoryGet = new PropertyBuilder<>("RecursiveDirectoryGet", Boolean.FALSE)
+            .setDescription("Include subdirectories in a GET with the Directory option.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> checkpointDirectory = new PropertyBuilder<>("CheckpointDirectory", "")
+            .setDescription("When set, DIR returns only the objects that are new or changed since the previous DIR "+
+                    "of the same folder, keeping a checkpoint index for each folder in this local directory.  "+
+                    "An object counts as seen once a DIR has returned it, whether or not it was then retrieved.  "+
+                    "Leave blank to list everything.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> directoryLimit = new PropertyBuilder<>("DirectoryLimit", 0)
+            .setDescription("The maximum number of entries returned by DIR, taken in RetrieveDirectorySort order "+
+                    "(e.g. the 1000 oldest with Date/Time Modified Ascending).  0 returns all entries.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> contentCacheDirectory = new PropertyBuilder<>("ContentCacheDirectory", "")
+            .setDescription("When set, downloaded objects are cached in this local directory and served from it "+
+                    "while the object generation is unchanged.  Leave blank to always download.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> contentCacheSizeMB = new PropertyBuilder<>("ContentCacheSizeMB", 1024)
+            .setDescription("The maximum size of the ContentCacheDirectory in megabytes, least recently used "+
+                    "objects being removed first.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> prefetchMaxSize = new PropertyBuilder<>("PrefetchMaxSize", 0)
+            .setDescription("When set, files listed by DIR up to this many bytes are downloaded in the background "+
+                    "so that the GETs following the DIR are served from memory.  0 disables prefetching.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Integer> prefetchBufferMB = new PropertyBuilder<>("PrefetchBufferMB", 64)
+            .setDescription("The maximum memory in megabytes held by prefetched files not yet retrieved.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<Boolean> compressUploads = new PropertyBuilder<>("CompressUploads", Boolean.FALSE)
+            .setDescription("Compress files with gzip as they are uploaded, storing them with gzip Content-Encoding.  "+
+                    "Files are decompressed as they are downloaded and sizes are reported uncompressed.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> uploadStateDirectory = new PropertyBuilder<>("UploadStateDirectory", "")
+            .setDescription("When set, the progress of file uploads is saved in this local directory, so that a PUT "+
+                    "of the same file interrupted by a restart resumes where it stopped.  Leave blank to disable.")
+            .setGroup(Connect)
+            .build();
+
+    @Property
+    final IConnectorProperty<String> commandTrace = new PropertyBuilder<>("CommandTrace", "")
+            .setDescription("Append a trace of the commands received by this host to this file, "+
+                    "for replay with the trace runner.  Leave blank to disable tracing.")
+            .setGroup(Connect)
+            .build();
+
     @Property
     final IConnectorProperty<Integer> commandRetries = CommonProperties.of(CommonProperty.CommandRetries);
 
@@ -0,0 +1,153 @@
+package com.cleo.labs.connector.gcpbucket;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.cleo.labs.connector.common.ConcurrencyLimiter;
+import com.google.api.services.storage.model.Bucket;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.cloud.storage.StorageException;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.storage.spi.StorageRpcFactory;
+import com.google.cloud.storage.spi.v1.HttpStorageRpc;
+import com.google.cloud.storage.spi.v1.RpcBatch;
+import com.google.cloud.storage.spi.v1.StorageRpc;
+
+/**
+ * Puts a {@link ConcurrencyLimiter} for each bucket in front of every RPC
+ * a {@link StorageRpc} makes, including the chunks read and written by
+ * channels and the submission of batches.  Throttling responses (429 and
+ * 503) shrink the limit for the bucket, shared by every client of the
+ * project in the JVM.  RPCs not aimed at a bucket (e.g. listing buckets)
+ * share a limiter for the project.
+ * <p/>
+ * The limiter sits below the client library's retries, so each retry
+ * waits for a slot under the reduced limit.
+ */
+public class LimitedStorageRpc implements InvocationHandler {
+
+    /**
+     * Creates the default HTTP transport wrapped in limiters.  Having a
+     * public no-argument constructor, it also survives the serialization
+     * of captured upload channels.
+     */
+    public static class Factory implements StorageRpcFactory {
+        @Override
+        public StorageRpc create(StorageOptions options) {
+            return wrap(new HttpStorageRpc(options), options.getProjectId());
+        }
+    }
+
+    private static final Pattern UPLOAD_BUCKET = Pattern.compile("/b/([^/?]+)/o");
+
+    private final Object target;
+    private final String project;
+
+    private LimitedStorageRpc(Object target, String project) {
+        this.target = target;
+        this.project = String.valueOf(project);
+    }
+
+    /**
+     * Wraps a {@link StorageRpc} in limiters.
+     * @param rpc the RPC transport
+     * @param project the project, naming the limiters
+     * @return the limited transport
+     */
+    public static StorageRpc wrap(StorageRpc rpc, String project) {
+        return (StorageRpc) Proxy.newProxyInstance(StorageRpc.class.getClassLoader(),
+                new Class<?>[] { StorageRpc.class }, new LimitedStorageRpc(rpc, project));
+    }
+
+    /**
+     * Returns the limiter for a bucket of a project.
+     * @param project the project
+     * @param bucket the bucket, {@code null} for the project's limiter
+     * @return the (shared) limiter
+     */
+    public static ConcurrencyLimiter limiter(String project, String bucket) {
+        return ConcurrencyLimiter.named(bucket == null ? String.valueOf(project) : project + "/" + bucket);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return method.invoke(target, args);
+        }
+        if (method.getName().equals("createBatch")) {
+            RpcBatch batch = (RpcBatch) call(method, args);
+            return Proxy.newProxyInstance(RpcBatch.class.getClassLoader(),
+                    new Class<?>[] { RpcBatch.class }, new LimitedStorageRpc(batch, project));
+        }
+        if (target instanceof RpcBatch && !method.getName().equals("submit")) {
+            return call(method, args); // queuing requests in the batch
+        }
+        ConcurrencyLimiter.Permit permit;
+        try {
+            permit = limiter(project, bucket(method, args)).acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException(0, "interrupted waiting for a request slot", e);
+        }
+        try {
+            Object result = call(method, args);
+            permit.success();
+            return result;
+        } catch (StorageException e) {
+            if (throttled(e)) {
+                permit.throttled();
+            } else {
+                permit.failed();
+            }
+            throw e;
+        } catch (Throwable e) {
+            permit.failed();
+            throw e;
+        }
+    }
+
+    private Object call(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static boolean throttled(StorageException e) {
+        return e.getCode() == 429 || e.getCode() == 503;
+    }
+
+    /**
+     * Finds the bucket an RPC is aimed at from its arguments.
+     */
+    private static String bucket(Method method, Object[] args) {
+        if (args == null) {
+            return null;
+        }
+        for (Object arg : args) {
+            if (arg instanceof StorageObject) {
+                return ((StorageObject) arg).getBucket();
+            } else if (arg instanceof Bucket) {
+                return ((Bucket) arg).getName();
+            } else if (arg instanceof StorageRpc.RewriteRequest) {
+                return ((StorageRpc.RewriteRequest) arg).source.getBucket();
+            } else if (arg instanceof StorageRpc.RewriteResponse) {
+                return ((StorageRpc.RewriteResponse) arg).rewriteRequest.source.getBucket();
+            }
+        }
+        if (args.length > 0 && args[0] instanceof String) {
+            if (method.getName().startsWith("write")) {
+                // the first argument is the upload session URI
+                Matcher matcher = UPLOAD_BUCKET.matcher((String) args[0]);
+                return matcher.find() ? matcher.group(1) : null;
+            }
+            return (String) args[0]; // bucket ACLs, IAM and listing objects
+        }
+        return null;
+    }
+}
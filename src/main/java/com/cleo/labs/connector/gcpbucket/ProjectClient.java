@@ -1,9 +1,9 @@
 package com.cleo.labs.connector.gcpbucket;
 
 import java.nio.file.attribute.BasicFileAttributeView;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 import com.cleo.connector.api.ConnectorException;
 import com.cleo.connector.api.directory.Directory.Type;
@@ -18,9 +18,12 @@ import com.google.cloud.storage.BucketInfo;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.Storage.BucketField;
 import com.google.cloud.storage.Storage.BucketListOption;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 
 public class ProjectClient extends Client {
     private Storage storage;
+    private BucketCatalog catalog = null;
 
     public static final String SLASH = "/";  // GCP Storage uses / as the delimiter
 
@@ -28,7 +31,26 @@ public class ProjectClient extends Client {
         this.storage = storage;
     }
 
+    /**
+     * Answers root listings, and lookups of listed buckets, from a catalog
+     * while it is current, and keeps it up to date as buckets are created
+     * and deleted.  Buckets the catalog does not list are still looked up.
+     * @param catalog the catalog, {@code null} to ask the project each time
+     * @return this
+     */
+    public ProjectClient catalog(BucketCatalog catalog) {
+        this.catalog = catalog;
+        return this;
+    }
+
     private Bucket get(Path path) {
+        if (catalog != null) {
+            // a bucket missing from the listing may be new, or in another project: ask for it
+            Optional<Bucket> known = catalog.get(path.name());
+            if (known != null && known.isPresent()) {
+                return known.get();
+            }
+        }
         return storage.get(path.name(), Storage.BucketGetOption.fields(BucketField.NAME)); // path.toString() will append "/" -- use name()
     }
 
@@ -42,7 +64,10 @@ public class ProjectClient extends Client {
         if (path.empty()) {
             return false; // root path -- already exists
         }
-        storage.create(BucketInfo.of(path.name())); // path.toString() will append "/" -- use name()
+        Bucket bucket = storage.create(BucketInfo.of(path.name())); // path.toString() will append "/" -- use name()
+        if (catalog != null) {
+            catalog.added(bucket);
+        }
         return true;
     }
 
@@ -51,7 +76,11 @@ public class ProjectClient extends Client {
         if (path.empty()) {
             return false; // root path -- can't remove it
         }
-        return storage.delete(path.name()); // path.toString() will append "/" -- use name()
+        boolean deleted = storage.delete(path.name()); // path.toString() will append "/" -- use name()
+        if (deleted && catalog != null) {
+            catalog.removed(path.name());
+        }
+        return deleted;
     }
 
     private static Entry bucketToEntry(Bucket bucket, Path path) {
@@ -66,12 +95,21 @@ public class ProjectClient extends Client {
 
     @Override
     public List<Entry> list(Path path) {
-        Page<Bucket> buckets = storage.list(BucketListOption.fields(BucketField.NAME, BucketField.TIME_CREATED));
-        List<Entry> result = new ArrayList<>();
-        for (Bucket bucket : buckets.iterateAll()) {
-            result.add(bucketToEntry(bucket, path.child(bucket.getName()).directory(true)));
-        }
-        return result;
+        return Lists.newArrayList(iterate(path));
+    }
+
+    /**
+     * Lists the buckets page by page as they are read, or from the catalog
+     * while it is current.
+     */
+    @Override
+    public Iterable<Entry> iterate(Path path) {
+        Supplier<Iterable<Bucket>> lister = () -> {
+            Page<Bucket> buckets = storage.list(BucketListOption.fields(BucketField.NAME, BucketField.TIME_CREATED));
+            return buckets.iterateAll();
+        };
+        Iterable<Bucket> buckets = catalog != null ? catalog.buckets(lister) : lister.get();
+        return Iterables.transform(buckets, bucket -> bucketToEntry(bucket, path.child(bucket.getName()).directory(true)));
     }
 
     public Optional<BasicFileAttributeView> attr(Path path) {
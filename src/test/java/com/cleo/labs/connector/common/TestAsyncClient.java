@@ -0,0 +1,92 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.cleo.connector.api.ConnectorException;
+
+public class TestAsyncClient {
+
+    /**
+     * A client whose {@code exists} takes a while, tracking how many calls
+     * run at once.
+     */
+    private static class SlowClient extends Client {
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger peak = new AtomicInteger();
+
+        @Override
+        public boolean exists(Path path) throws ConnectorException {
+            int now = running.incrementAndGet();
+            peak.accumulateAndGet(now, Math::max);
+            try {
+                TimeUnit.MILLISECONDS.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+            }
+            if (path.name().equals("missing")) {
+                throw new ConnectorException("'missing' does not exist or is not accessible",
+                        ConnectorException.Category.fileNonExistentOrNoAccess);
+            }
+            return true;
+        }
+    }
+
+    private static void bounded(String alias, boolean virtual) throws Exception {
+        SlowClient slow = new SlowClient();
+        Executor executor = AsyncClient.executor(alias, 4, virtual);
+        AsyncClient client = new AsyncClient(slow, executor);
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < 16; i++) {
+            futures.add(client.exists(new Path().child("f" + i)));
+        }
+        for (CompletableFuture<Boolean> future : futures) {
+            assertTrue(AsyncClient.await(future));
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(4, slow.peak.get());
+        assertTrue("calls should overlap: " + millis, millis < 16 * 50);
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        bounded("test-pool", false);
+    }
+
+    @Test
+    public void testVirtual() throws Exception {
+        bounded("test-virtual", true); // falls back to a pool before Java 21
+    }
+
+    @Test
+    public void testResize() throws Exception {
+        SlowClient slow = new SlowClient();
+        AsyncClient.executor("test-resize", 8, false);
+        AsyncClient client = new AsyncClient(slow, AsyncClient.executor("test-resize", 2, false));
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(client.exists(new Path().child("f" + i)));
+        }
+        for (CompletableFuture<Boolean> future : futures) {
+            AsyncClient.await(future);
+        }
+        assertEquals(2, slow.peak.get());
+    }
+
+    @Test(expected = ConnectorException.class)
+    public void testException() throws Exception {
+        AsyncClient client = new AsyncClient(new SlowClient(), AsyncClient.executor("test-exception", 2, false));
+        AsyncClient.await(client.exists(new Path().child("missing")));
+    }
+}
@@ -0,0 +1,104 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.cleo.connector.api.directory.Directory.Type;
+
+public class TestAttrCache {
+
+    private static Optional<BasicFileAttributeView> attr(long size, AtomicInteger calls) {
+        calls.incrementAndGet();
+        Entry entry = new Entry(Type.file);
+        entry.setSize(size);
+        return Optional.of(new EntryAttributes(entry));
+    }
+
+    @Test
+    public void testCaching() throws Exception {
+        AttrCache cache = AttrCache.namespace("testCaching", "");
+        Path path = new Path().child("bucket").child("file.txt");
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals(10L, cache.get(path, () -> attr(10, calls)).get().readAttributes().size());
+        assertEquals(10L, cache.get(path, () -> attr(20, calls)).get().readAttributes().size());
+        assertEquals("", cache.get(path, () -> attr(20, calls)).get().name());
+        assertEquals(1, calls.get());
+        cache.invalidate(new Path().child("bucket").child("file.txt"));
+        assertEquals(20L, cache.get(path, () -> attr(20, calls)).get().readAttributes().size());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testNamed() throws Exception {
+        AttrCache cache = AttrCache.namespace("testNamed", "");
+        Path path = new Path().child("bucket").child("file.txt");
+        Entry entry = new Entry(Type.file);
+        entry.setPath(path.toURIPath());
+        EntryAttributes attrs = new EntryAttributes(entry);
+        assertEquals("file.txt", attrs.name());
+        assertEquals("file.txt", cache.get(path, () -> Optional.of(attrs)).get().name());
+        assertEquals("file.txt", cache.get(path, () -> Optional.empty()).get().name());
+    }
+
+    @Test
+    public void testNegative() throws Exception {
+        AttrCache cache = AttrCache.namespace("testNegative", "maximumSize=100,expireAfterWrite=1m");
+        Path path = new Path().child("bucket").child("missing.txt");
+        AtomicInteger calls = new AtomicInteger();
+        assertFalse(cache.get(path, () -> { calls.incrementAndGet(); return Optional.empty(); }).isPresent());
+        assertFalse(cache.get(path, () -> attr(10, calls)).isPresent());
+        assertEquals(1, calls.get());
+
+        cache.update("maximumSize=100,expireAfterWrite=1m,expireNegativeAfterWrite=0s");
+        assertFalse(cache.get(path, () -> { calls.incrementAndGet(); return Optional.empty(); }).isPresent());
+        assertTrue(cache.get(path, () -> attr(10, calls)).isPresent());
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testNegativeRace() throws Exception {
+        AttrCache cache = AttrCache.namespace("testNegativeRace", "maximumSize=100,expireAfterWrite=1m");
+        Path path = new Path().child("bucket").child("racing.txt");
+        AtomicInteger calls = new AtomicInteger();
+        // the file is written (and cached) while the lookup that missed it is in flight
+        assertFalse(cache.get(path, () -> {
+            cache.put(path, attr(10, calls).get());
+            return Optional.empty();
+        }).isPresent());
+        assertTrue(cache.get(path, () -> Optional.empty()).isPresent());
+
+        // the file is written (and invalidated) while the lookup that missed it is in flight
+        Path other = new Path().child("bucket").child("other.txt");
+        assertFalse(cache.get(other, () -> {
+            cache.invalidate(other);
+            return Optional.empty();
+        }).isPresent());
+        assertTrue(cache.get(other, () -> attr(10, calls)).isPresent());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testNamespaces() throws Exception {
+        AttrCache hot = AttrCache.namespace("testNamespacesHot", "maximumWeight=1000000,expireAfterWrite=1h");
+        AttrCache cold = AttrCache.namespace("testNamespacesCold", AttrCache.DISABLED);
+        assertSame(hot, AttrCache.namespace("testNamespacesHot", "maximumWeight=1000000,expireAfterWrite=1h"));
+        Path path = new Path().child("bucket").child("file.txt");
+        AtomicInteger calls = new AtomicInteger();
+        hot.get(path, () -> attr(10, calls));
+        hot.get(path, () -> attr(10, calls));
+        cold.get(path, () -> attr(10, calls));
+        cold.get(path, () -> attr(10, calls));
+        assertEquals(3, calls.get());
+
+        // reconfiguration starts over with an empty cache
+        AttrCache.namespace("testNamespacesHot", "maximumSize=10");
+        assertEquals("maximumSize=10", hot.spec());
+        hot.get(path, () -> attr(10, calls));
+        assertEquals(4, calls.get());
+    }
+}
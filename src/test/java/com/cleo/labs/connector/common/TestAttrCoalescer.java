@@ -0,0 +1,108 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.cleo.connector.api.ConnectorException;
+import com.cleo.connector.api.directory.Directory.Type;
+
+public class TestAttrCoalescer {
+
+    /**
+     * A client whose lookups take a round trip per call, however many
+     * paths it asks for, and find every path except "missing".
+     */
+    private static class BatchClient extends Client {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicInteger lookups = new AtomicInteger();
+        private volatile boolean fail = false;
+
+        @Override
+        public Optional<BasicFileAttributeView> attr(Path path) throws ConnectorException {
+            lookups.incrementAndGet();
+            if (path.name().equals("missing")) {
+                return Optional.empty();
+            }
+            Entry entry = new Entry(Type.file);
+            entry.setPathObject(path);
+            entry.setSize(path.name().length());
+            return Optional.of(new EntryAttributes(entry));
+        }
+
+        @Override
+        public List<Optional<BasicFileAttributeView>> attr(List<Path> paths) throws ConnectorException {
+            calls.incrementAndGet();
+            try {
+                TimeUnit.MILLISECONDS.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (fail) {
+                throw new ConnectorException("batch failed");
+            }
+            return super.attr(paths);
+        }
+    }
+
+    @Test
+    public void testLone() throws Exception {
+        AttrCoalescer coalescer = AttrCoalescer.namespace("testLone", 0);
+        BatchClient client = new BatchClient();
+        assertEquals(4L, coalescer.attr("bucket", client, new Path().child("file")).get().readAttributes().size());
+        assertFalse(coalescer.attr("bucket", client, new Path().child("missing")).isPresent());
+        assertEquals(2, client.calls.get());
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        AttrCoalescer coalescer = AttrCoalescer.namespace("testConcurrent", 0);
+        BatchClient client = new BatchClient();
+        ExecutorService pool = Executors.newFixedThreadPool(50);
+        try {
+            List<CompletableFuture<Optional<BasicFileAttributeView>>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                Path path = new Path().child(i % 10 == 0 ? "missing" : "file" + i);
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return coalescer.attr("bucket", client, path);
+                    } catch (ConnectorException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }, pool));
+            }
+            for (int i = 0; i < 200; i++) {
+                Optional<BasicFileAttributeView> attr = futures.get(i).get();
+                if (i % 10 == 0) {
+                    assertFalse(attr.isPresent());
+                } else {
+                    assertEquals(("file" + i).length(), attr.get().readAttributes().size());
+                }
+            }
+            assertTrue("lookups should be batched: " + client.calls.get(), client.calls.get() < 20);
+            assertTrue(client.lookups.get() <= 200);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedBatch() throws Exception {
+        AttrCoalescer coalescer = AttrCoalescer.namespace("testFailedBatch", 0);
+        BatchClient client = new BatchClient();
+        client.fail = true;
+        assertTrue(coalescer.attr("bucket", client, new Path().child("file")).isPresent());
+        assertEquals(1, client.calls.get());
+        assertEquals(1, client.lookups.get());
+    }
+}
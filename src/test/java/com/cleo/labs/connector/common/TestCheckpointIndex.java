@@ -0,0 +1,89 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import org.junit.Test;
+
+public class TestCheckpointIndex {
+
+    private static List<String> advance(CheckpointIndex index, String...items) throws Exception {
+        // items are "name:generation"
+        return index.advance(Arrays.asList(items),
+                item -> item.substring(0, item.indexOf(':')),
+                item -> Long.parseLong(item.substring(item.indexOf(':')+1)));
+    }
+
+    private static File file() throws Exception {
+        File file = File.createTempFile("checkpoint", ".idx");
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testAdvance() throws Exception {
+        CheckpointIndex index = CheckpointIndex.open(file());
+        assertEquals(Arrays.asList("a:1", "b:1"), advance(index, "a:1", "b:1"));
+        assertEquals(Arrays.asList(), advance(index, "a:1", "b:1"));
+        assertEquals(Arrays.asList("b:2", "c:1"), advance(index, "a:1", "b:2", "c:1"));
+        assertEquals(3, index.size());
+        // b deleted: the index is rebuilt without it, and b is new again when it returns
+        assertEquals(Arrays.asList(), advance(index, "a:1", "c:1"));
+        assertEquals(2, index.size());
+        assertEquals(Arrays.asList("b:2"), advance(index, "a:1", "b:2", "c:1"));
+    }
+
+    @Test
+    public void testSelect() throws Exception {
+        CheckpointIndex index = CheckpointIndex.open(file());
+        CheckpointIndex.Selector<String> first = changed -> changed.subList(0, Math.min(1, changed.size()));
+        Function<String,String> name = item -> item.substring(0, item.indexOf(':'));
+        ToLongFunction<String> generation = item -> Long.parseLong(item.substring(item.indexOf(':')+1));
+        // only what is returned is checkpointed: the rest is still new next time
+        assertEquals(Arrays.asList("a:1"), index.advance(Arrays.asList("a:1", "b:1", "c:1"), name, generation, first));
+        assertEquals(Arrays.asList("b:1"), index.advance(Arrays.asList("a:1", "b:1", "c:1"), name, generation, first));
+        assertEquals(Arrays.asList("a:2"), index.advance(Arrays.asList("a:2", "b:2", "c:1"), name, generation, first));
+        // c is gone before it was ever returned
+        assertEquals(Arrays.asList("b:2"), index.advance(Arrays.asList("a:2", "b:2"), name, generation, first));
+        assertEquals(Arrays.asList(), advance(index, "a:2", "b:2"));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testGrowAndPersist() throws Exception {
+        File file = file();
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            items.add("inbox/file-"+i+".txt:"+(i+1));
+        }
+        CheckpointIndex index = CheckpointIndex.open(file);
+        assertSame(index, CheckpointIndex.open(file));
+        assertEquals(5000, advance(index, items.toArray(new String[0])).size());
+        assertEquals(5000, index.size());
+
+        // a second instance over the same file sees the same checkpoint
+        java.lang.reflect.Constructor<CheckpointIndex> constructor =
+                CheckpointIndex.class.getDeclaredConstructor(File.class);
+        constructor.setAccessible(true);
+        CheckpointIndex reopened = constructor.newInstance(file);
+        assertEquals(5000, reopened.size());
+        items.set(42, "inbox/file-42.txt:999");
+        items.add("inbox/new.txt:1");
+        assertEquals(Arrays.asList("inbox/file-42.txt:999", "inbox/new.txt:1"),
+                advance(reopened, items.toArray(new String[0])));
+    }
+
+    @Test
+    public void testName() {
+        assertEquals(CheckpointIndex.name("host", "bucket", "inbox/"), CheckpointIndex.name("host", "bucket", "inbox/"));
+        assertNotEquals(CheckpointIndex.name("host", "bucket", "inbox/"), CheckpointIndex.name("host", "bucket", "outbox/"));
+        assertTrue(CheckpointIndex.name("a").endsWith(".idx"));
+    }
+}
@@ -0,0 +1,99 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.cleo.connector.api.command.ConnectorCommandName;
+
+public class TestClientResolver {
+
+    private AtomicInteger accounts = new AtomicInteger();
+    private AtomicInteger containers = new AtomicInteger();
+
+    private ClientResolver shared(String name, String fingerprint) {
+        return ClientResolver.shared(name, fingerprint, null, null,
+                () -> {
+                    accounts.incrementAndGet();
+                    return new Client();
+                },
+                container -> {
+                    containers.incrementAndGet();
+                    return new Client();
+                });
+    }
+
+    private static Path parsePath(String parse) {
+        return new Path().delimiter("/").suffixDirectories(true).parseURIPath(parse);
+    }
+
+    @Test
+    public void testUnshared() throws Exception {
+        ClientResolver resolver = new ClientResolver(null, null, () -> {
+                    accounts.incrementAndGet();
+                    return new Client();
+                }, container -> {
+                    containers.incrementAndGet();
+                    return new Client();
+                });
+        assertNotSame(resolver.resolve(parsePath("bucket/a"), ConnectorCommandName.GET).client(),
+                resolver.resolve(parsePath("bucket/b"), ConnectorCommandName.GET).client());
+        resolver.resolve(parsePath("/"), ConnectorCommandName.DIR);
+        resolver.resolve(parsePath("/"), ConnectorCommandName.DIR);
+        assertEquals(2, accounts.get());
+        assertEquals(2, containers.get());
+    }
+
+    @Test
+    public void testShared() throws Exception {
+        ClientResolver resolver = shared("testShared", "one");
+        Client a = resolver.resolve(parsePath("bucket/a"), ConnectorCommandName.GET).client();
+        Client b = shared("testShared", "one").resolve(parsePath("bucket/b"), ConnectorCommandName.PUT).client();
+        assertSame(a, b);
+        assertNotSame(a, resolver.resolve(parsePath("other/a"), ConnectorCommandName.GET).client());
+        resolver.resolve(parsePath("/"), ConnectorCommandName.DIR);
+        resolver.resolve(parsePath("bucket"), ConnectorCommandName.ATTR);
+        assertEquals(1, accounts.get());
+        assertEquals(2, containers.get());
+
+        // a container created or removed is built again
+        resolver.invalidate(parsePath("bucket"));
+        assertNotSame(a, resolver.resolve(parsePath("bucket/a"), ConnectorCommandName.GET).client());
+        assertEquals(3, containers.get());
+    }
+
+    @Test
+    public void testReconfigured() throws Exception {
+        ClientResolver resolver = shared("testReconfigured", "one");
+        Client a = resolver.resolve(parsePath("bucket/a"), ConnectorCommandName.GET).client();
+        ClientResolver reconfigured = shared("testReconfigured", "two");
+        Client b = reconfigured.resolve(parsePath("bucket/a"), ConnectorCommandName.GET).client();
+        assertNotSame(a, b);
+        assertSame(b, shared("testReconfigured", "two").resolve(parsePath("bucket/a"), ConnectorCommandName.GET).client());
+        assertEquals(2, containers.get());
+    }
+
+    @Test
+    public void testCurrentSuppliers() throws Exception {
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        ClientResolver one = ClientResolver.shared("testCurrentSuppliers", "one", null, null,
+                () -> new Client(), container -> {
+                    first.incrementAndGet();
+                    return new Client();
+                });
+        Client a = one.resolve(parsePath("bucket/a"), ConnectorCommandName.GET).client();
+        ClientResolver two = ClientResolver.shared("testCurrentSuppliers", "one", null, null,
+                () -> new Client(), container -> {
+                    second.incrementAndGet();
+                    return new Client();
+                });
+        // clients already built are reused, new ones are built by the current command's supplier
+        assertSame(a, two.resolve(parsePath("bucket/b"), ConnectorCommandName.GET).client());
+        two.resolve(parsePath("other/a"), ConnectorCommandName.GET);
+        assertEquals(1, first.get());
+        assertEquals(1, second.get());
+    }
+}
@@ -0,0 +1,100 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import com.cleo.connector.api.command.ConnectorCommandName;
+import com.cleo.connector.api.command.ConnectorCommandResult;
+import com.cleo.connector.api.command.ConnectorCommandResult.Status;
+import com.google.common.io.ByteStreams;
+
+public class TestCommandTrace {
+
+    private static final Consumer<String> NOT_BROKEN = message -> fail(message);
+
+    @Test
+    public void testDisabled() throws Exception {
+        InputStream in = new ByteArrayInputStream(new byte[10]);
+        try (CommandTrace.Record trace = CommandTrace.start("", "alias", ConnectorCommandName.GET, "a", null, NOT_BROKEN)) {
+            assertSame(in, trace.count(in));
+        }
+    }
+
+    @Test
+    public void testTrace() throws Exception {
+        File file = File.createTempFile("trace", ".log");
+        file.delete();
+        file.deleteOnExit();
+        String name = file.getPath();
+
+        try (CommandTrace.Record trace = CommandTrace.start(name, "host", ConnectorCommandName.PUT, "dir/a\tb", null, NOT_BROKEN)) {
+            ByteStreams.exhaust(trace.count(new ByteArrayInputStream(new byte[1234])));
+            trace.result(new ConnectorCommandResult(Status.Success));
+        }
+        try (CommandTrace.Record trace = CommandTrace.start(name, "host", ConnectorCommandName.GET, "dir/x", null, NOT_BROKEN)) {
+            OutputStream out = trace.count(new ByteArrayOutputStream());
+            out.write(new byte[99]);
+            throw new IllegalStateException("oops");
+        } catch (IllegalStateException expected) {
+            // the record is still written
+        }
+        try (CommandTrace.Record trace = CommandTrace.start(name, "other", ConnectorCommandName.RENAME, "a\\b", "c", NOT_BROKEN)) {
+            trace.items(3).result(new ConnectorCommandResult(Status.Error, "no"));
+        }
+        CommandTrace.flushAll();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(4, lines.size());
+        assertEquals(CommandTrace.HEADER, lines.get(0));
+
+        String[] put = lines.get(1).split("\t", -1);
+        assertEquals(9, put.length);
+        assertEquals("host", put[2]);
+        assertEquals("PUT", put[3]);
+        assertEquals("Success", put[4]);
+        assertEquals("1234", put[5]);
+        assertEquals("-1", put[6]);
+        assertEquals("dir/a\tb", CommandTrace.unescape(put[7]));
+        assertNull(CommandTrace.unescape(put[8]));
+
+        String[] get = lines.get(2).split("\t", -1);
+        assertEquals(CommandTrace.EXCEPTION, get[4]);
+        assertEquals("99", get[5]);
+
+        String[] rename = lines.get(3).split("\t", -1);
+        assertEquals("Error", rename[4]);
+        assertEquals("-1", rename[5]);
+        assertEquals("3", rename[6]);
+        assertEquals("a\\b", CommandTrace.unescape(rename[7]));
+        assertEquals("c", CommandTrace.unescape(rename[8]));
+    }
+
+    @Test
+    public void testBroken() throws Exception {
+        File dir = Files.createTempDirectory("trace").toFile();
+        dir.deleteOnExit();
+        String name = new File(dir, "missing/trace.log").getPath();
+        List<String> messages = new ArrayList<>();
+        InputStream in = new ByteArrayInputStream(new byte[10]);
+        for (int i = 0; i < 3; i++) {
+            try (CommandTrace.Record trace = CommandTrace.start(name, "host", ConnectorCommandName.GET, "a", null, messages::add)) {
+                assertSame(in, trace.count(in));
+                trace.result(new ConnectorCommandResult(Status.Success));
+            }
+        }
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0).contains("trace.log"));
+    }
+}
@@ -0,0 +1,76 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestConcurrencyLimiter {
+
+    @Test
+    public void testBackoff() throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.named("test-backoff");
+        assertEquals(ConcurrencyLimiter.INITIAL_LIMIT, limiter.getLimit());
+        // a burst of throttled responses counts once
+        List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            permits.add(limiter.acquire());
+        }
+        assertEquals(10, limiter.getInFlight());
+        permits.forEach(ConcurrencyLimiter.Permit::throttled);
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(10, limiter.getThrottled());
+        assertEquals((int) (ConcurrencyLimiter.INITIAL_LIMIT * ConcurrencyLimiter.BACKOFF), limiter.getLimit());
+    }
+
+    @Test
+    public void testGrowth() throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.named("test-growth");
+        int limit = limiter.getLimit();
+        // successes only grow the limit while it is in use
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire().success();
+        }
+        assertEquals(limit, limiter.getLimit());
+        for (int round = 0; round < 10; round++) {
+            List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+            for (int i = 0; i < limiter.getLimit(); i++) {
+                permits.add(limiter.acquire());
+            }
+            permits.forEach(ConcurrencyLimiter.Permit::success);
+        }
+        assertTrue(limiter.getLimit() > limit);
+        assertTrue(limiter.getLimit() <= limit + 10);
+    }
+
+    @Test
+    public void testWait() throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.named("test-wait");
+        List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < limiter.getLimit(); i++) {
+            permits.add(limiter.acquire());
+        }
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                limiter.acquire().failed();
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                // test fails on the latch
+            }
+        });
+        waiter.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, limiter.getWaiting());
+        permits.get(0).failed();
+        permits.get(0).failed(); // released once
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        assertEquals(permits.size() - 1, limiter.getInFlight());
+        permits.forEach(ConcurrencyLimiter.Permit::failed);
+        assertEquals(0, limiter.getInFlight());
+    }
+}
@@ -0,0 +1,82 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class TestContentCache {
+
+    private static File directory() throws Exception {
+        File directory = Files.createTempDirectory("cache").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static byte[] fill(ContentCache cache, String key, byte[] content) throws Exception {
+        try (InputStream in = cache.put(key, content.length, new ByteArrayInputStream(content))) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private static byte[] read(ContentCache cache, String key) throws Exception {
+        try (InputStream in = cache.get(key)) {
+            return in == null ? null : ByteStreams.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        ContentCache cache = ContentCache.open(directory(), 1000);
+        String key = ContentCache.key("bucket", "a.txt", "1");
+        assertNull(cache.get(key));
+        byte[] content = "hello, world".getBytes();
+        assertArrayEquals(content, fill(cache, key, content));
+        assertArrayEquals(content, read(cache, key));
+        assertEquals(content.length, cache.bytes());
+        assertNull(cache.get(ContentCache.key("bucket", "a.txt", "2")));
+    }
+
+    @Test
+    public void testIncomplete() throws Exception {
+        ContentCache cache = ContentCache.open(directory(), 1000);
+        String key = ContentCache.key("x");
+        try (InputStream in = cache.put(key, 100, new ByteArrayInputStream(new byte[100]))) {
+            in.read(new byte[10]);
+        }
+        assertNull(cache.get(key));
+        try (InputStream in = cache.put(key, 100, new ByteArrayInputStream(new byte[50]))) {
+            ByteStreams.exhaust(in);
+        }
+        assertNull(cache.get(key));
+        assertEquals(0, cache.count());
+    }
+
+    @Test
+    public void testEvictAndReopen() throws Exception {
+        File directory = directory();
+        ContentCache cache = ContentCache.open(directory, 250);
+        fill(cache, "a", new byte[100]);
+        fill(cache, "b", new byte[100]);
+        read(cache, "a"); // b is now the least recently used
+        fill(cache, "c", new byte[100]);
+        assertEquals(2, cache.count());
+        assertNull(cache.get("b"));
+        assertNotNull(read(cache, "a"));
+        assertNotNull(read(cache, "c"));
+        assertEquals(2, directory.listFiles().length);
+        for (File file : directory.listFiles()) {
+            file.deleteOnExit();
+        }
+        // too large to ever fit: passed through without caching
+        fill(cache, "d", new byte[300]);
+        assertNull(cache.get("d"));
+        assertSame(cache, ContentCache.open(directory, 250));
+    }
+}
@@ -0,0 +1,95 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import com.cleo.connector.api.directory.Directory.Type;
+
+public class TestDirectorySort {
+
+    private static final Path PARENT = new Path().child("folder").directory(true);
+
+    private static List<Entry> listing(int n) {
+        Random random = new Random(n);
+        List<Entry> entries = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Entry entry = new Entry(Type.file);
+            entry.setPathObject(PARENT.child(String.format("file%06d", i)));
+            entry.setSize(random.nextInt(1000));
+            entry.setDate(LocalDateTime.of(2020, 1, 1, 0, 0).plusSeconds(random.nextInt(100000)));
+            entry.setGeneration(i+1);
+            entry.setEncoding(i % 2 == 0 ? "gzip" : null);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static List<String> names(List<Entry> entries) {
+        List<String> names = new ArrayList<>(entries.size());
+        entries.forEach(entry -> names.add(entry.getPathObject().name()));
+        return names;
+    }
+
+    @Test
+    public void testIdentity() throws Exception {
+        List<Entry> listing = listing(10);
+        DirectorySort sort = new DirectorySort("System Default", 0);
+        assertTrue(sort.identity());
+        assertEquals(names(listing), names(sort.sort(listing, PARENT, Function.identity())));
+        assertEquals(names(listing.subList(0, 3)),
+                names(new DirectorySort("", 3).sort(listing, PARENT, Function.identity())));
+    }
+
+    @Test
+    public void testTop() throws Exception {
+        List<Entry> listing = listing(1000);
+        List<Entry> expected = new ArrayList<>(listing);
+        expected.sort((a, b) -> a.getDate().compareTo(b.getDate()) != 0 ? a.getDate().compareTo(b.getDate())
+                : a.getPathObject().name().compareTo(b.getPathObject().name()));
+        List<Entry> top = new DirectorySort("Date/Time Modified Ascending", 10).sort(listing, PARENT, Function.identity());
+        assertEquals(names(expected.subList(0, 10)), names(top));
+
+        List<Entry> largest = new DirectorySort("Size Descending", 5).sort(listing, PARENT, Function.identity());
+        assertEquals(5, largest.size());
+        for (int i = 1; i < largest.size(); i++) {
+            assertTrue(largest.get(i-1).size() >= largest.get(i).size());
+        }
+    }
+
+    @Test
+    public void testExternal() throws Exception {
+        List<Entry> listing = listing(1000);
+        List<Entry> expected = new DirectorySort("Date/Time Modified Ascending", 0).sort(listing, PARENT, Function.identity());
+        int[] finished = new int[1];
+        File spill = Files.createTempDirectory("dirsort").toFile();
+        spill.deleteOnExit();
+        List<Entry> merged = new DirectorySort("Date/Time Modified Ascending", 0)
+                .maxInMemory(64)
+                .spillDirectory(spill)
+                .sort(listing(1000), PARENT, entry -> { finished[0]++; return entry; });
+        assertEquals(1000, merged.size());
+        assertEquals(1000, finished[0]); // each entry is finished once, when merged
+        assertEquals(0, spill.list().length); // and the runs are gone
+        assertEquals(names(expected), names(merged));
+        assertEquals(names(expected), names(merged));
+        assertEquals(1000, finished[0]);
+
+        Entry first = merged.get(0);
+        assertEquals(expected.get(0).getDate(), first.getDate());
+        assertEquals(expected.get(0).size(), first.size());
+        assertEquals(expected.get(0).getGeneration(), first.getGeneration());
+        for (Entry entry : merged) {
+            assertEquals(entry.getGeneration() % 2 == 1 ? "gzip" : null, entry.getEncoding());
+        }
+        assertEquals(PARENT.child(expected.get(0).getPathObject().name()), first.getPathObject());
+    }
+}
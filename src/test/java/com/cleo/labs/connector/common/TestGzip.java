@@ -0,0 +1,65 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class TestGzip {
+
+    private static byte[] content(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        Random random = new Random(size);
+        while (sb.length() < size) {
+            sb.append("ISA*00*").append(random.nextInt(1000)).append("~\n");
+        }
+        return sb.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (int size : new int[] { 0, 1, 1000, 1024*1024 }) {
+            byte[] content = content(size);
+            byte[] compressed = ByteStreams.toByteArray(Gzip.compress(new ByteArrayInputStream(content)));
+            if (size >= 1000) {
+                assertTrue(compressed.length < content.length / 2);
+            }
+            // a standard gzip decoder agrees
+            assertArrayEquals(content, ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+            assertArrayEquals(content, ByteStreams.toByteArray(
+                    Gzip.decompress(new ByteArrayInputStream(compressed), "gzip")));
+        }
+    }
+
+    @Test
+    public void testPassThrough() throws Exception {
+        byte[] content = content(100);
+        InputStream in = new ByteArrayInputStream(content);
+        assertSame(in, Gzip.decompress(in, null));
+        assertArrayEquals(new byte[0], ByteStreams.toByteArray(Gzip.decompress(new ByteArrayInputStream(new byte[0]), "gzip")));
+    }
+
+    @Test
+    public void testEncodingDecides() throws Exception {
+        byte[] content = content(100);
+        byte[] compressed = ByteStreams.toByteArray(Gzip.compress(new ByteArrayInputStream(content)));
+        // compressed content stored without the encoding is not decoded
+        assertArrayEquals(compressed, ByteStreams.toByteArray(Gzip.decompress(new ByteArrayInputStream(compressed), null)));
+        // and content claiming the encoding is decoded, or fails: it is never passed through
+        assertArrayEquals(content, ByteStreams.toByteArray(Gzip.decompress(new ByteArrayInputStream(compressed), "GZIP")));
+        try {
+            ByteStreams.toByteArray(Gzip.decompress(new ByteArrayInputStream(content), "gzip"));
+            fail("plain content decoded as gzip");
+        } catch (IOException expected) {
+            // not in gzip format
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestNameFilter {
+
+    @Test
+    public void testIsPattern() {
+        assertTrue(NameFilter.isPattern("glob:*.edi"));
+        assertTrue(NameFilter.isPattern("glob:inv??.txt"));
+        assertTrue(NameFilter.isPattern("regex:a.*"));
+        assertFalse(NameFilter.isPattern("plain.txt"));
+        assertFalse(NameFilter.isPattern(null));
+        // without a prefix, wildcard characters are literal
+        assertFalse(NameFilter.isPattern("*.edi"));
+        assertFalse(NameFilter.isPattern("report[1].csv"));
+        assertFalse(NameFilter.isPattern("x?.edi"));
+        assertFalse(NameFilter.isPattern("a{b}"));
+    }
+
+    @Test
+    public void testOf() {
+        NameFilter filter = NameFilter.of("glob:report\\[1\\].*");
+        assertEquals("glob:report\\[1\\].*", filter.toString());
+        assertEquals("report[1].", filter.prefix());
+        assertTrue(filter.matches("report[1].csv"));
+        assertFalse(filter.matches("report1.csv"));
+        assertTrue(NameFilter.of("glob:report[1].csv").matches("report1.csv"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOfUnprefixed() {
+        NameFilter.of("*.edi");
+    }
+
+    @Test
+    public void testGlob() {
+        NameFilter filter = NameFilter.glob("inv-*.edi");
+        assertEquals("inv-", filter.prefix());
+        assertTrue(filter.matches("inv-1.edi"));
+        assertTrue(filter.matches("inv-.edi"));
+        assertFalse(filter.matches("inv-1.edix"));
+        assertFalse(filter.matches("xinv-1.edi"));
+
+        assertEquals("", NameFilter.glob("*.csv").prefix());
+        assertEquals("a", NameFilter.glob("a?c").prefix());
+        assertTrue(NameFilter.glob("a?c").matches("abc"));
+        assertFalse(NameFilter.glob("a?c").matches("ac"));
+
+        NameFilter set = NameFilter.glob("[!a-c]*.{csv,txt}");
+        assertTrue(set.matches("d.csv"));
+        assertTrue(set.matches("x.txt"));
+        assertFalse(set.matches("a.csv"));
+        assertFalse(set.matches("d.edi"));
+
+        NameFilter literal = NameFilter.glob("a,b\\*c*");
+        assertEquals("a,b*c", literal.prefix());
+        assertTrue(literal.matches("a,b*cd"));
+        assertFalse(literal.matches("a,bxcd"));
+    }
+
+    @Test
+    public void testRegex() {
+        NameFilter filter = NameFilter.of("regex:inv-[0-9]+\\.edi");
+        assertEquals("inv-", filter.prefix());
+        assertTrue(filter.matches("inv-42.edi"));
+        assertFalse(filter.matches("inv-x.edi"));
+
+        assertEquals("ab", NameFilter.regex("abc*").prefix());
+        assertEquals("abc", NameFilter.regex("^abc+").prefix());
+        assertEquals("", NameFilter.regex("a|b").prefix());
+        assertTrue(NameFilter.regex("a|b").matches("b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalid() {
+        NameFilter.glob("{a,b");
+    }
+}
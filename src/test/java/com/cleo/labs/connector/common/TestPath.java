@@ -41,6 +41,20 @@ public class TestPath {
         assertEquals("abc", Escaper.unescape("a(62)c"));
         assertEquals("abc", Escaper.unescape("()a(:62:)c"));
         assertEquals("a(62)c", Escaper.escape("abc", "b"));
+        assertEquals("a(28)b(2f)c(28)", Escaper.escape("a(b/c(", "/"));
+        assertEquals("a(b/c(", Escaper.unescape("a(28)b(2f)c(28)"));
+        assertEquals("a(q)(x)(", Escaper.unescape("a(q)(x)(28)"));
+        assertEquals("\uD83D\uDE00", Escaper.unescape(Escaper.encode("\uD83D\uDE00")));
+        assertEquals("(1f600)", Escaper.encode("\uD83D\uDE00"));
+    }
+
+    @Test
+    public void testEscapeUnchanged() {
+        String plain = "invoice-2018.edi";
+        assertSame(plain, Escaper.escape(plain, "/"));
+        assertSame(plain, Escaper.unescape(plain));
+        String unmatched = "a(q)c";
+        assertSame(unmatched, Escaper.unescape(unmatched));
     }
 
     @Test
@@ -92,4 +106,51 @@ public class TestPath {
         assertEquals("a/b/c/", new Path().suffixDirectories(true).markDirectories(true).parseURIPath("a(2f)b/c.dir").toString());
         assertEquals("a/b/c/", new Path().suffixDirectories(true).markDirectories(true).parseURIPath("a.dir/b.dir/c.dir").toString());
     }
+
+    @Test
+    public void testImmutable() {
+        Path path = new Path().child("a").child("b");
+        Path directory = path.directory(true);
+        assertFalse(path.directory());
+        assertTrue(directory.directory());
+        assertEquals("a/b", path.suffixDirectories(true).toString());
+        assertEquals("a/b/", directory.suffixDirectories(true).toString());
+        assertEquals("a/b", directory.toString());
+        assertEquals("a/b", path.markDirectories(true).toURIPath());
+        assertFalse(path.markDirectories());
+        Path parsed = new Path().markDirectories(true);
+        assertTrue(parsed.parseURIPath("x/y.dir").directory());
+        assertTrue(parsed.empty());
+    }
+
+    @Test
+    public void testSharing() {
+        Path parent = new Path().child("a").child("b");
+        Path child = parent.child("c");
+        assertEquals("a/b", parent.toString());
+        assertEquals("a/b/c", child.toString());
+        assertEquals("a:b:c", child.delimiter(":").toString());
+        assertEquals("a/b", child.parent().toString());
+        assertEquals("a", child.node(0));
+        assertEquals("b", child.node(1));
+        assertEquals("c", child.node(-1));
+        assertEquals("", child.node(3));
+        assertEquals("b/c", child.slice(1, null).toString());
+        assertEquals("a/b", child.slice(0, -1).toString());
+        assertEquals("b", child.slice(1, 2).toString());
+        assertEquals("", child.slice(3, null).toString());
+        assertEquals("a/b/c/d", parent.child(new Path().child("c").child("d")).toString());
+    }
+
+    @Test
+    public void testEquals() {
+        Path a = new Path().parseURIPath("a/b/c");
+        Path b = new Path().child("a").child("b").child("c").directory(false);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertNotEquals(a, a.directory(true));
+        assertNotEquals(a, a.parent());
+        assertNotEquals(a, new Path().parseURIPath("a/b/d"));
+        assertEquals(a, new Path(a));
+    }
 }
@@ -0,0 +1,85 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class TestPrefetcher {
+
+    private static Path path(String name) {
+        return new Path().child("inbox").child(name);
+    }
+
+    private static InputStream content(AtomicInteger downloads, int size) {
+        downloads.incrementAndGet();
+        return new ByteArrayInputStream(new byte[size]);
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        Prefetcher prefetcher = Prefetcher.namespace("testPrefetch", 100, 250);
+        AtomicInteger downloads = new AtomicInteger();
+        assertTrue(prefetcher.prefetch(path("a"), 1, 100, () -> content(downloads, 100)));
+        assertFalse(prefetcher.prefetch(path("a"), 1, 100, () -> content(downloads, 100))); // already there
+        assertFalse(prefetcher.prefetch(path("big"), 1, 101, () -> content(downloads, 101))); // too large
+        assertTrue(prefetcher.prefetch(path("b"), 1, 100, () -> content(downloads, 100)));
+        assertFalse(prefetcher.prefetch(path("c"), 1, 100, () -> content(downloads, 100))); // buffer full
+        assertEquals(200, prefetcher.bytes());
+
+        assertTrue(prefetcher.buffered(path("a")));
+        assertEquals(100, ByteStreams.toByteArray(prefetcher.take(path("a"), 1)).length);
+        assertFalse(prefetcher.buffered(path("a")));
+        assertNull(prefetcher.take(path("a"), 1)); // taken
+        assertEquals(100, prefetcher.bytes());
+        prefetcher.invalidate(path("b"));
+        assertNull(prefetcher.take(path("b"), 1));
+        assertEquals(0, prefetcher.bytes());
+    }
+
+    @Test
+    public void testStale() throws Exception {
+        Prefetcher prefetcher = Prefetcher.namespace("testStale", 100, 1000);
+        AtomicInteger downloads = new AtomicInteger();
+        assertTrue(prefetcher.prefetch(path("a"), 1, 10, () -> content(downloads, 10)));
+        // overwritten since the DIR: the buffered generation is discarded
+        assertNull(prefetcher.take(path("a"), 2));
+        assertFalse(prefetcher.buffered(path("a")));
+        assertEquals(0, prefetcher.bytes());
+
+        // an unknown current generation can not be checked
+        assertTrue(prefetcher.prefetch(path("b"), 1, 10, () -> content(downloads, 10)));
+        assertNull(prefetcher.take(path("b"), 0));
+        assertEquals(0, prefetcher.bytes());
+    }
+
+    @Test
+    public void testExpiredOnTake() throws Exception {
+        Prefetcher prefetcher = Prefetcher.namespace("testExpiredOnTake", 100, 1000).ttl(10, TimeUnit.MILLISECONDS);
+        AtomicInteger downloads = new AtomicInteger();
+        assertTrue(prefetcher.prefetch(path("a"), 1, 10, () -> content(downloads, 10)));
+        assertEquals(10, prefetcher.bytes());
+        Thread.sleep(1100); // sweeps are at most a second apart
+        assertNull(prefetcher.take(path("b"), 1));
+        assertEquals(0, prefetcher.bytes());
+    }
+
+    @Test
+    public void testFailureAndDisabled() throws Exception {
+        Prefetcher prefetcher = Prefetcher.namespace("testFailure", 100, 1000);
+        assertTrue(prefetcher.prefetch(path("x"), 1, 10, () -> { throw new IOException("nope"); }));
+        assertNull(prefetcher.take(path("x"), 1));
+        assertEquals(0, prefetcher.bytes());
+
+        prefetcher = Prefetcher.namespace("testFailure", 0, 1000);
+        assertFalse(prefetcher.enabled());
+        assertFalse(prefetcher.prefetch(path("y"), 1, 10, () -> new ByteArrayInputStream(new byte[10])));
+    }
+}
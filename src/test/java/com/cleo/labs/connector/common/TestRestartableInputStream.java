@@ -0,0 +1,99 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class TestRestartableInputStream {
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        return content;
+    }
+
+    /**
+     * Opens the content at an offset, failing once {@code failAfter}
+     * bytes have been read from any one stream (if positive).
+     */
+    private static RestartableInputStream.Opener flaky(byte[] content, int failAfter, List<Long> opens) {
+        return offset -> {
+            opens.add(offset);
+            InputStream in = new ByteArrayInputStream(content, (int) offset, content.length - (int) offset);
+            return new FilterInputStream(in) {
+                private int read = 0;
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (failAfter > 0 && read >= failAfter) {
+                        throw new IOException("connection reset");
+                    }
+                    int n = super.read(b, off, Math.min(len, 100));
+                    read += Math.max(0, n);
+                    return n;
+                }
+            };
+        };
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        byte[] content = content(1000);
+        List<Long> opens = new ArrayList<>();
+        RestartableInputStream in = new RestartableInputStream(flaky(content, 300, opens), 0)
+                .backoff(0, TimeUnit.MILLISECONDS);
+        assertArrayEquals(content, ByteStreams.toByteArray(in));
+        assertEquals(1000, in.position());
+        assertEquals(opens.size()-1, in.restarts());
+        assertTrue(in.restarts() >= 3);
+        assertEquals(0L, (long) opens.get(0));
+        for (int i = 1; i < opens.size(); i++) {
+            // each restart resumes where the last stream failed, 300 bytes or so later
+            assertTrue(opens.get(i) >= opens.get(i-1) + 300);
+        }
+    }
+
+    @Test
+    public void testOffset() throws Exception {
+        byte[] content = content(1000);
+        List<Long> opens = new ArrayList<>();
+        RestartableInputStream in = new RestartableInputStream(flaky(content, 0, opens), 900);
+        byte[] tail = ByteStreams.toByteArray(in);
+        assertEquals(100, tail.length);
+        assertEquals(content[900], tail[0]);
+        assertEquals(0, in.restarts());
+    }
+
+    @Test(expected = IOException.class)
+    public void testGiveUp() throws Exception {
+        RestartableInputStream in = new RestartableInputStream(offset -> { throw new IOException("down"); }, 0)
+                .maxRetries(2)
+                .backoff(0, TimeUnit.MILLISECONDS);
+        in.read();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotRetryable() throws Exception {
+        List<Long> opens = new ArrayList<>();
+        RestartableInputStream in = new RestartableInputStream(offset -> {
+            opens.add(offset);
+            throw new IllegalStateException("gone");
+        }, 0);
+        try {
+            in.read();
+        } finally {
+            assertEquals(1, opens.size());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestUploadSessions {
+
+    private static File directory() throws Exception {
+        File directory = Files.createTempDirectory("uploads").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static File source(String content) throws Exception {
+        File file = File.createTempFile("source", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes());
+        return file;
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        UploadSessions sessions = UploadSessions.open(directory());
+        String key = UploadSessions.key("bucket", "big.bin");
+        String fingerprint = UploadSessions.fingerprint(source("content"));
+        assertNull(sessions.load(key, fingerprint));
+        assertTrue(sessions.save(key, new UploadSessions.Session(fingerprint, 42, "https://upload/session")));
+        UploadSessions.Session session = sessions.load(key, fingerprint);
+        assertNotNull(session);
+        assertEquals(42, session.offset());
+        assertEquals("https://upload/session", session.uploadId());
+        sessions.remove(key);
+        assertNull(sessions.load(key, fingerprint));
+    }
+
+    @Test
+    public void testChangedSource() throws Exception {
+        UploadSessions sessions = UploadSessions.open(directory());
+        String key = UploadSessions.key("bucket", "big.bin");
+        File source = source("content");
+        String fingerprint = UploadSessions.fingerprint(source);
+        sessions.save(key, new UploadSessions.Session(fingerprint, 42, "https://upload/session"));
+        Files.write(source.toPath(), "changed content".getBytes());
+        String changed = UploadSessions.fingerprint(source);
+        assertNotEquals(fingerprint, changed);
+        assertNull(sessions.load(key, changed));
+        assertNull(sessions.load(key, fingerprint)); // discarded
+        assertNull(UploadSessions.fingerprint(source.getParentFile()));
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        File directory = directory();
+        UploadSessions sessions = UploadSessions.open(directory);
+        String key = UploadSessions.key("bucket", "old.bin");
+        sessions.save(key, new UploadSessions.Session("f", 1, "https://upload/session"));
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        files[0].setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(UploadSessions.LIFETIME_DAYS + 1));
+        assertNull(sessions.load(key, "f"));
+        assertEquals(0, directory.listFiles().length);
+    }
+}
@@ -0,0 +1,32 @@
+package com.cleo.labs.connector.common;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestWriteShaper {
+
+    @Test
+    public void testRamp() {
+        assertEquals(1000.0, WriteShaper.rate(0), 0.0);
+        assertEquals(1000.0, WriteShaper.rate(TimeUnit.MINUTES.toNanos(19)), 0.0);
+        assertEquals(2000.0, WriteShaper.rate(TimeUnit.MINUTES.toNanos(20)), 0.0);
+        assertEquals(8000.0, WriteShaper.rate(TimeUnit.MINUTES.toNanos(65)), 0.0);
+        assertEquals(1024000.0, WriteShaper.rate(TimeUnit.DAYS.toNanos(365)), 0.0);
+        assertEquals(1000.0, WriteShaper.named("test-ramp").rate(), 0.0);
+    }
+
+    @Test
+    public void testObjectRate() {
+        WriteShaper shaper = WriteShaper.named("test-object");
+        long start = System.nanoTime();
+        shaper.acquire("hot.txt");
+        shaper.acquire("a.txt");
+        shaper.acquire("b.txt");
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+        shaper.acquire("hot.txt"); // waits its turn
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 900);
+    }
+}
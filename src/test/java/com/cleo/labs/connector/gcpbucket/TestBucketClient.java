@@ -1,24 +1,44 @@
 package com.cleo.labs.connector.gcpbucket;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.junit.Ignore;
 import org.junit.Test;
 
+import com.cleo.connector.api.ConnectorException;
+import com.cleo.labs.connector.common.ContentCache;
 import com.cleo.labs.connector.common.Entry;
+import com.cleo.labs.connector.common.NameFilter;
 import com.cleo.labs.connector.common.Path;
-import com.google.auth.oauth2.GoogleCredentials;
-import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageOptions;
+import com.cleo.labs.connector.common.RestartableInputStream;
+import com.cleo.labs.connector.common.UploadSessions;
+import com.cleo.labs.connector.gcpbucket.local.LocalStorage;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.StorageException;
+import com.google.common.io.ByteStreams;
 
 public class TestBucketClient {
 
+    private static final String TEST_BUCKET = "cleo-labs-develop-1";
+
     private Path parsePath(String parse) {
         return new Path()
                 .delimiter(ProjectClient.SLASH)
@@ -32,24 +52,359 @@ public class TestBucketClient {
         return result;
     }
 
+    private String download(BucketClient client, String path) throws Exception {
+        try (InputStream in = client.download(parsePath(path))) {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    private void upload(BucketClient client, String path, String content) throws ConnectorException {
+        client.upload(parsePath(path), new ByteArrayInputStream(content.getBytes()));
+    }
+
     @Test
-    @Ignore
-    public void test() throws FileNotFoundException, IOException {
-        String projectId = "602108159320";
-        File jsonKey = new File("/Users/jthielens/Downloads/API Project-e35caa8ee46a.json");
-        GoogleCredentials credentials = GoogleCredentials.fromStream(new FileInputStream(jsonKey));
-        Storage storage;
-        storage = StorageOptions.newBuilder()
-                                .setProjectId(projectId)
-                                .setCredentials(credentials)
-                                .build()
-                                .getService();
-        BucketClient client = new BucketClient(storage, "cleo-labs-develop-1");
+    public void test() throws Exception {
+        LocalStorage local = new LocalStorage().bucket(TEST_BUCKET);
+        BucketClient client = new BucketClient(local.storage(), TEST_BUCKET);
+        client.mkdir(parsePath("folder-1"));
+        client.mkdir(parsePath("folder-2"));
+        upload(client, "a.txt", "a");
+        upload(client, "folder-1/b.txt", "b");
+        upload(client, "folder-3/c.txt", "c");
         assertTrue(client.exists(new Path().directory(true)));
         assertTrue(client.exists(new Path().directory(false)));
         assertTrue(client.exists(new Path().parseURIPath("folder-2").directory(true)));
+        assertFalse(client.exists(new Path().parseURIPath("folder-4").directory(true)));
         assertEquals(4, list(client, "/").size());
         assertEquals(0, list(client, "folder-2").size());
+        assertEquals(1, list(client, "folder-1").size());
+        assertEquals(1L, client.attr(parsePath("folder-3/c.txt")).get().readAttributes().size());
+    }
+
+    @Test
+    public void testPaging() throws ConnectorException {
+        LocalStorage local = new LocalStorage().bucket(TEST_BUCKET);
+        BucketClient client = new BucketClient(local.storage(), TEST_BUCKET);
+        for (int i = 0; i < 250; i++) {
+            upload(client, String.format("folder/%03d.txt", i), "x");
+            upload(client, String.format("folder/%03d/nested.txt", i), "x");
+        }
+        local.reset();
+        assertEquals(500, list(client, "folder").size());
+        assertEquals(5, local.rpcCount("objects.list")); // pages of 100
+    }
+
+    @Test
+    public void testRecursive() throws ConnectorException {
+        LocalStorage local = new LocalStorage().bucket(TEST_BUCKET);
+        BucketClient client = new BucketClient(local.storage(), TEST_BUCKET);
+        client.mkdir(parsePath("drop/empty"));
+        upload(client, "drop/a.txt", "a");
+        upload(client, "drop/x/b.txt", "b");
+        upload(client, "drop/x/y/c.txt", "c");
+        upload(client, "other/d.txt", "d");
+        local.reset();
+        List<Entry> entries = client.list(parsePath("drop"), true);
+        assertEquals(1, local.rpcCount("objects.list"));
+        assertEquals(4, entries.size());
+        assertEquals(1, entries.stream().filter(Entry::isDir).count());
+        assertTrue(entries.stream().anyMatch(e -> e.getPathObject().toString().equals("drop/x/y/c.txt")));
+        assertEquals(3, entries.stream().filter(e -> !e.isDir()).count());
+        assertEquals(3, client.list(parsePath("drop"), false).size());
+    }
+
+    @Test
+    public void testFilter() throws ConnectorException {
+        LocalStorage local = new LocalStorage().bucket(TEST_BUCKET);
+        BucketClient client = new BucketClient(local.storage(), TEST_BUCKET);
+        for (int i = 0; i < 250; i++) {
+            upload(client, String.format("inbox/%03d.csv", i), "x");
+        }
+        upload(client, "inbox/inv-1.edi", "x");
+        upload(client, "inbox/inv-2.edi", "x");
+        upload(client, "inbox/inv-3.txt", "x");
+        local.reset();
+        List<Entry> entries = client.list(parsePath("inbox"), NameFilter.glob("inv-*.edi"));
+        assertEquals(2, entries.size());
+        assertEquals("inbox/inv-1.edi", entries.get(0).getPathObject().toString());
+        assertEquals(1, local.rpcCount("objects.list")); // only inv- is listed
+        assertEquals(2, client.list(parsePath("inbox"), NameFilter.of("regex:inv-[12]\\..*")).size());
+        assertEquals(250, client.list(parsePath("inbox"), NameFilter.glob("*.csv")).size());
+    }
+
+    @Test
+    public void testContentCache() throws Exception {
+        LocalStorage local = new LocalStorage().bucket(TEST_BUCKET);
+        File directory = Files.createTempDirectory("content").toFile();
+        directory.deleteOnExit();
+        BucketClient client = new BucketClient(local.storage(), TEST_BUCKET)
+                .contentCache(ContentCache.open(directory, 1024*1024));
+        upload(client, "lookup.csv", "version 1");
+        local.reset();
+        assertEquals("version 1", download(client, "lookup.csv"));
+        assertEquals("version 1", download(client, "lookup.csv"));
+        assertEquals(1, local.rpcCount("objects.get(media)")); // the second was served locally
+        assertEquals(2, local.rpcCount("objects.get"));
+
+        client.delete(parsePath("lookup.csv"));
+        upload(client, "lookup.csv", "version 2");
+        assertEquals("version 2", download(client, "lookup.csv")); // new generation
+        assertEquals(2, local.rpcCount("objects.get(media)"));
+        for (File file : directory.listFiles()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testCompress() throws Exception {
+        LocalStorage local = new LocalStorage().bucket(TEST_BUCKET);
+        BucketClient client = new BucketClient(local.storage(), TEST_BUCKET).compress(true);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("ST*850*").append(i).append("~\n");
+        }
+        String content = sb.toString();
+        upload(client, "orders.edi", content);
+        assertEquals(content, download(client, "orders.edi"));
+        assertEquals(content.length(), client.attr(parsePath("orders.edi")).get().readAttributes().size());
+        Entry entry = client.list(parsePath("/")).get(0);
+        assertEquals(content.length(), entry.size());
+        assertEquals(content, new String(ByteStreams.toByteArray(client.download(entry)), StandardCharsets.UTF_8));
+        Blob stored = local.storage().get(TEST_BUCKET, "orders.edi");
+        assertEquals("gzip", stored.getContentEncoding());
+        assertTrue(stored.getSize() < content.length() / 4);
+        assertEquals(String.valueOf(content.length()), stored.getMetadata().get(BucketClient.UNCOMPRESSED_SIZE));
+
+        // offsets count uncompressed bytes, read from the generation found at the start
+        try (InputStream in = client.download(parsePath("orders.edi"), 100)) {
+            assertEquals(content.substring(100), new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+        }
+        try (InputStream in = client.download(parsePath("orders.edi"), 100)) {
+            client.delete(parsePath("orders.edi"));
+            upload(client, "orders.edi", "replaced");
+            in.read();
+            fail("read a replaced generation");
+        } catch (IOException | StorageException expected) {
+            // the generation is gone
+        }
+
+        // small content is created with its uncompressed size in one request
+        local.reset();
+        upload(client, "small.edi", content);
+        assertEquals(1, local.rpcCount("objects.insert"));
+        assertEquals(0, local.rpcCount("objects.patch"));
+
+        // content beyond one chunk streams, and records its size afterwards
+        byte[] random = new byte[9 * 1024 * 1024];
+        new Random(0).nextBytes(random);
+        local.reset();
+        client.upload(parsePath("random.bin"), new ByteArrayInputStream(random));
+        assertEquals(1, local.rpcCount("objects.patch"));
+        assertEquals(String.valueOf(random.length),
+                local.storage().get(TEST_BUCKET, "random.bin").getMetadata().get(BucketClient.UNCOMPRESSED_SIZE));
+        assertArrayEquals(random, ByteStreams.toByteArray(client.download(parsePath("random.bin"))));
+
+        // uncompressed objects are untouched
+        BucketClient plain = new BucketClient(local.storage(), TEST_BUCKET);
+        upload(plain, "plain.txt", "plain");
+        assertEquals("plain", download(client, "plain.txt"));
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        LocalStorage local = new LocalStorage().bucket(TEST_BUCKET);
+        BucketClient client = new BucketClient(local.storage(), TEST_BUCKET);
+        byte[] content = new byte[5 * 1024 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        client.upload(parsePath("big.bin"), new ByteArrayInputStream(content));
+        byte[] read = new byte[content.length];
+        try (InputStream in = client.download(parsePath("big.bin"))) {
+            ByteStreams.readFully(in, read, 0, 1024 * 1024);
+            local.failNext(1, 503);
+            ByteStreams.readFully(in, read, 1024 * 1024, content.length - 1024 * 1024);
+            assertEquals(-1, in.read());
+        }
+        assertArrayEquals(content, read);
+
+        // resume from an offset
+        try (InputStream in = client.download(parsePath("big.bin"), 3 * 1024 * 1024 + 7)) {
+            byte[] rest = ByteStreams.toByteArray(in);
+            assertEquals(content.length - (3 * 1024 * 1024 + 7), rest.length);
+            assertEquals(content[3 * 1024 * 1024 + 7], rest[0]);
+        }
     }
 
+    @Test
+    public void testResumableUpload() throws Exception {
+        LocalStorage local = new LocalStorage().bucket(TEST_BUCKET);
+        File state = Files.createTempDirectory("uploads").toFile();
+        state.deleteOnExit();
+        BucketClient client = new BucketClient(local.storage(), TEST_BUCKET)
+                .uploadSessions(UploadSessions.open(state));
+        byte[] content = new byte[20 * 1024 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        // the source fails partway through the first attempt
+        int chunk = 8 * 1024 * 1024;
+        AtomicBoolean broken = new AtomicBoolean(true);
+        List<Long> opened = new ArrayList<>();
+        RestartableInputStream.Opener source = offset -> {
+            opened.add(offset);
+            InputStream in = new ByteArrayInputStream(content, (int) offset, content.length - (int) offset);
+            if (!broken.get()) {
+                return in;
+            }
+            return new FilterInputStream(ByteStreams.limit(in, 17 * 1024 * 1024)) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n < 0) {
+                        throw new IOException("source interrupted");
+                    }
+                    return n;
+                }
+            };
+        };
+        try {
+            client.upload(parsePath("big.bin"), source, "fingerprint");
+            fail("the upload should have failed");
+        } catch (ConnectorException expected) {
+            // expected
+        }
+        assertFalse(client.exists(parsePath("big.bin")));
+
+        // the resumed upload continues after the two chunks written, sending only the rest
+        broken.set(false);
+        local.reset();
+        assertTrue(client.upload(parsePath("big.bin"), source, "fingerprint"));
+        assertEquals(Arrays.asList(0L, 2L * chunk), opened);
+        assertEquals(0, local.rpcCount("objects.insert(resumable)"));
+        assertEquals(content.length - 2L * chunk, local.rpcBytes("objects.insert(chunk)"));
+        byte[] read = ByteStreams.toByteArray(client.download(parsePath("big.bin")));
+        assertArrayEquals(content, read);
+        assertEquals(0, state.listFiles().length);
+    }
+
+    @Test
+    public void testResumableUploadWriteFailure() throws Exception {
+        LocalStorage local = new LocalStorage().bucket(TEST_BUCKET);
+        File state = Files.createTempDirectory("uploads").toFile();
+        state.deleteOnExit();
+        BucketClient client = new BucketClient(local.storage(), TEST_BUCKET)
+                .uploadSessions(UploadSessions.open(state));
+        int chunk = 8 * 1024 * 1024;
+        byte[] content = new byte[20 * 1024 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        // the write of the second chunk fails after it is read from the source
+        AtomicBoolean broken = new AtomicBoolean(true);
+        List<Long> opened = new ArrayList<>();
+        RestartableInputStream.Opener source = offset -> {
+            opened.add(offset);
+            InputStream in = new ByteArrayInputStream(content, (int) offset, content.length - (int) offset);
+            if (!broken.get()) {
+                return in;
+            }
+            return new FilterInputStream(in) {
+                private long position = offset;
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0 && position < chunk + chunk / 2 && position + n >= chunk + chunk / 2) {
+                        local.failNext(1, 503);
+                    }
+                    position += Math.max(n, 0);
+                    return n;
+                }
+            };
+        };
+        try {
+            client.upload(parsePath("big.bin"), source, "fingerprint");
+            fail("the upload should have failed");
+        } catch (StorageException expected) {
+            assertEquals(503, expected.getCode());
+        }
+        assertFalse(client.exists(parsePath("big.bin")));
+
+        // the resumed upload continues after the first chunk, without repeating any bytes
+        broken.set(false);
+        local.reset();
+        assertTrue(client.upload(parsePath("big.bin"), source, "fingerprint"));
+        assertEquals(Arrays.asList(0L, (long) chunk), opened);
+        assertEquals(0, local.rpcCount("objects.insert(resumable)"));
+        assertEquals(content.length - (long) chunk, local.rpcBytes("objects.insert(chunk)"));
+        byte[] read = ByteStreams.toByteArray(client.download(parsePath("big.bin")));
+        assertArrayEquals(content, read);
+        assertEquals(0, state.listFiles().length);
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        LocalStorage local = new LocalStorage().bucket(TEST_BUCKET);
+        BucketClient client = new BucketClient(local.storage(), TEST_BUCKET)
+                .executor(Executors.newFixedThreadPool(4));
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            upload(client, String.format("out/%03d.edi", i), "x");
+            if (i < 240) {
+                paths.add(parsePath(String.format("out/%03d.edi", i)));
+            }
+        }
+        paths.add(parsePath("out/missing.edi"));
+
+        // a single delete is a single request
+        local.reset();
+        assertTrue(client.delete(parsePath("out/249.edi")));
+        assertFalse(client.delete(parsePath("out/249.edi")));
+        assertEquals(2, local.rpcCount());
+
+        local.reset();
+        List<Path> deleted = new ArrayList<>();
+        List<String> errors = client.delete(paths, deleted);
+        assertEquals(240, deleted.size());
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).contains("missing.edi"));
+        assertEquals(3, local.rpcCount("batch"));
+        assertEquals(9, client.list(parsePath("out/")).size());
+    }
+
+    @Test
+    public void testAttrBatch() throws Exception {
+        LocalStorage local = new LocalStorage().bucket(TEST_BUCKET);
+        BucketClient client = new BucketClient(local.storage(), TEST_BUCKET)
+                .executor(Executors.newFixedThreadPool(4));
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < 249; i++) {
+            upload(client, String.format("in/%03d.edi", i), "xyz");
+            paths.add(parsePath(String.format("in/%03d.edi", i)));
+        }
+        paths.add(parsePath("in/missing.edi"));
+
+        local.reset();
+        List<Optional<BasicFileAttributeView>> attrs = client.attr(paths);
+        assertEquals(250, attrs.size());
+        for (int i = 0; i < 249; i++) {
+            assertEquals(3L, attrs.get(i).get().readAttributes().size());
+        }
+        assertFalse(attrs.get(249).isPresent());
+        assertEquals(3, local.rpcCount("batch"));
+        assertEquals(3, local.rpcCount());
+
+        // duplicate paths are looked up once and answered at every position
+        upload(client, "in/007.edi", "seven");
+        local.reset();
+        attrs = client.attr(Arrays.asList(paths.get(7), parsePath("in/missing.edi"), paths.get(7), paths.get(3),
+                parsePath("in/missing.edi")));
+        assertEquals(5, attrs.size());
+        assertEquals(5L, attrs.get(0).get().readAttributes().size());
+        assertFalse(attrs.get(1).isPresent());
+        assertEquals(5L, attrs.get(2).get().readAttributes().size());
+        assertEquals(3L, attrs.get(3).get().readAttributes().size());
+        assertFalse(attrs.get(4).isPresent());
+        assertEquals(1, local.rpcCount("batch"));
+    }
 }
@@ -2,43 +2,48 @@ package com.cleo.labs.connector.gcpbucket;
 
 import static org.junit.Assert.*;
 
-import java.io.FileReader;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 import org.junit.Test;
 
 import com.cleo.connector.api.ConnectorClient;
+import com.cleo.connector.api.command.ConnectorCommandOption;
 import com.cleo.connector.api.command.ConnectorCommandResult;
 import com.cleo.connector.api.command.ConnectorCommandResult.Status;
 import com.cleo.connector.api.directory.Entry;
+import com.cleo.labs.connector.gcpbucket.local.LocalStorage;
 import com.cleo.labs.connector.testing.Commands;
 import com.cleo.labs.connector.testing.StringCollector;
 import com.cleo.labs.connector.testing.StringSource;
 import com.cleo.labs.connector.testing.TestConnectorClientBuilder;
+import com.google.cloud.storage.BlobInfo;
 import com.google.common.base.Strings;
-import com.google.common.io.CharStreams;
 
 public class TestBucketConnectorClient {
 
+    private static final String TEST_BUCKET = "cleo-labs-develop-1";
+
+    private LocalStorage local = new LocalStorage().bucket(TEST_BUCKET);
+
     private ConnectorClient setup(String bucketName, boolean markDirectories) throws Exception {
-        String key;
-        try (FileReader jsonKey = new FileReader("/Users/jthielens/Downloads/API Project-e35caa8ee46a.json")) {
-            key = CharStreams.toString(jsonKey);
-        }
         TestConnectorClientBuilder builder = new TestConnectorClientBuilder(BucketConnectorSchema.class)
             .logger(System.err)
             .debug(true)
-            .set("ProjectId", "602108159320")
-            .set("GoogleAccountKey", key)
+            .set("ProjectId", LocalStorage.PROJECT_ID)
             .set("MarkDirectories", String.valueOf(markDirectories));
         if (!Strings.isNullOrEmpty(bucketName)) {
             builder.set("BucketName", bucketName);
         }
-        return builder.build();
+        return ((BucketConnectorClient) builder.build()).storage(local.storage());
     }
 
-    private static final String TEST_BUCKET = "cleo-labs-develop-1";
-
     @Test
     public void testRoundTrip() throws Exception {
         ConnectorClient client = setup(TEST_BUCKET, false);
@@ -257,4 +262,154 @@ public class TestBucketConnectorClient {
         assertEquals(true, Commands.attr("").go(client).readAttributes().isDirectory());
     }
 
+    private static List<String> names(ConnectorClient client, String folder) throws Exception {
+        ConnectorCommandResult result = Commands.dir(folder).go(client);
+        assertEquals(Status.Success, result.getStatus());
+        List<String> names = new ArrayList<>();
+        for (Entry e : result.getDirEntries().get()) {
+            names.add(e.getPath().substring(e.getPath().lastIndexOf('/')+1));
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Test
+    public void testDeletePattern() throws Exception {
+        ConnectorClient client = setup(TEST_BUCKET, false);
+        ConnectorCommandResult result;
+        String testFolder = UUID.randomUUID().toString();
+
+        for (String name : new String[] {"report1.csv", "report2.csv", "report[1].csv", "notes.txt"}) {
+            result = Commands.put(new StringSource(name, StringSource.lorem), testFolder+"/"+name).go(client);
+            assertEquals(Status.Success, result.getStatus());
+        }
+
+        // a plain name is deleted literally, wildcard characters and all
+        result = Commands.delete(testFolder+"/report[1].csv").go(client);
+        assertEquals(Status.Success, result.getStatus());
+        assertEquals(Arrays.asList("notes.txt", "report1.csv", "report2.csv"), names(client, testFolder));
+
+        // an explicit pattern deletes the files it matches
+        result = Commands.delete(testFolder+"/glob:report?.csv").go(client);
+        assertEquals(Status.Success, result.getStatus());
+        assertEquals(2, result.getDirEntries().get().size());
+        assertEquals(Arrays.asList("notes.txt"), names(client, testFolder));
+
+        result = Commands.delete(testFolder+"/regex:.*\\.txt").go(client);
+        assertEquals(Status.Success, result.getStatus());
+        assertEquals(1, result.getDirEntries().get().size());
+        assertTrue(names(client, testFolder).isEmpty());
+    }
+
+    @Test
+    public void testDirectoryPutAndGet() throws Exception {
+        ConnectorClient client = setup(TEST_BUCKET, false);
+        ConnectorCommandResult result;
+        String testFolder = UUID.randomUUID().toString();
+
+        File source = Files.createTempDirectory("put").toFile();
+        source.deleteOnExit();
+        for (String name : new String[] {"a.txt", "b.txt", "c.edi"}) {
+            File file = new File(source, name);
+            file.deleteOnExit();
+            Files.write(file.toPath(), (name+StringSource.lorem).getBytes(StandardCharsets.UTF_8));
+        }
+        // a link back to the top is not followed
+        File loop = new File(source, "loop");
+        loop.deleteOnExit();
+        Files.createSymbolicLink(loop.toPath(), source.toPath());
+
+        // put the whole directory
+        result = Commands.put(new StringSource(source.getPath(), ""), testFolder)
+                .option(ConnectorCommandOption.Directory).go(client);
+        assertEquals(Status.Success, result.getStatus());
+        assertEquals(3, result.getDirEntries().get().size());
+        assertEquals(Arrays.asList("a.txt", "b.txt", "c.edi"), names(client, testFolder));
+
+        // get it back
+        File destination = Files.createTempDirectory("get").toFile();
+        destination.deleteOnExit();
+        result = Commands.get(testFolder, new StringCollector().name(destination.getPath()))
+                .option(ConnectorCommandOption.Directory).go(client);
+        assertEquals(Status.Success, result.getStatus());
+        assertEquals(3, result.getDirEntries().get().size());
+        for (String name : new String[] {"a.txt", "b.txt", "c.edi"}) {
+            File file = new File(destination, name);
+            file.deleteOnExit();
+            assertEquals(name+StringSource.lorem, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        }
+
+        // get only the files matching a pattern
+        File matching = Files.createTempDirectory("get").toFile();
+        matching.deleteOnExit();
+        result = Commands.get(testFolder+"/glob:*.txt", new StringCollector().name(matching.getPath()))
+                .option(ConnectorCommandOption.Directory).go(client);
+        assertEquals(Status.Success, result.getStatus());
+        assertEquals(2, result.getDirEntries().get().size());
+        List<String> retrieved = new ArrayList<>(Arrays.asList(matching.list()));
+        for (String name : retrieved) {
+            new File(matching, name).deleteOnExit();
+        }
+        Collections.sort(retrieved);
+        assertEquals(Arrays.asList("a.txt", "b.txt"), retrieved);
+    }
+
+    @Test
+    public void testGetResume() throws Exception {
+        ConnectorClient client = setup(TEST_BUCKET, false);
+        ConnectorCommandResult result;
+        String testFolder = UUID.randomUUID().toString();
+
+        result = Commands.put(new StringSource("sample", StringSource.lorem), testFolder+"/sample").go(client);
+        assertEquals(Status.Success, result.getStatus());
+
+        // a partial local copy is completed from where it stopped
+        File partial = File.createTempFile("sample", ".part");
+        partial.deleteOnExit();
+        Files.write(partial.toPath(), StringSource.lorem.substring(0, 100).getBytes(StandardCharsets.UTF_8));
+        StringCollector destination = new StringCollector().name(partial.getPath());
+        result = Commands.get(testFolder+"/sample", destination)
+                .option(ConnectorCommandOption.Append).go(client);
+        assertEquals(Status.Success, result.getStatus());
+        assertEquals(StringSource.lorem.substring(100), destination.toString());
+
+        // without Append the whole object is retrieved
+        destination = new StringCollector().name(partial.getPath());
+        result = Commands.get(testFolder+"/sample", destination).go(client);
+        assertEquals(Status.Success, result.getStatus());
+        assertEquals(StringSource.lorem, destination.toString());
+    }
+
+    @Test
+    public void testPrefetchOverwritten() throws Exception {
+        ConnectorClient client = ((BucketConnectorClient) new TestConnectorClientBuilder(BucketConnectorSchema.class)
+            .logger(System.err)
+            .debug(true)
+            .set("ProjectId", LocalStorage.PROJECT_ID)
+            .set("BucketName", TEST_BUCKET)
+            .set("PrefetchMaxSize", "65536")
+            .build()).storage(local.storage());
+        ConnectorCommandResult result;
+        String testFolder = UUID.randomUUID().toString();
+
+        result = Commands.put(new StringSource("sample", StringSource.lorem), testFolder+"/sample").go(client);
+        assertEquals(Status.Success, result.getStatus());
+
+        // the DIR prefetches the file, which is then served as listed
+        assertEquals(Arrays.asList("sample"), names(client, testFolder));
+        StringCollector destination = new StringCollector().name("sample");
+        result = Commands.get(testFolder+"/sample", destination).go(client);
+        assertEquals(Status.Success, result.getStatus());
+        assertEquals(StringSource.lorem, destination.toString());
+
+        // overwritten elsewhere after the DIR: the stale prefetch is not served
+        assertEquals(Arrays.asList("sample"), names(client, testFolder));
+        local.storage().create(BlobInfo.newBuilder(TEST_BUCKET, testFolder+"/sample").build(),
+                "overwritten".getBytes(StandardCharsets.UTF_8));
+        destination = new StringCollector().name("sample");
+        result = Commands.get(testFolder+"/sample", destination).go(client);
+        assertEquals(Status.Success, result.getStatus());
+        assertEquals("overwritten", destination.toString());
+    }
+
 }
@@ -1,22 +1,19 @@
 package com.cleo.labs.connector.gcpbucket;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.util.List;
 
-import org.junit.Ignore;
 import org.junit.Test;
 
 import com.cleo.connector.api.ConnectorException;
 import com.cleo.labs.connector.common.Entry;
 import com.cleo.labs.connector.common.Path;
-import com.google.auth.oauth2.GoogleCredentials;
-import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageOptions;
+import com.cleo.labs.connector.gcpbucket.local.LocalStorage;
+import com.google.cloud.storage.BucketInfo;
+import com.google.cloud.storage.StorageException;
 
 public class TestProjectClient {
 
@@ -34,38 +31,83 @@ public class TestProjectClient {
     }
 
     @Test
-    @Ignore
-    public void test() throws FileNotFoundException, IOException {
-        String projectId = "602108159320";
-        File jsonKey = new File("/Users/jthielens/Downloads/API Project-e35caa8ee46a.json");
-        GoogleCredentials credentials = GoogleCredentials.fromStream(new FileInputStream(jsonKey));
-        Storage storage;
-        storage = StorageOptions.newBuilder()
-                                .setProjectId(projectId)
-                                .setCredentials(credentials)
-                                .build()
-                                .getService();
-        ProjectClient client = new ProjectClient(storage);
+    public void test() {
+        LocalStorage local = new LocalStorage()
+                .bucket("cleo-labs-develop-1")
+                .bucket("cleo-labs-develop-2");
+        ProjectClient client = new ProjectClient(local.storage());
         assertTrue(client.exists(new Path().directory(true)));
         assertTrue(client.exists(new Path().parseURIPath("cleo-labs-develop-1")));
+        assertFalse(client.exists(new Path().parseURIPath("cleo-labs-develop-3")));
         assertEquals(2, list(client, "/").size());
     }
 
     @Test
-    @Ignore
-    public void testMkBucket() throws FileNotFoundException, IOException, ConnectorException {
-        String projectId = "602108159320";
-        File jsonKey = new File("/Users/jthielens/Downloads/API Project-e35caa8ee46a.json");
-        GoogleCredentials credentials = GoogleCredentials.fromStream(new FileInputStream(jsonKey));
-        Storage storage;
-        storage = StorageOptions.newBuilder()
-                                .setProjectId(projectId)
-                                .setCredentials(credentials)
-                                .build()
-                                .getService();
-        ProjectClient client = new ProjectClient(storage);
+    public void testMkBucket() throws ConnectorException {
+        LocalStorage local = new LocalStorage();
+        ProjectClient client = new ProjectClient(local.storage());
         assertTrue(client.mkdir(parsePath("cleo-labs-develop-3")));
+        assertTrue(client.exists(parsePath("cleo-labs-develop-3")));
         assertTrue(client.rmdir(parsePath("cleo-labs-develop-3")));
+        assertFalse(client.exists(parsePath("cleo-labs-develop-3")));
     }
 
+    @Test
+    public void testCatalog() throws ConnectorException {
+        LocalStorage local = new LocalStorage()
+                .bucket("cleo-labs-develop-1")
+                .bucket("cleo-labs-develop-2");
+        ProjectClient client = new ProjectClient(local.storage())
+                .catalog(BucketCatalog.named("testCatalog", 60));
+        // nothing is remembered until a listing is read to the end
+        client.iterate(parsePath("/")).iterator().next();
+        assertTrue(client.exists(parsePath("cleo-labs-develop-1")));
+        assertEquals(1, local.rpcCount("buckets.get"));
+        assertEquals(2, list(client, "/").size());
+
+        local.reset();
+        assertEquals(2, list(client, "/").size());
+        assertTrue(client.exists(parsePath("cleo-labs-develop-2")));
+        assertTrue(client.attr(parsePath("cleo-labs-develop-1")).isPresent());
+        assertEquals(0, local.rpcCount());
+
+        // buckets missing from the catalog are looked up
+        assertFalse(client.exists(parsePath("cleo-labs-develop-3")));
+        local.storage().create(BucketInfo.of("cleo-labs-develop-4")); // created elsewhere
+        assertTrue(client.exists(parsePath("cleo-labs-develop-4")));
+        assertEquals(2, local.rpcCount("buckets.get"));
+
+        local.reset();
+        assertTrue(client.mkdir(parsePath("cleo-labs-develop-3")));
+        assertTrue(client.exists(parsePath("cleo-labs-develop-3")));
+        assertTrue(client.rmdir(parsePath("cleo-labs-develop-1")));
+        assertFalse(client.exists(parsePath("cleo-labs-develop-1")));
+        assertEquals(2, list(client, "/").size());
+        assertEquals(3, local.rpcCount());
+
+        // a failed delete leaves the bucket in the catalog
+        local.failNext(1, 503);
+        try {
+            client.rmdir(parsePath("cleo-labs-develop-2"));
+            fail("the delete should have failed");
+        } catch (StorageException expected) {
+            assertEquals(503, expected.getCode());
+        }
+        local.reset();
+        assertTrue(client.exists(parsePath("cleo-labs-develop-2")));
+        assertEquals(0, local.rpcCount());
+    }
+
+    @Test
+    public void testCatalogDisabled() {
+        LocalStorage local = new LocalStorage()
+                .bucket("cleo-labs-develop-1");
+        ProjectClient client = new ProjectClient(local.storage())
+                .catalog(BucketCatalog.named("testCatalogDisabled", 0));
+        assertEquals(1, list(client, "/").size());
+        assertEquals(1, list(client, "/").size());
+        assertTrue(client.exists(parsePath("cleo-labs-develop-1")));
+        assertEquals(2, local.rpcCount("buckets.list"));
+        assertEquals(1, local.rpcCount("buckets.get"));
+    }
 }
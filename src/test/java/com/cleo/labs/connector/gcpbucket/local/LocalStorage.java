@@ -0,0 +1,272 @@
+package com.cleo.labs.connector.gcpbucket.local;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.storage.BucketInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.storage.spi.StorageRpcFactory;
+import com.google.common.collect.MapMaker;
+
+/**
+ * An in-process GCS stand-in for offline tests and benchmarks.  The
+ * {@link Storage} instances returned by {@link #storage()} are the real
+ * google-cloud-storage client, talking to an in-memory JSON API
+ * implementation instead of the network, so everything above the
+ * RPC layer (paging, channels, batches, retries) runs unchanged.
+ * <pre>
+ *     LocalStorage local = new LocalStorage()
+ *             .latency(20, TimeUnit.MILLISECONDS)
+ *             .bandwidth(10*1024*1024)
+ *             .errorRate(0.01, 503)
+ *             .bucket("test-bucket");
+ *     Storage storage = local.storage();
+ * </pre>
+ * Every RPC is counted by name (e.g. {@code objects.get}, {@code objects.list},
+ * {@code batch}) in {@link #rpcs()}, and the content it carries in
+ * {@link #rpcBytes(String)}.
+ */
+public class LocalStorage {
+
+    public static final String PROJECT_ID = "local-project";
+
+    private static final AtomicInteger instances = new AtomicInteger();
+    private static final ConcurrentMap<String, LocalStorageRpc> registry = new MapMaker().weakValues().makeMap();
+
+    private final String host = "http://localstorage-" + instances.incrementAndGet();
+    private final LocalStorageRpc rpc = new LocalStorageRpc(this);
+    private final ConcurrentMap<String, LongAdder> rpcs = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> rpcBytes = new ConcurrentHashMap<>();
+    private final AtomicInteger failNext = new AtomicInteger();
+    private volatile int failNextCode = 503;
+    private volatile long latencyNanos = 0;
+    private volatile long bytesPerSecond = 0;
+    private volatile double errorRate = 0;
+    private volatile int[] errorCodes = {503};
+    private volatile boolean retries = false;
+    private volatile boolean retainContent = true;
+    private final Random random = new Random(0);
+
+    public LocalStorage() {
+        registry.put(host, rpc);
+    }
+
+    /**
+     * Connects {@link StorageOptions} to the stand-in registered for their
+     * host.  A named class with a no-arg constructor, like the real factory,
+     * so that options serialized with captured channel state can be restored.
+     */
+    public static class Factory implements StorageRpcFactory {
+        @Override
+        public LocalStorageRpc create(StorageOptions options) {
+            LocalStorageRpc rpc = registry.get(options.getHost());
+            if (rpc == null) {
+                throw new IllegalStateException("no LocalStorage at " + options.getHost());
+            }
+            return rpc;
+        }
+    }
+
+    /**
+     * Sets a fixed latency added to every RPC.
+     * @param latency the latency
+     * @param unit the latency unit
+     * @return {@code this} for fluent use
+     */
+    public LocalStorage latency(long latency, TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+        return this;
+    }
+
+    /**
+     * Sets the simulated bandwidth for RPCs carrying content.
+     * @param bytesPerSecond the bandwidth, or 0 for unlimited
+     * @return {@code this} for fluent use
+     */
+    public LocalStorage bandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Fails a random fraction of RPCs with one of the supplied HTTP status codes.
+     * @param rate the fraction of RPCs to fail, 0 to 1
+     * @param codes the status codes to choose from (default 503)
+     * @return {@code this} for fluent use
+     */
+    public LocalStorage errorRate(double rate, int...codes) {
+        this.errorRate = rate;
+        if (codes.length > 0) {
+            this.errorCodes = codes.clone();
+        }
+        return this;
+    }
+
+    /**
+     * Fails the next {@code count} RPCs with the supplied HTTP status code.
+     * @param count the number of RPCs to fail
+     * @param code the status code
+     * @return {@code this} for fluent use
+     */
+    public LocalStorage failNext(int count, int code) {
+        this.failNextCode = code;
+        this.failNext.set(count);
+        return this;
+    }
+
+    /**
+     * Enables the client library's default retry settings for the
+     * {@link Storage} instances returned by {@link #storage()}.  By default
+     * retries are disabled so injected errors surface immediately.
+     * @param retries {@code true} to enable client retries
+     * @return {@code this} for fluent use
+     */
+    public LocalStorage retries(boolean retries) {
+        this.retries = retries;
+        return this;
+    }
+
+    /**
+     * Controls whether object content is kept.  When it is not, only the
+     * size is recorded and downloads return zeros, which lets benchmarks
+     * move objects far larger than the heap.
+     * @param retainContent {@code false} to discard content
+     * @return {@code this} for fluent use
+     */
+    public LocalStorage retainContent(boolean retainContent) {
+        this.retainContent = retainContent;
+        return this;
+    }
+
+    boolean retainContent() {
+        return retainContent;
+    }
+
+    /**
+     * Creates a bucket.
+     * @param name the bucket name
+     * @return {@code this} for fluent use
+     */
+    public LocalStorage bucket(String name) {
+        storage().create(BucketInfo.of(name));
+        rpcs.remove("buckets.insert");
+        return this;
+    }
+
+    /**
+     * Returns a new {@link Storage} client connected to this stand-in.
+     * @return a Storage client
+     */
+    public Storage storage() {
+        StorageOptions.Builder builder = StorageOptions.newBuilder()
+                .setProjectId(PROJECT_ID)
+                .setHost(host)
+                .setCredentials(NoCredentials.getInstance())
+                .setServiceRpcFactory(new Factory());
+        if (!retries) {
+            builder.setRetrySettings(ServiceOptions.getNoRetrySettings());
+        }
+        return builder.build().getService();
+    }
+
+    /**
+     * Returns the number of bytes received so far by a resumable upload session.
+     * @param uploadId the upload session id
+     * @return the committed offset, or -1 if the session is complete or unknown
+     */
+    public long committed(String uploadId) {
+        return rpc.committed(uploadId);
+    }
+
+    /**
+     * Returns a snapshot of the RPC counts by RPC name.
+     * @return the RPC counts
+     */
+    public Map<String, Long> rpcs() {
+        Map<String, Long> result = new TreeMap<>();
+        rpcs.forEach((name, count) -> result.put(name, count.sum()));
+        return result;
+    }
+
+    /**
+     * Returns the total number of RPCs.
+     * @return the RPC count
+     */
+    public long rpcCount() {
+        return rpcs.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * Returns the number of RPCs with a given name.
+     * @param name the RPC name
+     * @return the RPC count
+     */
+    public long rpcCount(String name) {
+        LongAdder count = rpcs.get(name);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Returns the number of content bytes carried by RPCs with a given name.
+     * @param name the RPC name
+     * @return the byte count
+     */
+    public long rpcBytes(String name) {
+        LongAdder count = rpcBytes.get(name);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Resets the RPC counts.
+     * @return {@code this} for fluent use
+     */
+    public LocalStorage reset() {
+        rpcs.clear();
+        rpcBytes.clear();
+        return this;
+    }
+
+    /**
+     * Called by {@link LocalStorageRpc} for every RPC: counts it, applies
+     * latency and bandwidth delays, and injects errors.
+     * @param name the RPC name
+     * @param bytes the content bytes carried by the RPC
+     */
+    void call(String name, long bytes) {
+        rpcs.computeIfAbsent(name, n -> new LongAdder()).increment();
+        rpcBytes.computeIfAbsent(name, n -> new LongAdder()).add(bytes);
+        long delay = latencyNanos;
+        if (bytesPerSecond > 0 && bytes > 0) {
+            delay += TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+        }
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException(0, "interrupted");
+            }
+        }
+        if (failNext.get() > 0 && failNext.getAndDecrement() > 0) {
+            throw new StorageException(failNextCode, "injected failure in "+name);
+        }
+        if (errorRate > 0) {
+            int[] codes = errorCodes;
+            synchronized (random) {
+                if (random.nextDouble() < errorRate) {
+                    throw new StorageException(codes[random.nextInt(codes.length)], "injected failure in "+name);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package com.cleo.labs.connector.gcpbucket.local;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.storage.model.Bucket;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.cloud.Tuple;
+import com.google.cloud.storage.StorageException;
+import com.google.cloud.storage.spi.v1.RpcBatch;
+import com.google.cloud.storage.testing.StorageRpcTestBase;
+import com.google.common.io.BaseEncoding;
+import com.google.common.hash.Hashing;
+
+/**
+ * An in-memory implementation of the GCS JSON API at the {@code StorageRpc}
+ * level, used by {@link LocalStorage}.  It covers the operations the connector
+ * uses (buckets, objects, listing with prefix/delimiter/paging, resumable
+ * uploads, rewrite, compose and batches) and delegates latency, bandwidth
+ * and error injection to its {@link LocalStorage}.
+ */
+class LocalStorageRpc extends StorageRpcTestBase {
+
+    private static final long DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * A stored object: immutable metadata and content ({@code null} if
+     * content is not retained, in which case reads return zeros).
+     */
+    private static class Stored {
+        private final StorageObject metadata;
+        private final byte[] content;
+        private final long size;
+        private Stored(StorageObject metadata, byte[] content, long size) {
+            this.metadata = metadata;
+            this.content = content;
+            this.size = size;
+        }
+        private byte[] read(long position, int length) {
+            long start = Math.min(position, size);
+            long end = Math.min(start + length, size);
+            return content == null ? new byte[(int) (end-start)]
+                    : Arrays.copyOfRange(content, (int) start, (int) end);
+        }
+    }
+
+    /**
+     * A resumable upload in progress.
+     */
+    private static class Upload {
+        private final StorageObject object;
+        private final Map<Option, ?> options;
+        private final ByteArrayOutputStream content;
+        private long size = 0;
+        private Upload(StorageObject object, Map<Option, ?> options, boolean retain) {
+            this.object = object;
+            this.options = options;
+            this.content = retain ? new ByteArrayOutputStream() : null;
+        }
+    }
+
+    private final LocalStorage local;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, NavigableMap<String, Stored>> objects = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong generations = new AtomicLong(System.currentTimeMillis()*1000);
+
+    LocalStorageRpc(LocalStorage local) {
+        this.local = local;
+    }
+
+    private static StorageException notFound(String what) {
+        return new StorageException(404, what+" not found");
+    }
+
+    private static StorageException preconditionFailed(String what) {
+        return new StorageException(412, "Precondition Failed: "+what);
+    }
+
+    private NavigableMap<String, Stored> bucket(String name) {
+        NavigableMap<String, Stored> bucket = objects.get(name);
+        if (bucket == null) {
+            throw notFound("bucket "+name);
+        }
+        return bucket;
+    }
+
+    private static void checkGeneration(Stored existing, Map<Option, ?> options, String name) {
+        Long match = Option.IF_GENERATION_MATCH.getLong(options);
+        Long notMatch = Option.IF_GENERATION_NOT_MATCH.getLong(options);
+        long generation = existing == null ? 0L : existing.metadata.getGeneration();
+        if (match != null && match != generation) {
+            throw preconditionFailed(name);
+        }
+        if (notMatch != null && notMatch == generation) {
+            throw preconditionFailed(name);
+        }
+    }
+
+    private StorageObject store(StorageObject object, byte[] content, long size, Map<Option, ?> options) {
+        NavigableMap<String, Stored> bucket = bucket(object.getBucket());
+        synchronized (bucket) {
+            Stored existing = bucket.get(object.getName());
+            checkGeneration(existing, options, object.getName());
+            DateTime now = new DateTime(System.currentTimeMillis());
+            StorageObject metadata = object.clone()
+                    .setGeneration(generations.incrementAndGet())
+                    .setMetageneration(1L)
+                    .setSize(BigInteger.valueOf(size))
+                    .setMd5Hash(content == null ? null : BaseEncoding.base64().encode(Hashing.md5().hashBytes(content).asBytes()))
+                    .setEtag(Long.toString(generations.get()))
+                    .setTimeCreated(now)
+                    .setUpdated(now);
+            bucket.put(object.getName(), new Stored(metadata, content, size));
+            return metadata.clone();
+        }
+    }
+
+    private Stored stored(StorageObject object, Map<Option, ?> options) {
+        Stored stored = bucket(object.getBucket()).get(object.getName());
+        if (stored == null ||
+                object.getGeneration() != null && !object.getGeneration().equals(stored.metadata.getGeneration())) {
+            return null;
+        }
+        return stored;
+    }
+
+    @Override
+    public Bucket create(Bucket bucket, Map<Option, ?> options) {
+        local.call("buckets.insert", 0);
+        Bucket created = bucket.clone()
+                .setTimeCreated(new DateTime(System.currentTimeMillis()))
+                .setMetageneration(1L);
+        if (buckets.putIfAbsent(bucket.getName(), created) != null) {
+            throw new StorageException(409, "bucket "+bucket.getName()+" already exists");
+        }
+        objects.put(bucket.getName(), new ConcurrentSkipListMap<>());
+        return created.clone();
+    }
+
+    @Override
+    public StorageObject create(StorageObject object, InputStream content, Map<Option, ?> options) {
+        try {
+            ByteArrayOutputStream bytes = local.retainContent() ? new ByteArrayOutputStream() : null;
+            byte[] buffer = new byte[64*1024];
+            long size = 0;
+            int n;
+            while ((n = content.read(buffer)) >= 0) {
+                if (bytes != null) {
+                    bytes.write(buffer, 0, n);
+                }
+                size += n;
+            }
+            local.call("objects.insert", size);
+            return store(object, bytes == null ? null : bytes.toByteArray(), size, options);
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    @Override
+    public Tuple<String, Iterable<Bucket>> list(Map<Option, ?> options) {
+        local.call("buckets.list", 0);
+        String prefix = Option.PREFIX.getString(options);
+        String token = Option.PAGE_TOKEN.getString(options);
+        Long max = Option.MAX_RESULTS.getLong(options);
+        long limit = max == null ? DEFAULT_PAGE_SIZE : max;
+        List<Bucket> page = new ArrayList<>();
+        String next = null;
+        for (Bucket bucket : buckets.values()) {
+            if (token != null && bucket.getName().compareTo(token) <= 0 ||
+                    prefix != null && !bucket.getName().startsWith(prefix)) {
+                continue;
+            }
+            if (page.size() >= limit) {
+                next = page.get(page.size()-1).getName();
+                break;
+            }
+            page.add(bucket.clone());
+        }
+        return Tuple.<String, Iterable<Bucket>>of(next, page);
+    }
+
+    @Override
+    public Tuple<String, Iterable<StorageObject>> list(String bucketName, Map<Option, ?> options) {
+        local.call("objects.list", 0);
+        NavigableMap<String, Stored> bucket = bucket(bucketName);
+        String prefix = Option.PREFIX.getString(options);
+        String delimiter = Option.DELIMITER.getString(options);
+        String token = Option.PAGE_TOKEN.getString(options);
+        Long max = Option.MAX_RESULTS.getLong(options);
+        long limit = max == null ? DEFAULT_PAGE_SIZE : max;
+        prefix = prefix == null ? "" : prefix;
+
+        List<StorageObject> page = new ArrayList<>();
+        String next = null;
+        String last = token; // a token is the last name or prefix returned
+        NavigableMap<String, Stored> range = token == null ? bucket.tailMap(prefix, true) : bucket.tailMap(token, false);
+        for (Map.Entry<String, Stored> entry : range.entrySet()) {
+            String name = entry.getKey();
+            if (!name.startsWith(prefix)) {
+                break;
+            }
+            StorageObject item;
+            String key;
+            int slash = delimiter == null ? -1 : name.indexOf(delimiter, prefix.length());
+            if (slash >= 0) {
+                key = name.substring(0, slash+delimiter.length());
+                if (key.equals(last)) {
+                    continue; // already reported this prefix
+                }
+                item = new StorageObject()
+                        .setBucket(bucketName)
+                        .setName(key)
+                        .setSize(BigInteger.ZERO);
+                item.set("isDirectory", true);
+            } else {
+                key = name;
+                item = entry.getValue().metadata.clone();
+            }
+            if (page.size() >= limit) {
+                next = last;
+                break;
+            }
+            page.add(item);
+            last = key;
+        }
+        return Tuple.<String, Iterable<StorageObject>>of(next, page);
+    }
+
+    @Override
+    public Bucket get(Bucket bucket, Map<Option, ?> options) {
+        local.call("buckets.get", 0);
+        Bucket found = buckets.get(bucket.getName());
+        return found == null ? null : found.clone();
+    }
+
+    @Override
+    public StorageObject get(StorageObject object, Map<Option, ?> options) {
+        local.call("objects.get", 0);
+        Stored stored = stored(object, options);
+        if (stored == null) {
+            return null;
+        }
+        checkGeneration(stored, options, object.getName());
+        return stored.metadata.clone();
+    }
+
+    @Override
+    public StorageObject patch(StorageObject object, Map<Option, ?> options) {
+        local.call("objects.patch", 0);
+        return update(object, options);
+    }
+
+    private StorageObject update(StorageObject object, Map<Option, ?> options) {
+        NavigableMap<String, Stored> bucket = bucket(object.getBucket());
+        synchronized (bucket) {
+            Stored stored = stored(object, options);
+            if (stored == null) {
+                throw notFound(object.getName());
+            }
+            checkGeneration(stored, options, object.getName());
+            Long metageneration = Option.IF_METAGENERATION_MATCH.getLong(options);
+            if (metageneration != null && !metageneration.equals(stored.metadata.getMetageneration())) {
+                throw preconditionFailed(object.getName());
+            }
+            StorageObject metadata = stored.metadata.clone()
+                    .setMetageneration(stored.metadata.getMetageneration()+1)
+                    .setUpdated(new DateTime(System.currentTimeMillis()));
+            if (object.getContentType() != null) {
+                metadata.setContentType(object.getContentType());
+            }
+            if (object.getContentEncoding() != null) {
+                metadata.setContentEncoding(object.getContentEncoding());
+            }
+            if (object.getMetadata() != null) {
+                metadata.setMetadata(object.getMetadata());
+            }
+            bucket.put(object.getName(), new Stored(metadata, stored.content, stored.size));
+            return metadata.clone();
+        }
+    }
+
+    @Override
+    public boolean delete(Bucket bucket, Map<Option, ?> options) {
+        local.call("buckets.delete", 0);
+        NavigableMap<String, Stored> contents = objects.get(bucket.getName());
+        if (contents == null) {
+            return false;
+        } else if (!contents.isEmpty()) {
+            throw new StorageException(409, "bucket "+bucket.getName()+" is not empty");
+        }
+        objects.remove(bucket.getName());
+        return buckets.remove(bucket.getName()) != null;
+    }
+
+    @Override
+    public boolean delete(StorageObject object, Map<Option, ?> options) {
+        local.call("objects.delete", 0);
+        return remove(object, options);
+    }
+
+    private boolean remove(StorageObject object, Map<Option, ?> options) {
+        NavigableMap<String, Stored> bucket = bucket(object.getBucket());
+        synchronized (bucket) {
+            Stored stored = stored(object, options);
+            if (stored == null) {
+                return false;
+            }
+            checkGeneration(stored, options, object.getName());
+            bucket.remove(object.getName());
+            return true;
+        }
+    }
+
+    @Override
+    public RpcBatch createBatch() {
+        return new LocalBatch();
+    }
+
+    @Override
+    public StorageObject compose(Iterable<StorageObject> sources, StorageObject target, Map<Option, ?> targetOptions) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        boolean retained = true;
+        long size = 0;
+        for (StorageObject source : sources) {
+            Stored stored = stored(source.clone().setBucket(target.getBucket()), null);
+            if (stored == null) {
+                local.call("objects.compose", 0);
+                throw notFound(source.getName());
+            }
+            if (stored.content == null) {
+                retained = false;
+            } else {
+                content.write(stored.content, 0, stored.content.length);
+            }
+            size += stored.size;
+        }
+        local.call("objects.compose", 0);
+        return store(target, retained ? content.toByteArray() : null, size, targetOptions);
+    }
+
+    @Override
+    public byte[] load(StorageObject object, Map<Option, ?> options) {
+        Stored stored = stored(object, options);
+        local.call("objects.get(media)", stored == null ? 0 : stored.size);
+        if (stored == null) {
+            throw notFound(object.getName());
+        }
+        checkGeneration(stored, options, object.getName());
+        return stored.read(0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Tuple<String, byte[]> read(StorageObject from, Map<Option, ?> options, long position, int bytes) {
+        Stored stored = stored(from, options);
+        if (stored == null) {
+            local.call("objects.get(media)", 0);
+            throw notFound(from.getName());
+        }
+        checkGeneration(stored, options, from.getName());
+        byte[] content = stored.read(position, bytes);
+        local.call("objects.get(media)", content.length);
+        return Tuple.of(stored.metadata.getEtag(), content);
+    }
+
+    @Override
+    public String open(StorageObject object, Map<Option, ?> options) {
+        local.call("objects.insert(resumable)", 0);
+        bucket(object.getBucket());
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new Upload(object, options, local.retainContent()));
+        return uploadId;
+    }
+
+    @Override
+    public void write(String uploadId, byte[] toWrite, int toWriteOffset, long destOffset, int length, boolean last) {
+        local.call("objects.insert(chunk)", length);
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) {
+            throw new StorageException(410, "upload session "+uploadId+" not found");
+        }
+        synchronized (upload) {
+            if (destOffset > upload.size) {
+                throw new StorageException(400, "upload "+uploadId+" expected offset "+upload.size+" but got "+destOffset);
+            }
+            if (upload.content != null) {
+                if (destOffset < upload.size) {
+                    // a resent chunk: truncate to destOffset (rare, so copying is fine)
+                    byte[] received = upload.content.toByteArray();
+                    upload.content.reset();
+                    upload.content.write(received, 0, (int) destOffset);
+                }
+                upload.content.write(toWrite, toWriteOffset, length);
+            }
+            upload.size = destOffset + length;
+            if (last) {
+                uploads.remove(uploadId);
+                store(upload.object, upload.content == null ? null : upload.content.toByteArray(), upload.size, upload.options);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes received so far by an upload session,
+     * or -1 if the session is complete or unknown.
+     * @param uploadId the upload session
+     * @return the committed offset, or -1
+     */
+    long committed(String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) {
+            return -1;
+        }
+        synchronized (upload) {
+            return upload.size;
+        }
+    }
+
+    @Override
+    public RewriteResponse openRewrite(RewriteRequest request) {
+        Stored stored = stored(request.source, request.sourceOptions);
+        local.call("objects.rewrite", stored == null ? 0 : stored.size);
+        if (stored == null) {
+            throw notFound(request.source.getName());
+        }
+        StorageObject target = request.overrideInfo ? request.target :
+                stored.metadata.clone()
+                    .setBucket(request.target.getBucket())
+                    .setName(request.target.getName());
+        StorageObject result = store(target, stored.content, stored.size, request.targetOptions);
+        long size = stored.size;
+        return new RewriteResponse(request, result, size, true, null, size);
+    }
+
+    @Override
+    public RewriteResponse continueRewrite(RewriteResponse previous) {
+        return previous;
+    }
+
+    /**
+     * A batch that queues its requests and runs them on {@link #submit()},
+     * counted as a single RPC.
+     */
+    private class LocalBatch implements RpcBatch {
+        private final List<Runnable> requests = new ArrayList<>();
+
+        private GoogleJsonError error(StorageException e) {
+            GoogleJsonError error = new GoogleJsonError();
+            error.setCode(e.getCode());
+            error.setMessage(e.getMessage());
+            return error;
+        }
+
+        @Override
+        public void addDelete(StorageObject object, Callback<Void> callback, Map<Option, ?> options) {
+            requests.add(() -> {
+                try {
+                    if (remove(object, options)) {
+                        callback.onSuccess(null);
+                    } else {
+                        callback.onFailure(error(notFound(object.getName())));
+                    }
+                } catch (StorageException e) {
+                    callback.onFailure(error(e));
+                }
+            });
+        }
+
+        @Override
+        public void addPatch(StorageObject object, Callback<StorageObject> callback, Map<Option, ?> options) {
+            requests.add(() -> {
+                try {
+                    callback.onSuccess(update(object, options));
+                } catch (StorageException e) {
+                    callback.onFailure(error(e));
+                }
+            });
+        }
+
+        @Override
+        public void addGet(StorageObject object, Callback<StorageObject> callback, Map<Option, ?> options) {
+            requests.add(() -> {
+                try {
+                    Stored stored = stored(object, options);
+                    if (stored == null) {
+                        callback.onFailure(error(notFound(object.getName())));
+                    } else {
+                        checkGeneration(stored, options, object.getName());
+                        callback.onSuccess(stored.metadata.clone());
+                    }
+                } catch (StorageException e) {
+                    callback.onFailure(error(e));
+                }
+            });
+        }
+
+        @Override
+        public void submit() {
+            local.call("batch", 0);
+            requests.forEach(Runnable::run);
+            requests.clear();
+        }
+    }
+}